@@ -36,7 +36,8 @@ public class NatsInputPlugin implements Plugin {
     public Collection<PluginModule> modules() {
         return ImmutableSet.of(
                 new NatsInputPluginModule(),
-                new NatsStreamingInputPluginModule()
+                new NatsStreamingInputPluginModule(),
+                new JetStreamInputPluginModule()
         );
     }
 }
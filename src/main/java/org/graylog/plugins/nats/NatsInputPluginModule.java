@@ -17,10 +17,14 @@
  */
 package org.graylog.plugins.nats;
 
+import org.graylog.plugins.nats.codec.BinaryGelfCodec;
+import org.graylog.plugins.nats.codec.NatsGelfCodec;
+import org.graylog.plugins.nats.input.BinaryGelfNatsInput;
 import org.graylog.plugins.nats.input.GelfNatsInput;
 import org.graylog.plugins.nats.input.RawNatsInput;
 import org.graylog.plugins.nats.input.SyslogNatsInput;
 import org.graylog.plugins.nats.output.GelfNatsOutput;
+import org.graylog.plugins.nats.output.MultiClusterGelfNatsOutput;
 import org.graylog.plugins.nats.transport.NatsTransport;
 import org.graylog2.plugin.PluginModule;
 
@@ -28,9 +32,13 @@ public class NatsInputPluginModule extends PluginModule {
     @Override
     protected void configure() {
         addTransport("nats", NatsTransport.class);
+        addCodec(NatsGelfCodec.NAME, NatsGelfCodec.class);
+        addCodec(BinaryGelfCodec.NAME, BinaryGelfCodec.class);
         addMessageInput(GelfNatsInput.class);
+        addMessageInput(BinaryGelfNatsInput.class);
         addMessageInput(RawNatsInput.class);
         addMessageInput(SyslogNatsInput.class);
         addMessageOutput(GelfNatsOutput.class);
+        addMessageOutput(MultiClusterGelfNatsOutput.class);
     }
 }
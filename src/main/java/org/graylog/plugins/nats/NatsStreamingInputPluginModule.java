@@ -17,6 +17,7 @@
  */
 package org.graylog.plugins.nats;
 
+import org.graylog.plugins.nats.input.BinaryGelfNatsStreamingInput;
 import org.graylog.plugins.nats.input.GelfNatsStreamingInput;
 import org.graylog.plugins.nats.input.RawNatsStreamingInput;
 import org.graylog.plugins.nats.input.SyslogNatsStreamingInput;
@@ -29,6 +30,7 @@ public class NatsStreamingInputPluginModule extends PluginModule {
     protected void configure() {
         addTransport("nats-streaming", NatsStreamingTransport.class);
         addMessageInput(GelfNatsStreamingInput.class);
+        addMessageInput(BinaryGelfNatsStreamingInput.class);
         addMessageInput(RawNatsStreamingInput.class);
         addMessageInput(SyslogNatsStreamingInput.class);
         addMessageOutput(GelfNatsStreamingOutput.class);
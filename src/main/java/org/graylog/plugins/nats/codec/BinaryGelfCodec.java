@@ -0,0 +1,141 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.codec;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.inject.assistedinject.Assisted;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.inputs.annotations.Codec;
+import org.graylog2.plugin.inputs.annotations.ConfigClass;
+import org.graylog2.plugin.inputs.annotations.FactoryClass;
+import org.graylog2.plugin.inputs.codecs.AbstractCodec;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+import org.graylog2.plugin.journal.RawMessage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Decodes GELF documents encoded as Smile, CBOR or MessagePack, e. g. produced by the GELF NATS outputs.
+ */
+@Codec(name = BinaryGelfCodec.NAME, displayName = "GELF (Binary)")
+public class BinaryGelfCodec extends AbstractCodec {
+    public static final String NAME = "gelf-binary";
+
+    public static final String CK_ENCODING = "gelf_encoding";
+    private static final String ENCODING_AUTO = "AUTO";
+
+    @Nullable
+    private final GelfEncoding encoding;
+
+    @Inject
+    public BinaryGelfCodec(@Assisted Configuration configuration) {
+        super(configuration);
+        this.encoding = GelfEncoding.fromString(configuration.getString(CK_ENCODING, ENCODING_AUTO), null);
+    }
+
+    @Nullable
+    @Override
+    public Message decode(@Nonnull RawMessage rawMessage) {
+        final byte[] payload = rawMessage.getPayload();
+        final GelfEncoding payloadEncoding = encoding == null ? detectEncoding(payload) : encoding;
+        try (final JsonParser parser = payloadEncoding.getFactory().createParser(payload)) {
+            return GelfDocumentParser.parse(parser);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't decode " + payloadEncoding.getDisplayName() + " GELF message", e);
+        }
+    }
+
+    @VisibleForTesting
+    static GelfEncoding detectEncoding(byte[] payload) {
+        if (payload.length == 0) {
+            throw new IllegalArgumentException("Empty GELF message");
+        }
+
+        final int first = payload[0] & 0xFF;
+        if (payload.length >= 3 && first == ':' && payload[1] == ')' && payload[2] == '\n') {
+            return GelfEncoding.SMILE;
+        } else if ((first >= 0x80 && first <= 0x8F) || first == 0xDE || first == 0xDF) {
+            // fixmap, map 16 and map 32
+            return GelfEncoding.MSGPACK;
+        } else if ((first >= 0xA0 && first <= 0xBF) || first == 0xD9) {
+            // map or self-describe tag (0xD9D9F7)
+            return GelfEncoding.CBOR;
+        } else {
+            return GelfEncoding.JSON;
+        }
+    }
+
+    @Nullable
+    @Override
+    public CodecAggregator getAggregator() {
+        return null;
+    }
+
+    @FactoryClass
+    public interface Factory extends AbstractCodec.Factory<BinaryGelfCodec> {
+        @Override
+        BinaryGelfCodec create(Configuration configuration);
+
+        @Override
+        Config getConfig();
+
+        @Override
+        Descriptor getDescriptor();
+    }
+
+    @ConfigClass
+    public static class Config extends AbstractCodec.Config {
+        @Override
+        public ConfigurationRequest getRequestedConfiguration() {
+            final ConfigurationRequest r = super.getRequestedConfiguration();
+
+            final Map<String, String> encodings = new LinkedHashMap<>();
+            encodings.put(ENCODING_AUTO, "Detect automatically");
+            encodings.putAll(GelfEncoding.choices());
+            r.addField(new DropdownField(
+                    CK_ENCODING,
+                    "Encoding",
+                    ENCODING_AUTO,
+                    encodings,
+                    "Wire encoding of the GELF messages",
+                    ConfigurationField.Optional.NOT_OPTIONAL));
+            return r;
+        }
+
+        @Override
+        public void overrideDefaultValues(@Nonnull ConfigurationRequest cr) {
+        }
+    }
+
+    public static class Descriptor extends AbstractCodec.Descriptor {
+        @Inject
+        public Descriptor() {
+            super(BinaryGelfCodec.class.getAnnotation(Codec.class).displayName());
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.codec;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.joda.time.DateTime;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streams a GELF document token by token straight into a {@link Message}, without building
+ * an intermediate tree. Works with every Jackson backend listed in {@link GelfEncoding}.
+ * <p>
+ * Like Graylog's GELF codec, nested objects and arrays are stored as their JSON text. Structured
+ * values of reserved fields are ignored.
+ */
+final class GelfDocumentParser {
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private GelfDocumentParser() {
+    }
+
+    static Message parse(JsonParser parser) throws IOException {
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("GELF message is not an object");
+        }
+
+        String host = null;
+        String shortMessage = null;
+        String fullMessage = null;
+        double timestamp = Double.NaN;
+        int level = -1;
+        final Map<String, Object> additionalFields = new HashMap<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String name = parser.getCurrentName();
+            final JsonToken token = parser.nextToken();
+
+            switch (name) {
+                case "version":
+                    break;
+                case "host":
+                    host = parser.getValueAsString();
+                    break;
+                case "short_message":
+                    shortMessage = parser.getValueAsString();
+                    break;
+                case "full_message":
+                    fullMessage = parser.getValueAsString();
+                    break;
+                case "timestamp":
+                    timestamp = parser.getValueAsDouble(Double.NaN);
+                    break;
+                case "level":
+                    level = parser.getValueAsInt(-1);
+                    break;
+                default:
+                    final Object value = readValue(parser, token);
+                    if (value != null) {
+                        additionalFields.put(fieldName(name), value);
+                    }
+            }
+            // Reserved fields don't consume structured values, skip them to stay in sync with the document
+            parser.skipChildren();
+        }
+
+        if (shortMessage == null || shortMessage.isEmpty()) {
+            throw new IllegalArgumentException("GELF message is missing mandatory \"short_message\" field");
+        }
+        if (host == null || host.isEmpty()) {
+            throw new IllegalArgumentException("GELF message is missing mandatory \"host\" field");
+        }
+
+        final DateTime dateTime = Double.isNaN(timestamp) ? Tools.nowUTC() : Tools.dateTimeFromDouble(timestamp);
+        final Message message = new Message(shortMessage, host, dateTime);
+        if (fullMessage != null) {
+            message.addField(Message.FIELD_FULL_MESSAGE, fullMessage);
+        }
+        if (level >= 0) {
+            message.addField(Message.FIELD_LEVEL, level);
+        }
+        additionalFields.remove(Message.FIELD_ID);
+        message.addFields(additionalFields);
+
+        return message;
+    }
+
+    private static String fieldName(String name) {
+        return name.length() > 1 && name.charAt(0) == '_' ? name.substring(1) : name;
+    }
+
+    private static Object readValue(JsonParser parser, JsonToken token) throws IOException {
+        switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+                switch (parser.getNumberType()) {
+                    case INT:
+                        return parser.getIntValue();
+                    case LONG:
+                        return parser.getLongValue();
+                    default:
+                        return parser.getNumberValue();
+                }
+            case VALUE_NUMBER_FLOAT:
+                switch (parser.getNumberType()) {
+                    case BIG_DECIMAL:
+                        return parser.getDecimalValue();
+                    default:
+                        return parser.getDoubleValue();
+                }
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            case START_OBJECT:
+            case START_ARRAY:
+                return OBJECT_MAPPER.readTree(parser).toString();
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.codec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.msgpack.jackson.dataformat.MessagePackFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Wire encodings of GELF documents exchanged over NATS.
+ * <p>
+ * All encodings carry the same document structure, only the Jackson backend differs.
+ * The factories are thread-safe and shared between all inputs and outputs.
+ */
+public enum GelfEncoding {
+    JSON("JSON", new JsonFactory()),
+    SMILE("Smile", new SmileFactory()),
+    CBOR("CBOR", new CBORFactory()),
+    MSGPACK("MessagePack", new MessagePackFactory());
+
+    private final String displayName;
+    private final JsonFactory factory;
+
+    GelfEncoding(String displayName, JsonFactory factory) {
+        this.displayName = displayName;
+        this.factory = factory;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public JsonFactory getFactory() {
+        return factory;
+    }
+
+    public static GelfEncoding fromString(String name, GelfEncoding defaultValue) {
+        if (name == null) {
+            return defaultValue;
+        }
+        try {
+            return valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return defaultValue;
+        }
+    }
+
+    public static Map<String, String> choices() {
+        final Map<String, String> choices = new LinkedHashMap<>();
+        for (GelfEncoding encoding : values()) {
+            choices.put(encoding.name(), encoding.getDisplayName());
+        }
+        return choices;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.codec;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.inject.assistedinject.Assisted;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
+import org.graylog2.plugin.inputs.annotations.Codec;
+import org.graylog2.plugin.inputs.annotations.ConfigClass;
+import org.graylog2.plugin.inputs.annotations.FactoryClass;
+import org.graylog2.plugin.inputs.codecs.AbstractCodec;
+import org.graylog2.plugin.inputs.codecs.CodecAggregator;
+import org.graylog2.plugin.journal.RawMessage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * GELF codec for NATS payloads.
+ * <p>
+ * NATS delivers complete messages, so unlike the stock GELF codec there is no chunk aggregation and
+ * compression is only checked for if enabled. The payload is streamed into the {@link Message}
+ * without building a JSON tree.
+ */
+@Codec(name = NatsGelfCodec.NAME, displayName = "GELF (NATS)")
+public class NatsGelfCodec extends AbstractCodec {
+    public static final String NAME = "gelf-nats";
+
+    public static final String CK_DECOMPRESS = "gelf_decompress";
+
+    private final JsonFactory jsonFactory = GelfEncoding.JSON.getFactory();
+    private final boolean decompress;
+
+    @Inject
+    public NatsGelfCodec(@Assisted Configuration configuration) {
+        super(configuration);
+        this.decompress = configuration.getBoolean(CK_DECOMPRESS, false);
+    }
+
+    @Nullable
+    @Override
+    public Message decode(@Nonnull RawMessage rawMessage) {
+        final byte[] payload = rawMessage.getPayload();
+        try (final JsonParser parser = createParser(payload)) {
+            return GelfDocumentParser.parse(parser);
+        } catch (IOException e) {
+            throw new IllegalStateException("Couldn't decode GELF message", e);
+        }
+    }
+
+    private JsonParser createParser(byte[] payload) throws IOException {
+        if (decompress && payload.length >= 2) {
+            final int first = payload[0] & 0xFF;
+            if (first == 0x1F && (payload[1] & 0xFF) == 0x8B) {
+                return jsonFactory.createParser(new GZIPInputStream(new ByteArrayInputStream(payload)));
+            } else if (first == 0x78) {
+                return jsonFactory.createParser(new InflaterInputStream(new ByteArrayInputStream(payload)));
+            }
+        }
+
+        return jsonFactory.createParser(payload);
+    }
+
+    @Nullable
+    @Override
+    public CodecAggregator getAggregator() {
+        return null;
+    }
+
+    @FactoryClass
+    public interface Factory extends AbstractCodec.Factory<NatsGelfCodec> {
+        @Override
+        NatsGelfCodec create(Configuration configuration);
+
+        @Override
+        Config getConfig();
+
+        @Override
+        Descriptor getDescriptor();
+    }
+
+    @ConfigClass
+    public static class Config extends AbstractCodec.Config {
+        @Override
+        public ConfigurationRequest getRequestedConfiguration() {
+            final ConfigurationRequest r = super.getRequestedConfiguration();
+            r.addField(new BooleanField(
+                    CK_DECOMPRESS,
+                    "Decompress messages",
+                    false,
+                    "Whether GZIP or ZLIB compressed messages should be accepted"));
+            return r;
+        }
+
+        @Override
+        public void overrideDefaultValues(@Nonnull ConfigurationRequest cr) {
+        }
+    }
+
+    public static class Descriptor extends AbstractCodec.Descriptor {
+        @Inject
+        public Descriptor() {
+            super(NatsGelfCodec.class.getAnnotation(Codec.class).displayName());
+        }
+    }
+}
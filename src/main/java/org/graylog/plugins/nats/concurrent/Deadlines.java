@@ -0,0 +1,58 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Helpers for waiting until a deadline in terms of {@link System#nanoTime()}, e. g. while draining on shutdown.
+ */
+public final class Deadlines {
+    private static final long POLL_MILLIS = 10L;
+
+    private Deadlines() {
+    }
+
+    /**
+     * Whether the deadline has passed.
+     */
+    public static boolean hasPassed(long deadline) {
+        return System.nanoTime() - deadline >= 0L;
+    }
+
+    /**
+     * Polls the condition until it's met or the deadline passed.
+     *
+     * @return whether the condition has been met
+     */
+    public static boolean awaitUntil(BooleanSupplier condition, long deadline) {
+        while (!condition.getAsBoolean()) {
+            if (hasPassed(deadline)) {
+                return false;
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
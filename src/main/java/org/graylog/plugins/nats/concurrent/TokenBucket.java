@@ -0,0 +1,79 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.concurrent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket allowing bursts of up to one second worth of permits.
+ * <p>
+ * Permits are reserved even if they are not available yet, so callers which are willing to wait
+ * queue up in order and a single permit request larger than the bucket does not stall forever.
+ */
+public final class TokenBucket {
+    private final double permitsPerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(long permitsPerSecond) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+        this.permitsPerNano = permitsPerSecond / (double) TimeUnit.SECONDS.toNanos(1L);
+        this.capacity = permitsPerSecond;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes the permits if they are available right now.
+     */
+    public synchronized boolean tryAcquire(long permits) {
+        refill();
+        if (tokens >= permits || tokens >= capacity) {
+            tokens -= permits;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the permits and returns the number of nanoseconds the caller has to wait before using them.
+     */
+    public synchronized long reserve(long permits) {
+        refill();
+        tokens -= permits;
+        return tokens >= 0 ? 0L : (long) Math.ceil(-tokens / permitsPerNano);
+    }
+
+    /**
+     * Returns permits which have been acquired but not used.
+     */
+    public synchronized void refund(long permits) {
+        refill();
+        tokens = Math.min(capacity, tokens + permits);
+    }
+
+    private void refill() {
+        final long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,104 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.config;
+
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.NumberField;
+import org.graylog2.plugin.configuration.fields.TextField;
+
+public class JetStreamConfig {
+    public static final String CK_STREAM = "stream";
+    public static final String CK_DURABLE_NAME = "durable_name";
+    public static final String CK_API_PREFIX = "api_prefix";
+    public static final String CK_FETCH_BATCH_SIZE = "fetch_batch_size";
+    public static final String CK_FETCH_EXPIRES = "fetch_expires";
+    public static final String CK_ACK_WAIT = "ack_wait";
+    public static final String CK_MAX_ACK_PENDING = "max_ack_pending";
+    public static final String CK_PUBLISH_ACK_WINDOW = "publish_ack_window";
+    public static final String CK_PUBLISH_ACK_TIMEOUT = "publish_ack_timeout";
+
+    public static final String DEFAULT_DURABLE_NAME = "graylog";
+    public static final String DEFAULT_API_PREFIX = "$JS.API";
+    public static final int DEFAULT_FETCH_BATCH_SIZE = 256;
+    public static final int DEFAULT_FETCH_EXPIRES = 5000;
+    public static final int DEFAULT_ACK_WAIT = 30000;
+    public static final int DEFAULT_MAX_ACK_PENDING = 10000;
+    public static final int DEFAULT_PUBLISH_ACK_WINDOW = 4096;
+    public static final int DEFAULT_PUBLISH_ACK_TIMEOUT = 5000;
+
+    public static void addFields(ConfigurationRequest r) {
+        r.addField(new TextField(
+                CK_STREAM,
+                "Stream",
+                "",
+                "Name of the JetStream stream to consume, the channels are used as filter subjects",
+                ConfigurationField.Optional.NOT_OPTIONAL));
+        r.addField(new TextField(
+                CK_DURABLE_NAME,
+                "Durable Name",
+                DEFAULT_DURABLE_NAME,
+                "Prefix of the names of the durable pull consumers, one consumer is created per channel",
+                ConfigurationField.Optional.NOT_OPTIONAL));
+        r.addField(new TextField(
+                CK_API_PREFIX,
+                "API Prefix",
+                DEFAULT_API_PREFIX,
+                "Subject prefix of the JetStream API, e. g. $JS.<domain>.API for a JetStream domain",
+                ConfigurationField.Optional.OPTIONAL));
+        r.addField(new NumberField(
+                CK_FETCH_BATCH_SIZE,
+                "Fetch batch size",
+                DEFAULT_FETCH_BATCH_SIZE,
+                "The maximum number of messages pulled with a single request",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_FETCH_EXPIRES,
+                "Fetch expiry (ms)",
+                DEFAULT_FETCH_EXPIRES,
+                "The maximum amount of time a pull request waits for messages",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_ACK_WAIT,
+                "ACK wait (ms)",
+                DEFAULT_ACK_WAIT,
+                "Messages which haven't been acknowledged within this time are delivered again",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_MAX_ACK_PENDING,
+                "Max. ACKs pending",
+                DEFAULT_MAX_ACK_PENDING,
+                "The maximum number of delivered but unacknowledged messages per consumer",
+                NumberField.Attribute.ONLY_POSITIVE));
+    }
+
+    public static void addOutputFields(ConfigurationRequest r) {
+        r.addField(new NumberField(
+                CK_PUBLISH_ACK_WINDOW,
+                "Max. outstanding ACKs",
+                DEFAULT_PUBLISH_ACK_WINDOW,
+                "The maximum number of published messages waiting for their ACK from the JetStream server",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_PUBLISH_ACK_TIMEOUT,
+                "Publish ACK timeout (ms)",
+                DEFAULT_PUBLISH_ACK_TIMEOUT,
+                "The maximum amount of time to wait for the ACK of a published message",
+                NumberField.Attribute.ONLY_POSITIVE));
+    }
+}
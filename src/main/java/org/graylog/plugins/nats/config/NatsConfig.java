@@ -35,8 +35,12 @@ public class NatsConfig  {
     public static final String CK_MAX_RECONNECT = "max_reconnect";
     public static final String CK_MAX_OUTSTANDING_PINGS = "max_pings_out";
     public static final String CK_PEDANTIC = "pedantic";
+    public static final String CK_PROBE_INTERVAL = "rtt_probe_interval";
+    public static final String CK_RTT_THRESHOLD = "rtt_warn_threshold";
 
     public static final String DEFAULT_CONNECTION_NAME = "graylog";
+    public static final int DEFAULT_PROBE_INTERVAL = 10;
+    public static final int DEFAULT_RTT_THRESHOLD = 500;
 
     public static void addFields(ConfigurationRequest r) {
         r.addField(new TextField(
@@ -98,5 +102,21 @@ public class NatsConfig  {
                 "Strict protocol checking",
                 false,
                 "Whether or not this connection should require strict server-side protocol checking"));
+        addProbeFields(r);
+    }
+
+    public static void addProbeFields(ConfigurationRequest r) {
+        r.addField(new NumberField(
+                CK_PROBE_INTERVAL,
+                "RTT probe interval (s)",
+                DEFAULT_PROBE_INTERVAL,
+                "Measure the round-trip time to the NATS server at this interval, 0 disables probing",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_RTT_THRESHOLD,
+                "RTT warning threshold (ms)",
+                DEFAULT_RTT_THRESHOLD,
+                "Log a warning when the round-trip time to the NATS server exceeds this threshold",
+                NumberField.Attribute.ONLY_POSITIVE));
     }
 }
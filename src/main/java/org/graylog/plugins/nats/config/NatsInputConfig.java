@@ -0,0 +1,160 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.config;
+
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
+import org.graylog2.plugin.configuration.fields.TextField;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class NatsInputConfig {
+    public static final String CK_OFFHEAP_BUFFER_SIZE = "offheap_buffer_size";
+    public static final String CK_OFFHEAP_CONSUMERS = "offheap_consumers";
+    public static final String CK_FLOW_CONTROL = "flow_control";
+    public static final String CK_PREFETCH = "prefetch";
+    public static final String CK_DISPATCHERS = "dispatchers";
+    public static final String CK_DISPATCHER_MODE = "dispatcher_mode";
+    public static final String CK_DRAIN_TIMEOUT = "drain_timeout";
+    public static final String CK_FILTER_RULES = "filter_rules";
+    public static final String CK_FILTER_MAX_SIZE = "filter_max_size";
+    public static final String CK_SAMPLING_RULES = "sampling_rules";
+    public static final String CK_SCHEDULING_RULES = "scheduling_rules";
+    public static final String CK_SCHEDULING_QUEUE_SIZE = "scheduling_queue_size";
+    public static final String CK_SCHEDULING_THREADS = "scheduling_threads";
+
+    public static final String DISPATCHER_MODE_SHARED = "SHARED";
+    public static final String DISPATCHER_MODE_PER_CHANNEL = "PER_CHANNEL";
+
+    public static final int DEFAULT_OFFHEAP_CONSUMERS = 2;
+    public static final int MAX_OFFHEAP_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_PREFETCH = 1024;
+    public static final int DEFAULT_DISPATCHERS = 1;
+    public static final int DEFAULT_DRAIN_TIMEOUT = 10000;
+    public static final int DEFAULT_SCHEDULING_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_SCHEDULING_THREADS = 1;
+
+    public static void addFields(ConfigurationRequest r) {
+        r.addField(new NumberField(
+                CK_OFFHEAP_BUFFER_SIZE,
+                "Off-heap buffer size (MiB)",
+                0,
+                "Size of the direct memory buffer holding received messages until they are processed (max. "
+                        + MAX_OFFHEAP_BUFFER_SIZE + " MiB), 0 disables the buffer",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_OFFHEAP_CONSUMERS,
+                "Off-heap buffer consumers",
+                DEFAULT_OFFHEAP_CONSUMERS,
+                "Number of threads processing messages from the off-heap buffer",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new BooleanField(
+                CK_FLOW_CONTROL,
+                "Flow control",
+                false,
+                "Only receive as many messages as the input requests: pauses NATS subscriptions (messages already received are "
+                        + "still processed, messages in flight or published while paused are lost) "
+                        + "and limits the unacknowledged messages of NATS Streaming subscriptions"));
+        r.addField(new NumberField(
+                CK_PREFETCH,
+                "Prefetch",
+                DEFAULT_PREFETCH,
+                "The maximum number of messages received ahead of the input's demand when flow control is enabled",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_DRAIN_TIMEOUT,
+                "Drain timeout (ms)",
+                DEFAULT_DRAIN_TIMEOUT,
+                "The maximum amount of time to process already received messages when the input stops",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new TextField(
+                CK_FILTER_RULES,
+                "Filter rules",
+                "",
+                "Drops matching messages before they are journaled, one rule per line: \"subject <pattern>\" (NATS wildcards), "
+                        + "\"prefix <text>\" or \"contains <text>\"",
+                ConfigurationField.Optional.OPTIONAL,
+                TextField.Attribute.TEXTAREA));
+        r.addField(new NumberField(
+                CK_FILTER_MAX_SIZE,
+                "Max. message size (bytes)",
+                0,
+                "Drops messages larger than this many bytes before they are journaled, 0 accepts messages of any size",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new TextField(
+                CK_SAMPLING_RULES,
+                "Sampling rules",
+                "",
+                "Keeps one out of <rate> messages of each subject matching a pattern, one \"<subject pattern> <rate>\" per line. "
+                        + "Kept messages of GELF JSON inputs get a _sample_rate field",
+                ConfigurationField.Optional.OPTIONAL,
+                TextField.Attribute.TEXTAREA));
+        r.addField(new TextField(
+                CK_SCHEDULING_RULES,
+                "Scheduling rules",
+                "",
+                "Shares the input between subjects by weight, one \"<subject pattern> <weight> [<max. messages per second>]\" per line. "
+                        + "Other subjects share a lane with weight 1. Leave empty to disable scheduling",
+                ConfigurationField.Optional.OPTIONAL,
+                TextField.Attribute.TEXTAREA));
+        r.addField(new NumberField(
+                CK_SCHEDULING_QUEUE_SIZE,
+                "Scheduling queue size",
+                DEFAULT_SCHEDULING_QUEUE_SIZE,
+                "The maximum number of messages queued per scheduling rule, further messages are left unacknowledged "
+                        + "(NATS Streaming and JetStream deliver them again) or dropped (core NATS)",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_SCHEDULING_THREADS,
+                "Scheduling threads",
+                DEFAULT_SCHEDULING_THREADS,
+                "Number of threads handing scheduled messages to the input, the scheduling rules are spread over them "
+                        + "and weights apply between the rules of the same thread",
+                NumberField.Attribute.ONLY_POSITIVE));
+    }
+
+    /**
+     * Fields only supported by core NATS transports.
+     */
+    public static void addDispatcherFields(ConfigurationRequest r) {
+        r.addField(new DropdownField(
+                CK_DISPATCHER_MODE,
+                "Dispatcher mode",
+                DISPATCHER_MODE_SHARED,
+                dispatcherModes(),
+                "How channels are spread over NATS connections, each connection delivers its messages on its own threads",
+                ConfigurationField.Optional.OPTIONAL));
+        r.addField(new NumberField(
+                CK_DISPATCHERS,
+                "Dispatchers",
+                DEFAULT_DISPATCHERS,
+                "Number of NATS connections sharing the messages of all channels, more than one doesn't preserve the order of messages",
+                NumberField.Attribute.ONLY_POSITIVE));
+    }
+
+    private static Map<String, String> dispatcherModes() {
+        final Map<String, String> modes = new LinkedHashMap<>();
+        modes.put(DISPATCHER_MODE_SHARED, "Shared dispatchers for all channels");
+        modes.put(DISPATCHER_MODE_PER_CHANNEL, "One dispatcher per channel");
+        return modes;
+    }
+}
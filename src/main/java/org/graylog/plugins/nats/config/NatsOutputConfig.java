@@ -0,0 +1,254 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.config;
+
+import org.graylog.plugins.nats.codec.GelfEncoding;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.BooleanField;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.DropdownField;
+import org.graylog2.plugin.configuration.fields.NumberField;
+import org.graylog2.plugin.configuration.fields.TextField;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class NatsOutputConfig {
+    public static final String CK_INCLUDE_FIELDS = "include_fields";
+    public static final String CK_EXCLUDE_FIELDS = "exclude_fields";
+    public static final String CK_ENCODING = "encoding";
+    public static final String CK_RATE_LIMIT_MESSAGES = "rate_limit_messages";
+    public static final String CK_RATE_LIMIT_BYTES = "rate_limit_bytes";
+    public static final String CK_RATE_LIMIT_POLICY = "rate_limit_policy";
+    public static final String CK_RATE_LIMIT_SAMPLE_FIELD = "rate_limit_sample_field";
+    public static final String CK_CONFIRM_DELIVERY = "confirm_delivery";
+    public static final String CK_CONFIRM_WINDOW = "confirm_window";
+    public static final String CK_CONFIRM_TIMEOUT = "confirm_timeout";
+    public static final String CK_BATCH_MAX_MESSAGES = "batch_max_messages";
+    public static final String CK_BATCH_MAX_BYTES = "batch_max_bytes";
+    public static final String CK_BATCH_MAX_LINGER = "batch_max_linger";
+    public static final String CK_BREAKER_FAILURES = "circuit_breaker_failures";
+    public static final String CK_BREAKER_OPEN_TIME = "circuit_breaker_open_time";
+    public static final String CK_BREAKER_POLICY = "circuit_breaker_policy";
+    public static final String CK_ASYNC_QUEUE_SIZE = "async_queue_size";
+    public static final String CK_ASYNC_PUBLISHERS = "async_publishers";
+    public static final String CK_ASYNC_FULL_POLICY = "async_full_policy";
+    public static final String CK_ASYNC_BLOCK_TIMEOUT = "async_block_timeout";
+    public static final String CK_PARTITIONS = "partitions";
+    public static final String CK_PARTITION_PREFIX = "partition_subject_prefix";
+    public static final String CK_PARTITION_KEY = "partition_key_field";
+    public static final String CK_DRAIN_TIMEOUT = "drain_timeout";
+
+    public static final int DEFAULT_CONFIRM_WINDOW = 1024;
+    public static final int DEFAULT_CONFIRM_TIMEOUT = 5000;
+    public static final int DEFAULT_BATCH_MAX_BYTES = 1024 * 1024;
+    public static final int DEFAULT_BATCH_MAX_LINGER = 20;
+    public static final int DEFAULT_BREAKER_OPEN_TIME = 10000;
+    public static final int DEFAULT_ASYNC_PUBLISHERS = 1;
+    public static final int DEFAULT_ASYNC_BLOCK_TIMEOUT = 1000;
+    public static final String DEFAULT_PARTITION_PREFIX = "graylog";
+    public static final int DEFAULT_DRAIN_TIMEOUT = 10000;
+
+    public static final GelfEncoding DEFAULT_ENCODING = GelfEncoding.JSON;
+
+    public static void addFields(ConfigurationRequest r) {
+        addEncodingFields(r);
+        r.addField(new NumberField(
+                CK_RATE_LIMIT_MESSAGES,
+                "Rate limit (messages/s)",
+                0,
+                "The maximum number of messages per second published by this output, 0 means unlimited",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_RATE_LIMIT_BYTES,
+                "Rate limit (bytes/s)",
+                0,
+                "The maximum number of bytes per second published by this output, 0 means unlimited",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new DropdownField(
+                CK_RATE_LIMIT_POLICY,
+                "Rate limit policy",
+                "BLOCK",
+                rateLimitPolicies(),
+                "What happens to messages exceeding the rate limit",
+                ConfigurationField.Optional.OPTIONAL));
+        r.addField(new TextField(
+                CK_RATE_LIMIT_SAMPLE_FIELD,
+                "Rate limit sample field",
+                "source",
+                "Message field whose hash decides which messages are kept when sampling",
+                ConfigurationField.Optional.OPTIONAL));
+        r.addField(new NumberField(
+                CK_BATCH_MAX_MESSAGES,
+                "Batch size (messages)",
+                0,
+                "The maximum number of messages published together, 0 disables batching",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_BATCH_MAX_BYTES,
+                "Batch size (bytes)",
+                DEFAULT_BATCH_MAX_BYTES,
+                "The maximum number of bytes published together",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_BATCH_MAX_LINGER,
+                "Max. linger time (ms)",
+                DEFAULT_BATCH_MAX_LINGER,
+                "The maximum amount of time a message waits for its batch to fill up, the actual time adapts to the message rate",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_BREAKER_FAILURES,
+                "Circuit breaker failures",
+                0,
+                "Stop publishing after this number of consecutive failures, 0 disables the circuit breaker",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_BREAKER_OPEN_TIME,
+                "Circuit breaker open time (ms)",
+                DEFAULT_BREAKER_OPEN_TIME,
+                "The amount of time to wait before trying to publish again",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new DropdownField(
+                CK_BREAKER_POLICY,
+                "Circuit breaker policy",
+                "FAIL",
+                circuitBreakerPolicies(),
+                "What happens to messages while the circuit breaker is open",
+                ConfigurationField.Optional.OPTIONAL));
+        r.addField(new NumberField(
+                CK_ASYNC_QUEUE_SIZE,
+                "Async queue size",
+                0,
+                "Queue up to this number of messages and publish them in the background, 0 publishes synchronously",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_ASYNC_PUBLISHERS,
+                "Async publishers",
+                DEFAULT_ASYNC_PUBLISHERS,
+                "The number of threads publishing queued messages, more than one doesn't preserve the order of messages",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new DropdownField(
+                CK_ASYNC_FULL_POLICY,
+                "Async queue full policy",
+                "BLOCK",
+                asyncFullPolicies(),
+                "What happens to new messages while the async queue is full",
+                ConfigurationField.Optional.OPTIONAL));
+        r.addField(new NumberField(
+                CK_ASYNC_BLOCK_TIMEOUT,
+                "Async queue block timeout (ms)",
+                DEFAULT_ASYNC_BLOCK_TIMEOUT,
+                "The maximum amount of time to wait for free space in the async queue before dropping a message",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_PARTITIONS,
+                "Partitions",
+                0,
+                "Publish each message to one of this number of subjects <prefix>.0 to <prefix>.<N-1> instead of the channels, 0 disables partitioning",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new TextField(
+                CK_PARTITION_PREFIX,
+                "Partition subject prefix",
+                DEFAULT_PARTITION_PREFIX,
+                "Prefix of the partitioned subjects",
+                ConfigurationField.Optional.OPTIONAL));
+        r.addField(new TextField(
+                CK_PARTITION_KEY,
+                "Partition key field",
+                "source",
+                "Message field whose hash decides the partition, messages with the same value keep their order",
+                ConfigurationField.Optional.OPTIONAL));
+        addDrainFields(r);
+    }
+
+    public static void addDrainFields(ConfigurationRequest r) {
+        r.addField(new NumberField(
+                CK_DRAIN_TIMEOUT,
+                "Drain timeout (ms)",
+                DEFAULT_DRAIN_TIMEOUT,
+                "The maximum amount of time to publish queued messages and wait for acknowledgements when the output stops",
+                NumberField.Attribute.ONLY_POSITIVE));
+    }
+
+    public static void addEncodingFields(ConfigurationRequest r) {
+        r.addField(new DropdownField(
+                CK_ENCODING,
+                "Encoding",
+                DEFAULT_ENCODING.name(),
+                GelfEncoding.choices(),
+                "Wire encoding of the GELF messages, binary encodings are smaller and cheaper to produce",
+                ConfigurationField.Optional.NOT_OPTIONAL));
+        r.addField(new TextField(
+                CK_INCLUDE_FIELDS,
+                "Included fields",
+                "",
+                "List of additional message fields (one per line) to forward, a trailing * matches a prefix. Leave empty to forward all fields.",
+                ConfigurationField.Optional.OPTIONAL,
+                TextField.Attribute.TEXTAREA));
+        r.addField(new TextField(
+                CK_EXCLUDE_FIELDS,
+                "Excluded fields",
+                "",
+                "List of additional message fields (one per line) which will not be forwarded, a trailing * matches a prefix",
+                ConfigurationField.Optional.OPTIONAL,
+                TextField.Attribute.TEXTAREA));
+    }
+
+    public static void addConfirmationFields(ConfigurationRequest r) {
+        r.addField(new BooleanField(
+                CK_CONFIRM_DELIVERY,
+                "Confirm delivery",
+                false,
+                "Publish messages with a reply subject and wait until consumers confirmed them by replying"));
+        r.addField(new NumberField(
+                CK_CONFIRM_WINDOW,
+                "Max. unconfirmed messages",
+                DEFAULT_CONFIRM_WINDOW,
+                "The maximum number of messages which may be waiting for a confirmation at any point in time",
+                NumberField.Attribute.ONLY_POSITIVE));
+        r.addField(new NumberField(
+                CK_CONFIRM_TIMEOUT,
+                "Confirmation timeout (ms)",
+                DEFAULT_CONFIRM_TIMEOUT,
+                "The maximum amount of time to wait for the confirmation of a message",
+                NumberField.Attribute.ONLY_POSITIVE));
+    }
+
+    private static Map<String, String> asyncFullPolicies() {
+        final Map<String, String> policies = new LinkedHashMap<>();
+        policies.put("BLOCK", "Wait for free space");
+        policies.put("DROP_NEWEST", "Drop newest message");
+        policies.put("DROP_OLDEST", "Drop oldest message");
+        return policies;
+    }
+
+    private static Map<String, String> circuitBreakerPolicies() {
+        final Map<String, String> policies = new LinkedHashMap<>();
+        policies.put("FAIL", "Fail immediately");
+        policies.put("DROP", "Drop messages");
+        return policies;
+    }
+
+    private static Map<String, String> rateLimitPolicies() {
+        final Map<String, String> policies = new LinkedHashMap<>();
+        policies.put("BLOCK", "Wait for capacity");
+        policies.put("DROP", "Drop messages");
+        policies.put("SAMPLE", "Sample messages by field");
+        return policies;
+    }
+}
@@ -28,10 +28,13 @@ public class NatsStreamingConfig {
     public static final String CK_ACK_TIMEOUT = "ack_timeout";
     public static final String CK_DISCOVER_PREFIX = "discover_prefix";
     public static final String CK_MAX_PUB_ACKS_IN_FLIGHT = "max_pub_acks_in_flight";
+    public static final String CK_LEDGER_DIRECTORY = "ledger_directory";
+    public static final String CK_LEDGER_MAX_SIZE = "ledger_max_size";
 
     public static final String DEFAULT_DISCOVER_PREFIX = "_STAN.discover";
     public static final int DEFAULT_MAX_PUB_ACKS_IN_FLIGHT = 16384;
     public static final int DEFAULT_ACK_TIMEOUT = 30000;
+    public static final int DEFAULT_LEDGER_MAX_SIZE = 256;
 
     public static void addFields(ConfigurationRequest r) {
         r.addField(new TextField(
@@ -65,4 +68,19 @@ public class NatsStreamingConfig {
                 "The maximum number of publish ACKs that may be in flight at any point in time",
                 NumberField.Attribute.ONLY_POSITIVE));
     }
+
+    public static void addLedgerFields(ConfigurationRequest r) {
+        r.addField(new TextField(
+                CK_LEDGER_DIRECTORY,
+                "Publish ledger directory",
+                "",
+                "Directory of the local ledger of unacknowledged messages which are published again on start, empty to disable the ledger",
+                ConfigurationField.Optional.OPTIONAL));
+        r.addField(new NumberField(
+                CK_LEDGER_MAX_SIZE,
+                "Publish ledger max. size (MiB)",
+                DEFAULT_LEDGER_MAX_SIZE,
+                "The maximum disk space used by the publish ledger in MiB, messages aren't recorded while it's full",
+                NumberField.Attribute.ONLY_POSITIVE));
+    }
 }
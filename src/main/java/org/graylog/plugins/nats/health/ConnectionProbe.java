@@ -0,0 +1,150 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.health;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.nats.client.Connection;
+import org.graylog.plugins.nats.config.NatsConfig;
+import org.graylog2.plugin.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Periodically measures the round-trip time to the NATS server by flushing the connection, which sends
+ * a PING and waits for the PONG.
+ * <p>
+ * Registers the following metrics below the given prefix: {@code nats.rtt} (timer), {@code nats.connected}
+ * (gauge, 1 if connected), {@code nats.lastPingAge} (gauge, milliseconds since the last successful ping or -1)
+ * and {@code nats.pingFailures} (meter).
+ */
+public class ConnectionProbe {
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionProbe.class);
+
+    private final Connection connection;
+    private final String name;
+    private final long intervalMillis;
+    private final long thresholdMillis;
+    private final MetricRegistry metricRegistry;
+    private final String metricPrefix;
+    private final Timer rtt;
+    private final Meter failures;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile long lastSuccessNanos = -1L;
+    private volatile boolean degraded;
+
+    public ConnectionProbe(Connection connection, String name, long intervalMillis, long thresholdMillis,
+                           MetricRegistry metricRegistry, String metricPrefix) {
+        this.connection = requireNonNull(connection);
+        this.name = requireNonNull(name);
+        this.intervalMillis = intervalMillis;
+        this.thresholdMillis = thresholdMillis;
+        this.metricRegistry = requireNonNull(metricRegistry);
+        this.metricPrefix = requireNonNull(metricPrefix);
+        this.rtt = metricRegistry.timer(MetricRegistry.name(metricPrefix, "nats", "rtt"));
+        this.failures = metricRegistry.meter(MetricRegistry.name(metricPrefix, "nats", "pingFailures"));
+        register("connected", (Gauge<Integer>) () -> connection.isConnected() ? 1 : 0);
+        register("lastPingAge", (Gauge<Long>) this::getLastPingAgeMillis);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("nats-probe-%d")
+                .build());
+    }
+
+    /**
+     * Creates and starts a probe as configured or returns {@code null} if probing is disabled.
+     */
+    @Nullable
+    public static ConnectionProbe start(Connection connection, String name, Configuration configuration,
+                                        MetricRegistry metricRegistry, String metricPrefix) {
+        final int intervalSeconds = configuration.getInt(NatsConfig.CK_PROBE_INTERVAL, NatsConfig.DEFAULT_PROBE_INTERVAL);
+        if (intervalSeconds <= 0) {
+            return null;
+        }
+        final int thresholdMillis = configuration.getInt(NatsConfig.CK_RTT_THRESHOLD, NatsConfig.DEFAULT_RTT_THRESHOLD);
+
+        final ConnectionProbe probe = new ConnectionProbe(connection, name, TimeUnit.SECONDS.toMillis(intervalSeconds),
+                thresholdMillis, metricRegistry, metricPrefix);
+        probe.start();
+        return probe;
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::probe, 0L, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+        metricRegistry.removeMatching((metricName, metric) -> metricName.startsWith(MetricRegistry.name(metricPrefix, "nats") + "."));
+    }
+
+    /**
+     * Milliseconds since the last successful ping or -1 if there was none.
+     */
+    public long getLastPingAgeMillis() {
+        final long lastSuccess = lastSuccessNanos;
+        return lastSuccess < 0L ? -1L : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastSuccess);
+    }
+
+    void probe() {
+        if (!connection.isConnected()) {
+            failures.mark();
+            return;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            connection.flush((int) Math.max(intervalMillis, thresholdMillis));
+        } catch (Exception e) {
+            failures.mark();
+            LOG.debug("PING to NATS server failed for {}", name, e);
+            return;
+        }
+        final long end = System.nanoTime();
+        lastSuccessNanos = end;
+        rtt.update(end - start, TimeUnit.NANOSECONDS);
+
+        final long rttMillis = TimeUnit.NANOSECONDS.toMillis(end - start);
+        if (rttMillis > thresholdMillis && !degraded) {
+            degraded = true;
+            LOG.warn("Round-trip time to NATS server {} for {} is {} ms, exceeding {} ms",
+                    connection.getConnectedUrl(), name, rttMillis, thresholdMillis);
+        } else if (rttMillis <= thresholdMillis && degraded) {
+            degraded = false;
+            LOG.info("Round-trip time to NATS server {} for {} recovered to {} ms",
+                    connection.getConnectedUrl(), name, rttMillis);
+        }
+    }
+
+    private void register(String metricName, Gauge<?> gauge) {
+        final String fullName = MetricRegistry.name(metricPrefix, "nats", metricName);
+        metricRegistry.remove(fullName);
+        metricRegistry.register(fullName, gauge);
+    }
+}
@@ -19,8 +19,8 @@ package org.graylog.plugins.nats.input;
 
 import com.codahale.metrics.MetricRegistry;
 import com.google.inject.assistedinject.Assisted;
+import org.graylog.plugins.nats.codec.NatsGelfCodec;
 import org.graylog.plugins.nats.transport.NatsTransport;
-import org.graylog2.inputs.codecs.GelfCodec;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.ServerStatus;
 import org.graylog2.plugin.configuration.Configuration;
@@ -36,16 +36,22 @@ public class GelfNatsInput extends MessageInput {
     @Inject
     public GelfNatsInput(@Assisted Configuration configuration,
                          NatsTransport.Factory transportFactory,
-                         GelfCodec.Factory codecFactory,
+                         NatsGelfCodec.Factory codecFactory,
                          Config config,
                          Descriptor descriptor,
                          MetricRegistry metricRegistry,
                          LocalMetricRegistry localRegistry,
                          ServerStatus serverStatus) {
-        super(metricRegistry, configuration, transportFactory.create(configuration),
+        super(metricRegistry, configuration, createTransport(transportFactory, configuration),
                 localRegistry, codecFactory.create(configuration), config, descriptor, serverStatus);
     }
 
+    private static NatsTransport createTransport(NatsTransport.Factory transportFactory, Configuration configuration) {
+        final NatsTransport transport = transportFactory.create(configuration);
+        transport.setTagSampledMessages(true);
+        return transport;
+    }
+
     @FactoryClass
     public interface Factory extends MessageInput.Factory<GelfNatsInput> {
         @Override
@@ -67,7 +73,7 @@ public class GelfNatsInput extends MessageInput {
     @ConfigClass
     public static class Config extends MessageInput.Config {
         @Inject
-        public Config(NatsTransport.Factory transport, GelfCodec.Factory codec) {
+        public Config(NatsTransport.Factory transport, NatsGelfCodec.Factory codec) {
             super(transport.getConfig(), codec.getConfig());
         }
     }
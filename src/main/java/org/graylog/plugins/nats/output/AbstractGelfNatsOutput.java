@@ -17,30 +17,33 @@
  */
 package org.graylog.plugins.nats.output;
 
-import com.fasterxml.jackson.core.JsonFactory;
-import com.fasterxml.jackson.core.JsonGenerator;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.annotations.VisibleForTesting;
 import io.nats.client.Connection;
 import io.nats.client.ConnectionFactory;
+import org.graylog.plugins.nats.codec.GelfEncoding;
 import org.graylog.plugins.nats.config.NatsConfig;
+import org.graylog.plugins.nats.config.NatsOutputConfig;
+import org.graylog.plugins.nats.health.ConnectionProbe;
 import org.graylog2.plugin.Message;
-import org.graylog2.plugin.Tools;
+import org.graylog2.plugin.ServerStatus;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.outputs.MessageOutput;
 import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
-import org.joda.time.DateTime;
+import org.graylog2.plugin.streams.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.StreamSupport;
 
@@ -64,15 +67,32 @@ abstract class AbstractGelfNatsOutput implements MessageOutput {
     private static final String DEFAULT_CHANNELS = "graylog";
 
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
-    private final String nodeId;
-    private final String clusterId;
+    private final long drainTimeoutMillis;
+    private final Counter drained;
+    private volatile boolean draining;
+    private final GelfMessageEncoder encoder;
+    private final OutputRateLimiter rateLimiter;
+    private final CircuitBreaker circuitBreaker;
+    @Nullable
+    private final OutputBatcher batcher;
+    @Nullable
+    private ConnectionProbe probe;
+    @Nullable
+    private AsyncWriteQueue writeQueue;
+    @Nullable
+    private final SubjectPartitioner partitioner;
 
     final Connection connection;
     final String[] channels;
+    final MetricRegistry metricRegistry;
+    final String metricPrefix;
 
 
     static Connection createNatsConnection(Configuration configuration) throws MessageOutputConfigurationException {
-        final String[] servers = getServers(configuration);
+        return createNatsConnection(configuration, getServers(configuration));
+    }
+
+    static Connection createNatsConnection(Configuration configuration, String[] servers) throws MessageOutputConfigurationException {
         final String connectionName = configuration.getString(CK_CONNECTION_NAME, DEFAULT_CONNECTION_NAME);
         final int connectionTimeout = configuration.getInt(CK_CONNECTION_TIMEOUT, ConnectionFactory.DEFAULT_TIMEOUT);
         final int maxReconnect = configuration.getInt(CK_MAX_RECONNECT, ConnectionFactory.DEFAULT_MAX_RECONNECT);
@@ -109,7 +129,24 @@ abstract class AbstractGelfNatsOutput implements MessageOutput {
         return splitByNewline(channelsConfig);
     }
 
-    private static String[] splitByNewline(String text) {
+    static GelfMessageEncoder createEncoder(Configuration configuration, ServerStatus serverStatus) {
+        final GelfEncoding encoding = GelfEncoding.fromString(
+                configuration.getString(NatsOutputConfig.CK_ENCODING), NatsOutputConfig.DEFAULT_ENCODING);
+        final FieldFilter fieldFilter = FieldFilter.create(
+                configuration.getString(NatsOutputConfig.CK_INCLUDE_FIELDS),
+                configuration.getString(NatsOutputConfig.CK_EXCLUDE_FIELDS));
+        return new GelfMessageEncoder(
+                encoding,
+                fieldFilter,
+                serverStatus.getNodeId().toString(),
+                serverStatus.getClusterId());
+    }
+
+    static String metricPrefix(Class<? extends MessageOutput> outputClass, Stream stream) {
+        return MetricRegistry.name(outputClass, stream.getId());
+    }
+
+    static String[] splitByNewline(String text) {
         return StreamSupport.stream(Arrays.spliterator(text.split("\n")), false)
                 .map(String::trim)
                 .filter(s -> !s.isEmpty())
@@ -117,16 +154,96 @@ abstract class AbstractGelfNatsOutput implements MessageOutput {
     }
 
     @VisibleForTesting
-    AbstractGelfNatsOutput(Connection connection, String[] channels, String nodeId, String clusterId) {
+    AbstractGelfNatsOutput(Connection connection,
+                           String[] channels,
+                           GelfMessageEncoder encoder,
+                           Configuration configuration,
+                           MetricRegistry metricRegistry,
+                           String metricPrefix) {
         this.connection = requireNonNull(connection);
         this.channels = requireNonNull(channels);
-        this.nodeId = requireNonNull(nodeId);
-        this.clusterId = requireNonNull(clusterId);
+        this.encoder = requireNonNull(encoder);
+        this.metricRegistry = requireNonNull(metricRegistry);
+        this.metricPrefix = requireNonNull(metricPrefix);
+        try {
+            this.partitioner = SubjectPartitioner.create(configuration, metricRegistry, metricPrefix);
+            this.rateLimiter = OutputRateLimiter.create(configuration, metricRegistry, metricPrefix);
+            this.circuitBreaker = CircuitBreaker.create(configuration, metricRegistry, metricPrefix);
+            if (circuitBreaker != CircuitBreaker.DISABLED) {
+                registerGauge("circuitBreaker.state", (Gauge<Integer>) () -> circuitBreaker.getState().ordinal());
+            }
+            this.batcher = OutputBatcher.create(this::publishGuarded, configuration, metricRegistry, metricPrefix);
+            if (batcher != null) {
+                registerGauge("batch.linger", (Gauge<Double>) () -> batcher.getLingerNanos() / 1_000_000.0d);
+                registerGauge("batch.pending", (Gauge<Integer>) batcher::getPendingCount);
+            }
+        } catch (RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        this.drainTimeoutMillis = configuration.getInt(NatsOutputConfig.CK_DRAIN_TIMEOUT, NatsOutputConfig.DEFAULT_DRAIN_TIMEOUT);
+        this.drained = metricRegistry.counter(MetricRegistry.name(getClass(), "drain", "messages"));
         isRunning.set(true);
     }
 
+    /**
+     * Starts the connection probe and the asynchronous writers. Subclasses call this at the end of their
+     * constructor, so no thread publishes through a partially initialized output.
+     */
+    void start(Configuration configuration) {
+        probe = ConnectionProbe.start(connection, metricPrefix, configuration, metricRegistry, metricPrefix);
+        writeQueue = AsyncWriteQueue.create(this::writeSynchronously, configuration, metricRegistry, metricPrefix);
+    }
+
+    /**
+     * Drains the output before closing the connection: publishes queued and batched messages, waits for
+     * outstanding acknowledgements and flushes the connection, unless the drain timeout passes first.
+     * The drain metrics are kept per output type, so they survive the stopped output.
+     */
     @Override
     public void stop() {
+        final long drainStart = System.nanoTime();
+        final long deadline = drainStart + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        draining = true;
+
+        if (writeQueue != null) {
+            writeQueue.close(deadline);
+        }
+        if (batcher != null) {
+            try {
+                batcher.close(deadline);
+            } catch (Exception e) {
+                LOG.error("Couldn't publish pending batch of messages", e);
+            }
+        }
+        awaitOutstanding(deadline);
+        if (isRunning() && connection != null) {
+            try {
+                connection.flush((int) Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (Exception e) {
+                LOG.warn("Couldn't flush NATS connection: {}", e.getMessage());
+            }
+        }
+
+        final long drainNanos = System.nanoTime() - drainStart;
+        metricRegistry.timer(MetricRegistry.name(getClass(), "drain", "duration")).update(drainNanos, TimeUnit.NANOSECONDS);
+        LOG.debug("Drained output in {} ms", TimeUnit.NANOSECONDS.toMillis(drainNanos));
+
+        if (probe != null) {
+            probe.stop();
+        }
+        closeConnection();
+        metricRegistry.removeMatching((name, metric) -> name.startsWith(metricPrefix));
+    }
+
+    /**
+     * Waits until the deadline (in terms of {@link System#nanoTime()}) for acknowledgements of messages
+     * published by other threads.
+     */
+    void awaitOutstanding(long deadline) {
+    }
+
+    void closeConnection() {
         if (isRunning() && connection != null) {
             LOG.debug("Closing NATS connection");
             try {
@@ -148,95 +265,120 @@ abstract class AbstractGelfNatsOutput implements MessageOutput {
         return connection.isConnected();
     }
 
+    @Override
+    public void write(Message message) throws Exception {
+        if (writeQueue != null) {
+            writeQueue.offer(message);
+        } else {
+            writeSynchronously(message);
+        }
+    }
+
     @Override
     public void write(List<Message> messages) throws Exception {
+        if (writeQueue == null) {
+            writeSynchronously(messages);
+            return;
+        }
+
         for (Message message : messages) {
-            write(message);
+            writeQueue.offer(message);
         }
     }
 
-    @Nullable
-    private Integer extractLevel(Object rawLevel) {
-        Integer level;
-        if (rawLevel instanceof Number) {
-            level = ((Number) rawLevel).intValue();
-        } else if (rawLevel instanceof String) {
-            try {
-                level = Integer.parseInt((String) rawLevel);
-            } catch (NumberFormatException e) {
-                LOG.debug("Invalid message level " + rawLevel, e);
-                level = null;
-            }
+    private void writeSynchronously(Message message) throws Exception {
+        final EncodedMessage encoded = encodeIfAdmitted(message);
+        if (encoded == null) {
+            return;
+        }
+
+        if (batcher == null) {
+            publishGuarded(Collections.singletonList(encoded));
         } else {
-            LOG.debug("Invalid message level {}", rawLevel);
-            level = null;
+            batcher.add(encoded);
+        }
+    }
+
+    private void writeSynchronously(List<Message> messages) throws Exception {
+        if (batcher != null) {
+            for (Message message : messages) {
+                writeSynchronously(message);
+            }
+            return;
         }
 
-        return level;
+        final List<EncodedMessage> encodedMessages = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            final EncodedMessage encoded = encodeIfAdmitted(message);
+            if (encoded != null) {
+                encodedMessages.add(encoded);
+            }
+        }
+        if (!encodedMessages.isEmpty()) {
+            publishGuarded(encodedMessages);
+        }
     }
 
-    protected byte[] toGELFMessage(final Message message) throws IOException {
-        final HashMap<String, Object> fields = new HashMap<>(message.getFields());
+    /**
+     * Encodes the message and picks its subjects, unless the rate limiter decides to drop it.
+     *
+     * @return the encoded message or {@code null} if it has been dropped
+     */
+    @Nullable
+    EncodedMessage encodeIfAdmitted(Message message) throws Exception {
+        if (!rateLimiter.admitMessage(message)) {
+            return null;
+        }
+        final byte[] payload = toGELFMessage(message);
+        final String[] subjects = partitioner == null ? channels : partitioner.subjectsFor(message);
+        if (!rateLimiter.admitBytes(message, (long) payload.length * subjects.length)) {
+            return null;
+        }
+        return new EncodedMessage(payload, subjects);
+    }
 
-        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(512);
-        final JsonFactory jsonFactory = new JsonFactory();
-        final JsonGenerator generator = jsonFactory.createGenerator(outputStream);
-        generator.writeStartObject();
-        generator.writeStringField("version", "1.1");
-        generator.writeStringField("host", (String) fields.remove(Message.FIELD_SOURCE));
-        generator.writeStringField("short_message", (String) fields.remove(Message.FIELD_MESSAGE));
+    /**
+     * Publishes the encoded messages unless the circuit breaker is open.
+     */
+    private void publishGuarded(List<EncodedMessage> messages) throws Exception {
+        if (!circuitBreaker.allowRequest(messages.size())) {
+            return;
+        }
 
-        final String fullMessage = (String) fields.remove(Message.FIELD_FULL_MESSAGE);
-        if (fullMessage != null) {
-            generator.writeStringField("full_message", fullMessage);
+        try {
+            publishBatch(messages);
+        } catch (Exception e) {
+            circuitBreaker.onFailure();
+            throw e;
+        }
+        circuitBreaker.onSuccess();
+        if (draining) {
+            drained.inc(messages.size());
         }
+    }
 
-        final Object fieldTimeStamp = fields.remove(Message.FIELD_TIMESTAMP);
-        final DateTime timestamp;
-        if (fieldTimeStamp instanceof DateTime) {
-            timestamp = (DateTime) fieldTimeStamp;
-        } else {
-            timestamp = Tools.nowUTC();
-        }
-        generator.writeNumberField("timestamp", timestamp.getMillis() / 1000d);
-
-        final Object fieldLevel = fields.remove(Message.FIELD_TIMESTAMP);
-        final Integer level = extractLevel(fieldLevel);
-        if (level != null) {
-            generator.writeNumberField("level", level);
-        }
-
-        for (Map.Entry<String, Object> field : fields.entrySet()) {
-            final String key = field.getKey();
-            final Object value = field.getValue();
-
-            if (value instanceof String) {
-                generator.writeStringField(key, (String) value);
-            } else if (value instanceof Boolean) {
-                generator.writeBooleanField(key, (Boolean) value);
-            } else if (value instanceof Integer) {
-                generator.writeNumberField(key, (Integer) value);
-            } else if (value instanceof Long) {
-                generator.writeNumberField(key, (Long) value);
-            } else if (value instanceof Float) {
-                generator.writeNumberField(key, (Float) value);
-            } else if (value instanceof Double) {
-                generator.writeNumberField(key, (Double) value);
-            } else if (value instanceof BigDecimal) {
-                generator.writeNumberField(key, (BigDecimal) value);
-            } else if (value == null) {
-                generator.writeNullField(key);
+    /**
+     * Publishes the given encoded messages to their subjects. Implementations may pipeline the messages and
+     * wait for the whole batch, the default implementation publishes them one by one.
+     */
+    protected void publishBatch(List<EncodedMessage> messages) throws Exception {
+        for (EncodedMessage message : messages) {
+            for (String subject : message.subjects) {
+                publish(subject, message.payload);
             }
         }
+    }
 
-        generator.writeStringField("_forwarder_cluster_id", clusterId);
-        generator.writeStringField("_forwarder_node_id", nodeId);
-
-        generator.writeEndObject();
+    protected abstract void publish(String channel, byte[] payload) throws Exception;
 
-        generator.flush();
+    void registerGauge(String name, Gauge<?> gauge) {
+        final String metricName = MetricRegistry.name(metricPrefix, name);
+        metricRegistry.remove(metricName);
+        metricRegistry.register(metricName, gauge);
+    }
 
-        return outputStream.toByteArray();
+    protected byte[] toGELFMessage(final Message message) throws IOException {
+        return encoder.encode(message);
     }
 
     static class Config extends MessageOutput.Config {
@@ -244,6 +386,7 @@ abstract class AbstractGelfNatsOutput implements MessageOutput {
         public ConfigurationRequest getRequestedConfiguration() {
             final ConfigurationRequest r = super.getRequestedConfiguration();
             NatsConfig.addFields(r);
+            NatsOutputConfig.addFields(r);
             return r;
         }
     }
@@ -0,0 +1,214 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.annotations.VisibleForTesting;
+import org.graylog.plugins.nats.concurrent.BlockingExecutors;
+import org.graylog.plugins.nats.config.NatsOutputConfig;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Decouples Graylog's output threads from publishing: messages are put into a bounded queue and written by
+ * dedicated publisher threads. When the queue is full, the {@link Policy} decides whether the caller waits
+ * for free space (up to a timeout) or whether the newest or the oldest message is dropped.
+ */
+class AsyncWriteQueue {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncWriteQueue.class);
+    private static final int MAX_DRAIN = 512;
+    private static final long POLL_MILLIS = 100L;
+    private static final long CLOSE_TIMEOUT_SECONDS = 10L;
+
+    enum Policy {
+        BLOCK, DROP_NEWEST, DROP_OLDEST
+    }
+
+    interface Writer {
+        void write(List<Message> messages) throws Exception;
+    }
+
+    private final BlockingQueue<Entry> queue;
+    private final Policy policy;
+    private final long blockTimeoutMillis;
+    private final Writer writer;
+    private final ExecutorService publishers;
+    private final Timer blocked;
+    private final Timer wait;
+    private final Meter dropped;
+    private final Meter errors;
+    private volatile boolean running = true;
+
+    @VisibleForTesting
+    AsyncWriteQueue(int capacity, int publisherCount, Policy policy, long blockTimeoutMillis, Writer writer,
+                    MetricRegistry metricRegistry, String metricPrefix) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = requireNonNull(policy);
+        this.blockTimeoutMillis = blockTimeoutMillis;
+        this.writer = requireNonNull(writer);
+        this.blocked = metricRegistry.timer(MetricRegistry.name(metricPrefix, "asyncQueue", "blocked"));
+        this.wait = metricRegistry.timer(MetricRegistry.name(metricPrefix, "asyncQueue", "wait"));
+        this.dropped = metricRegistry.meter(MetricRegistry.name(metricPrefix, "asyncQueue", "dropped"));
+        this.errors = metricRegistry.meter(MetricRegistry.name(metricPrefix, "asyncQueue", "errors"));
+        final String depthName = MetricRegistry.name(metricPrefix, "asyncQueue", "depth");
+        metricRegistry.remove(depthName);
+        metricRegistry.register(depthName, (Gauge<Integer>) queue::size);
+
+        this.publishers = BlockingExecutors.newLoopExecutor("nats-output-writer-", publisherCount);
+        for (int i = 0; i < publisherCount; i++) {
+            publishers.execute(this::publish);
+        }
+    }
+
+    /**
+     * Creates a queue as configured or returns {@code null} if messages should be written synchronously.
+     */
+    @Nullable
+    static AsyncWriteQueue create(Writer writer, Configuration configuration, MetricRegistry metricRegistry, String metricPrefix) {
+        final int capacity = configuration.getInt(NatsOutputConfig.CK_ASYNC_QUEUE_SIZE, 0);
+        if (capacity <= 0) {
+            return null;
+        }
+        final int publisherCount = Math.max(1, configuration.getInt(NatsOutputConfig.CK_ASYNC_PUBLISHERS, NatsOutputConfig.DEFAULT_ASYNC_PUBLISHERS));
+        final int blockTimeoutMillis = configuration.getInt(NatsOutputConfig.CK_ASYNC_BLOCK_TIMEOUT, NatsOutputConfig.DEFAULT_ASYNC_BLOCK_TIMEOUT);
+
+        Policy policy;
+        try {
+            policy = Policy.valueOf(configuration.getString(NatsOutputConfig.CK_ASYNC_FULL_POLICY, Policy.BLOCK.name()));
+        } catch (IllegalArgumentException e) {
+            policy = Policy.BLOCK;
+        }
+
+        return new AsyncWriteQueue(capacity, publisherCount, policy, blockTimeoutMillis, writer, metricRegistry, metricPrefix);
+    }
+
+    void offer(Message message) throws InterruptedException {
+        final Entry entry = new Entry(message);
+        if (queue.offer(entry)) {
+            return;
+        }
+
+        switch (policy) {
+            case BLOCK:
+                final long start = System.nanoTime();
+                final boolean queued = queue.offer(entry, blockTimeoutMillis, TimeUnit.MILLISECONDS);
+                blocked.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                if (!queued) {
+                    dropped.mark();
+                }
+                break;
+            case DROP_NEWEST:
+                dropped.mark();
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(entry)) {
+                    if (queue.poll() != null) {
+                        dropped.mark();
+                    }
+                }
+                break;
+        }
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    /**
+     * Stops accepting messages and waits until the queued messages have been written.
+     */
+    void close() {
+        close(System.nanoTime() + TimeUnit.SECONDS.toNanos(CLOSE_TIMEOUT_SECONDS));
+    }
+
+    /**
+     * Writes the queued messages until the deadline (in terms of {@link System#nanoTime()}) passes.
+     */
+    void close(long deadline) {
+        running = false;
+        publishers.shutdown();
+        try {
+            if (!publishers.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                LOG.warn("Couldn't write {} queued messages to NATS", queue.size());
+                publishers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            publishers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void publish() {
+        final List<Entry> entries = new ArrayList<>(MAX_DRAIN);
+        final List<Message> messages = new ArrayList<>(MAX_DRAIN);
+        try {
+            while (running || !queue.isEmpty()) {
+                final Entry first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                entries.add(first);
+                queue.drainTo(entries, MAX_DRAIN - 1);
+                final long now = System.nanoTime();
+                for (Entry entry : entries) {
+                    wait.update(now - entry.enqueuedAt, TimeUnit.NANOSECONDS);
+                    messages.add(entry.message);
+                }
+
+                try {
+                    writer.write(messages);
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    errors.mark();
+                    LOG.error("Couldn't write {} messages to NATS", messages.size(), e);
+                } finally {
+                    entries.clear();
+                    messages.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Entry {
+        private final Message message;
+        private final long enqueuedAt = System.nanoTime();
+
+        private Entry(Message message) {
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import org.graylog.plugins.nats.config.NatsOutputConfig;
+import org.graylog2.plugin.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Stops publishing to NATS after a number of consecutive failures.
+ * <p>
+ * While the breaker is open, publishes are rejected immediately, either by failing or by dropping the
+ * messages depending on the {@link Policy}. After the open time a single publish is let through to probe
+ * the connection: if it succeeds the breaker closes, otherwise it opens again.
+ */
+class CircuitBreaker {
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    static final CircuitBreaker DISABLED = new CircuitBreaker();
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    enum Policy {
+        FAIL, DROP
+    }
+
+    static class OpenException extends IOException {
+        OpenException(String message) {
+            super(message);
+        }
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Policy policy;
+    private final LongSupplier nanoClock;
+    private final Meter opened;
+    private final Meter closed;
+    private final Meter rejected;
+    private final AtomicBoolean probing = new AtomicBoolean(false);
+
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+    private volatile int consecutiveFailures;
+
+    private CircuitBreaker() {
+        this.failureThreshold = Integer.MAX_VALUE;
+        this.openNanos = 0L;
+        this.policy = Policy.FAIL;
+        this.nanoClock = System::nanoTime;
+        this.opened = new Meter();
+        this.closed = new Meter();
+        this.rejected = new Meter();
+    }
+
+    @VisibleForTesting
+    CircuitBreaker(int failureThreshold, long openMillis, Policy policy, LongSupplier nanoClock,
+                   MetricRegistry metricRegistry, String metricPrefix) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.policy = requireNonNull(policy);
+        this.nanoClock = requireNonNull(nanoClock);
+        this.opened = metricRegistry.meter(MetricRegistry.name(metricPrefix, "circuitBreaker", "opened"));
+        this.closed = metricRegistry.meter(MetricRegistry.name(metricPrefix, "circuitBreaker", "closed"));
+        this.rejected = metricRegistry.meter(MetricRegistry.name(metricPrefix, "circuitBreaker", "rejected"));
+    }
+
+    static CircuitBreaker create(Configuration configuration, MetricRegistry metricRegistry, String metricPrefix) {
+        final int failureThreshold = configuration.getInt(NatsOutputConfig.CK_BREAKER_FAILURES, 0);
+        if (failureThreshold <= 0) {
+            return DISABLED;
+        }
+        final int openMillis = configuration.getInt(NatsOutputConfig.CK_BREAKER_OPEN_TIME, NatsOutputConfig.DEFAULT_BREAKER_OPEN_TIME);
+
+        Policy policy;
+        try {
+            policy = Policy.valueOf(configuration.getString(NatsOutputConfig.CK_BREAKER_POLICY, Policy.FAIL.name()));
+        } catch (IllegalArgumentException e) {
+            policy = Policy.FAIL;
+        }
+
+        return new CircuitBreaker(failureThreshold, openMillis, policy, System::nanoTime, metricRegistry, metricPrefix);
+    }
+
+    State getState() {
+        return state;
+    }
+
+    /**
+     * Checks whether a publish may be attempted.
+     *
+     * @return {@code true} if the publish may be attempted, {@code false} if the messages should be dropped
+     * @throws OpenException if the breaker is open and the policy is {@link Policy#FAIL}
+     */
+    boolean allowRequest(int messages) throws OpenException {
+        if (this == DISABLED || state == State.CLOSED) {
+            return true;
+        }
+
+        if (state == State.OPEN && nanoClock.getAsLong() - openedAt >= openNanos && probing.compareAndSet(false, true)) {
+            state = State.HALF_OPEN;
+            LOG.debug("Circuit breaker half-open, probing NATS connection");
+            return true;
+        }
+
+        rejected.mark(messages);
+        if (policy == Policy.DROP) {
+            return false;
+        }
+        throw new OpenException("Circuit breaker open, not publishing " + messages + " messages to NATS");
+    }
+
+    void onSuccess() {
+        if (this == DISABLED || (state == State.CLOSED && consecutiveFailures == 0)) {
+            return;
+        }
+
+        synchronized (this) {
+            if (state == State.OPEN) {
+                // Late result of a publish started before the breaker opened; only the probe may close it
+                return;
+            }
+            consecutiveFailures = 0;
+            if (state == State.HALF_OPEN) {
+                state = State.CLOSED;
+                probing.set(false);
+                closed.mark();
+                LOG.info("Circuit breaker closed, resuming publishing to NATS");
+            }
+        }
+    }
+
+    void onFailure() {
+        if (this == DISABLED) {
+            return;
+        }
+
+        synchronized (this) {
+            consecutiveFailures++;
+            if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+                openedAt = nanoClock.getAsLong();
+                state = State.OPEN;
+                probing.set(false);
+                opened.mark();
+                LOG.warn("Circuit breaker opened after {} consecutive failures, not publishing to NATS for {} ms",
+                        consecutiveFailures, TimeUnit.NANOSECONDS.toMillis(openNanos));
+            }
+        }
+    }
+}
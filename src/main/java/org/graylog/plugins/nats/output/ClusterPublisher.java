@@ -0,0 +1,245 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.nats.client.Connection;
+import org.graylog.plugins.nats.health.ConnectionProbe;
+import org.graylog2.plugin.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Publishes encoded messages to a single NATS cluster from its own thread and queue, so a slow or unreachable
+ * cluster only fills its own queue and never delays the other clusters. Messages are dropped when the queue is full.
+ * <p>
+ * The publisher thread connects to the cluster and retries until it succeeds, so an unreachable cluster doesn't
+ * keep the other clusters from starting. Its {@code connected} gauge is 0 until then.
+ */
+class ClusterPublisher {
+    private static final Logger LOG = LoggerFactory.getLogger(ClusterPublisher.class);
+    private static final long POLL_MILLIS = 100L;
+    private static final long CONNECT_RETRY_MILLIS = 2000L;
+
+    private final String name;
+    private final Callable<Connection> connector;
+    private final String[] channels;
+    private final BlockingQueue<Entry> queue;
+    private final Configuration configuration;
+    private final MetricRegistry metricRegistry;
+    private final String metricPrefix;
+    private final ExecutorService executor;
+    private final Timer latency;
+    private final Meter failures;
+    private final Meter connectFailures;
+    private final Meter dropped;
+    private final Counter drained;
+    private final CountDownLatch closing = new CountDownLatch(1);
+    @Nullable
+    private volatile Connection connection;
+    @Nullable
+    private ConnectionProbe probe;
+    private boolean closed;
+    private volatile boolean running = true;
+
+    ClusterPublisher(String name, Callable<Connection> connector, String[] channels, int queueSize,
+                     Configuration configuration, Counter drained, MetricRegistry metricRegistry, String metricPrefix) {
+        this.name = requireNonNull(name);
+        this.connector = requireNonNull(connector);
+        this.channels = requireNonNull(channels);
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.configuration = requireNonNull(configuration);
+        this.metricRegistry = requireNonNull(metricRegistry);
+        this.metricPrefix = requireNonNull(metricPrefix);
+        this.drained = requireNonNull(drained);
+        this.latency = metricRegistry.timer(MetricRegistry.name(metricPrefix, "latency"));
+        this.failures = metricRegistry.meter(MetricRegistry.name(metricPrefix, "failures"));
+        this.connectFailures = metricRegistry.meter(MetricRegistry.name(metricPrefix, "connectFailures"));
+        this.dropped = metricRegistry.meter(MetricRegistry.name(metricPrefix, "dropped"));
+        final String queueName = MetricRegistry.name(metricPrefix, "queue");
+        metricRegistry.remove(queueName);
+        metricRegistry.register(queueName, (Gauge<Integer>) queue::size);
+        final String connectedName = MetricRegistry.name(metricPrefix, "connected");
+        metricRegistry.remove(connectedName);
+        metricRegistry.register(connectedName, (Gauge<Integer>) () -> isConnected() ? 1 : 0);
+
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("nats-fanout-" + name + "-%d")
+                .build());
+        executor.execute(this::publish);
+    }
+
+    /**
+     * Queues the payload for publishing.
+     *
+     * @return {@code false} if the queue is full and the payload has been dropped
+     */
+    boolean offer(byte[] payload) {
+        if (queue.offer(new Entry(payload))) {
+            return true;
+        }
+        dropped.mark();
+        return false;
+    }
+
+    boolean isConnected() {
+        final Connection current = connection;
+        return current != null && current.isConnected();
+    }
+
+    /**
+     * Publishes the queued messages and flushes the connection before closing it, unless the deadline passes first.
+     *
+     * @param deadline the deadline in terms of {@link System#nanoTime()}
+     */
+    void close(long deadline) {
+        running = false;
+        closing.countDown();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                LOG.warn("Couldn't publish {} queued messages to NATS cluster {}", queue.size(), name);
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        final Connection current;
+        final ConnectionProbe currentProbe;
+        synchronized (this) {
+            closed = true;
+            current = connection;
+            currentProbe = probe;
+        }
+        if (current == null) {
+            if (!queue.isEmpty()) {
+                LOG.warn("Dropping {} queued messages, NATS cluster {} has never been connected", queue.size(), name);
+            }
+            return;
+        }
+        if (current.isConnected()) {
+            try {
+                current.flush((int) Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            } catch (Exception e) {
+                LOG.warn("Couldn't flush connection to NATS cluster {}: {}", name, e.getMessage());
+            }
+        }
+        if (currentProbe != null) {
+            currentProbe.stop();
+        }
+        current.close();
+    }
+
+    /**
+     * Connects to the cluster, retrying until it succeeds or the publisher is closed.
+     *
+     * @return the connection or {@code null} if the publisher has been closed first
+     */
+    @Nullable
+    private Connection connect() throws InterruptedException {
+        while (running) {
+            final Connection newConnection;
+            try {
+                newConnection = connector.call();
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                connectFailures.mark();
+                if (connectFailures.getCount() == 1L) {
+                    LOG.warn("Couldn't connect to NATS cluster {}, retrying in the background: {}", name, e.getMessage());
+                } else {
+                    LOG.debug("Couldn't connect to NATS cluster {}", name, e);
+                }
+                closing.await(CONNECT_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+                continue;
+            }
+
+            synchronized (this) {
+                if (closed) {
+                    newConnection.close();
+                    return null;
+                }
+                probe = ConnectionProbe.start(newConnection, name, configuration, metricRegistry, metricPrefix);
+                connection = newConnection;
+            }
+            if (connectFailures.getCount() > 0L) {
+                LOG.info("Connected to NATS cluster {}", name);
+            }
+            return newConnection;
+        }
+        return null;
+    }
+
+    private void publish() {
+        try {
+            final Connection connection = connect();
+            if (connection == null) {
+                return;
+            }
+            while (running || !queue.isEmpty()) {
+                final Entry entry = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (entry == null) {
+                    continue;
+                }
+
+                try {
+                    for (String channel : channels) {
+                        connection.publish(channel, entry.payload);
+                    }
+                    latency.update(System.nanoTime() - entry.enqueuedAt, TimeUnit.NANOSECONDS);
+                    if (!running) {
+                        drained.inc();
+                    }
+                } catch (Exception e) {
+                    failures.mark();
+                    LOG.debug("Couldn't publish message to NATS cluster {}", name, e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Entry {
+        private final byte[] payload;
+        private final long enqueuedAt = System.nanoTime();
+
+        private Entry(byte[] payload) {
+            this.payload = payload;
+        }
+    }
+}
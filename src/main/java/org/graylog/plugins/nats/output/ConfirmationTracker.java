@@ -0,0 +1,236 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.Subscription;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Tracks confirmations of messages published with a reply subject.
+ * <p>
+ * Every message gets a unique reply subject below a private inbox of the connection and a consumer
+ * confirms it by publishing any message to that subject. Confirmations are received asynchronously by
+ * a single wildcard subscription, so a batch of messages can be published back to back and costs a
+ * single round trip. The number of unconfirmed messages is bounded by the window size.
+ * <p>
+ * A {@link ReplyValidator} may reject replies, e. g. error responses of a JetStream server.
+ */
+class ConfirmationTracker {
+    static final ReplyValidator ANY_REPLY = reply -> null;
+
+    interface ReplyValidator {
+        /**
+         * @return the reason for rejecting the reply or {@code null} if the message has been confirmed
+         */
+        @Nullable
+        Exception validate(byte[] reply);
+    }
+
+    private final Connection connection;
+    private final ReplyValidator validator;
+    private final Semaphore window;
+    private final long timeoutMillis;
+    private final Timer latency;
+    private final Meter timeouts;
+    private final Meter rejections;
+    private final ConcurrentMap<Long, PendingConfirmation> pending = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final String inboxPrefix;
+    private final Subscription subscription;
+
+    ConfirmationTracker(Connection connection, int windowSize, long timeoutMillis,
+                        MetricRegistry metricRegistry, String metricPrefix) {
+        this(connection, windowSize, timeoutMillis, ANY_REPLY, metricRegistry, metricPrefix);
+    }
+
+    ConfirmationTracker(Connection connection, int windowSize, long timeoutMillis, ReplyValidator validator,
+                        MetricRegistry metricRegistry, String metricPrefix) {
+        this.connection = requireNonNull(connection);
+        this.validator = requireNonNull(validator);
+        this.window = new Semaphore(windowSize);
+        this.timeoutMillis = timeoutMillis;
+        this.latency = metricRegistry.timer(MetricRegistry.name(metricPrefix, "confirmation", "latency"));
+        this.timeouts = metricRegistry.meter(MetricRegistry.name(metricPrefix, "confirmation", "timeouts"));
+        this.rejections = metricRegistry.meter(MetricRegistry.name(metricPrefix, "confirmation", "rejections"));
+        this.inboxPrefix = connection.newInbox() + ".";
+        this.subscription = connection.subscribe(inboxPrefix + "*", this::confirm);
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    Batch newBatch() {
+        return new Batch();
+    }
+
+    private void confirm(Message reply) {
+        final long id;
+        try {
+            id = Long.parseLong(reply.getSubject().substring(inboxPrefix.length()));
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            return;
+        }
+
+        final PendingConfirmation confirmation = pending.remove(id);
+        if (confirmation != null) {
+            window.release();
+            latency.update(System.nanoTime() - confirmation.publishedAt, TimeUnit.NANOSECONDS);
+            final Exception rejection = validator.validate(reply.getData() == null ? new byte[0] : reply.getData());
+            if (rejection == null) {
+                confirmation.future.complete(null);
+            } else {
+                rejections.mark();
+                confirmation.future.completeExceptionally(new RejectedReplyException(rejection));
+            }
+        }
+    }
+
+    private void expire(long id) {
+        if (release(id, new TimeoutException("Message hasn't been confirmed in time"))) {
+            timeouts.mark();
+        }
+    }
+
+    /**
+     * Stops waiting for the confirmation of a message and frees its place in the window.
+     *
+     * @return whether the message had still been waiting for its confirmation
+     */
+    private boolean release(long id, Exception reason) {
+        final PendingConfirmation confirmation = pending.remove(id);
+        if (confirmation == null) {
+            return false;
+        }
+        window.release();
+        confirmation.future.completeExceptionally(reason);
+        return true;
+    }
+
+    void close() {
+        subscription.close();
+        for (Long id : pending.keySet()) {
+            release(id, new IOException("Output has been stopped"));
+        }
+    }
+
+    private static class RejectedReplyException extends IOException {
+        private RejectedReplyException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    private static class PendingConfirmation {
+        private final long publishedAt = System.nanoTime();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+    }
+
+    /**
+     * Messages published together whose confirmations are awaited together.
+     */
+    class Batch {
+        private final List<Long> ids = new ArrayList<>();
+        private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        void publish(String channel, byte[] payload) throws Exception {
+            if (!window.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.mark();
+                throw new TimeoutException("Too many unconfirmed messages");
+            }
+
+            final long id = sequence.incrementAndGet();
+            final PendingConfirmation confirmation = new PendingConfirmation();
+            pending.put(id, confirmation);
+            ids.add(id);
+            futures.add(confirmation.future);
+            try {
+                connection.publish(channel, inboxPrefix + id, payload);
+            } catch (Exception e) {
+                if (pending.remove(id) != null) {
+                    window.release();
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Stops waiting for the confirmations of the messages of this batch, so a batch which failed before
+         * {@link #await()} doesn't keep its messages in the window forever. Confirmed messages aren't affected.
+         */
+        void abort() {
+            for (Long id : ids) {
+                release(id, new IOException("Batch has been aborted"));
+            }
+        }
+
+        /**
+         * Waits until all messages of this batch have been confirmed.
+         *
+         * @throws TimeoutException if at least one message hasn't been confirmed in time
+         * @throws IOException      if at least one confirmation has been rejected
+         */
+        void await() throws InterruptedException, TimeoutException, IOException {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            int unconfirmed = 0;
+            int rejected = 0;
+            Throwable rejection = null;
+            for (int i = 0; i < futures.size(); i++) {
+                final CompletableFuture<Void> future = futures.get(i);
+                try {
+                    future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    expire(ids.get(i));
+                    unconfirmed++;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RejectedReplyException) {
+                        rejected++;
+                        rejection = e.getCause().getCause();
+                    } else {
+                        unconfirmed++;
+                    }
+                }
+            }
+
+            if (rejected > 0) {
+                throw new IOException(rejected + " of " + futures.size() + " messages have been rejected", rejection);
+            }
+            if (unconfirmed > 0) {
+                throw new TimeoutException(unconfirmed + " of " + futures.size() + " messages haven't been confirmed");
+            }
+        }
+    }
+}
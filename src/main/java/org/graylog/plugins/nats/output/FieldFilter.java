@@ -0,0 +1,121 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+/**
+ * Decides which message fields are written by the GELF NATS outputs.
+ * <p>
+ * Patterns are either exact field names or prefixes ending with {@code *}. They are compiled once
+ * into a set of exact names and an array of prefixes, and the result for each field name is cached
+ * because the set of field names seen by an output is usually small.
+ */
+final class FieldFilter {
+    static final FieldFilter ALLOW_ALL = new FieldFilter(ImmutableSet.of(), new String[0], ImmutableSet.of(), new String[0]);
+
+    private static final int MAX_CACHE_SIZE = 4096;
+
+    private final Set<String> includedNames;
+    private final String[] includedPrefixes;
+    private final Set<String> excludedNames;
+    private final String[] excludedPrefixes;
+    private final boolean includeAll;
+    private final ConcurrentMap<String, Boolean> cache = new ConcurrentHashMap<>();
+
+    private FieldFilter(Set<String> includedNames, String[] includedPrefixes,
+                        Set<String> excludedNames, String[] excludedPrefixes) {
+        this.includedNames = includedNames;
+        this.includedPrefixes = includedPrefixes;
+        this.excludedNames = excludedNames;
+        this.excludedPrefixes = excludedPrefixes;
+        this.includeAll = includedNames.isEmpty() && includedPrefixes.length == 0;
+    }
+
+    static FieldFilter create(String includes, String excludes) {
+        final String[] includePatterns = splitByNewline(includes);
+        final String[] excludePatterns = splitByNewline(excludes);
+        if (includePatterns.length == 0 && excludePatterns.length == 0) {
+            return ALLOW_ALL;
+        }
+
+        return new FieldFilter(
+                names(includePatterns), prefixes(includePatterns),
+                names(excludePatterns), prefixes(excludePatterns));
+    }
+
+    boolean test(String field) {
+        if (this == ALLOW_ALL) {
+            return true;
+        }
+
+        final Boolean cached = cache.get(field);
+        if (cached != null) {
+            return cached;
+        }
+
+        final boolean result = (includeAll || matches(field, includedNames, includedPrefixes))
+                && !matches(field, excludedNames, excludedPrefixes);
+        if (cache.size() < MAX_CACHE_SIZE) {
+            cache.put(field, result);
+        }
+        return result;
+    }
+
+    private static boolean matches(String field, Set<String> names, String[] prefixes) {
+        if (names.contains(field)) {
+            return true;
+        }
+        for (String prefix : prefixes) {
+            if (field.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Set<String> names(String[] patterns) {
+        return Arrays.stream(patterns)
+                .filter(p -> !p.endsWith("*"))
+                .collect(Collectors.toSet());
+    }
+
+    private static String[] prefixes(String[] patterns) {
+        return Arrays.stream(patterns)
+                .filter(p -> p.endsWith("*"))
+                .map(p -> p.substring(0, p.length() - 1))
+                .toArray(String[]::new);
+    }
+
+    private static String[] splitByNewline(String text) {
+        if (text == null) {
+            return new String[0];
+        }
+        return StreamSupport.stream(Arrays.spliterator(text.split("\n")), false)
+                .map(String::trim)
+                .filter(s -> !s.isEmpty())
+                .toArray(String[]::new);
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.assistedinject.Assisted;
+import org.graylog.plugins.nats.concurrent.Deadlines;
+import org.graylog.plugins.nats.config.JetStreamConfig;
+import org.graylog2.plugin.ServerStatus;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.inputs.annotations.ConfigClass;
+import org.graylog2.plugin.inputs.annotations.FactoryClass;
+import org.graylog2.plugin.outputs.MessageOutput;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+import org.graylog2.plugin.streams.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Publishes GELF messages to JetStream streams. Every message is published with a reply subject and
+ * the ACKs of the JetStream server are awaited per batch, so a batch costs a single round trip while
+ * the number of outstanding ACKs is bounded.
+ */
+public class GelfJetStreamOutput extends AbstractGelfNatsOutput {
+    private static final Logger LOG = LoggerFactory.getLogger(GelfJetStreamOutput.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final ConfirmationTracker ackTracker;
+
+    @Inject
+    public GelfJetStreamOutput(@Assisted Stream stream,
+                               @Assisted Configuration configuration,
+                               ServerStatus serverStatus,
+                               MetricRegistry metricRegistry) throws MessageOutputConfigurationException {
+        super(
+                createNatsConnection(configuration),
+                getChannels(configuration),
+                createEncoder(configuration, serverStatus),
+                configuration,
+                metricRegistry,
+                metricPrefix(GelfJetStreamOutput.class, stream)
+        );
+
+        try {
+            ackTracker = new ConfirmationTracker(
+                    connection,
+                    configuration.getInt(JetStreamConfig.CK_PUBLISH_ACK_WINDOW, JetStreamConfig.DEFAULT_PUBLISH_ACK_WINDOW),
+                    configuration.getInt(JetStreamConfig.CK_PUBLISH_ACK_TIMEOUT, JetStreamConfig.DEFAULT_PUBLISH_ACK_TIMEOUT),
+                    GelfJetStreamOutput::validatePubAck,
+                    metricRegistry,
+                    metricPrefix);
+            registerGauge("confirmation.pending", (Gauge<Integer>) ackTracker::getPendingCount);
+            start(configuration);
+        } catch (RuntimeException e) {
+            // Graylog doesn't stop outputs which failed to start
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks the ACK of the JetStream server, which is a JSON document like {@code {"stream":"logs","seq":42}}
+     * or {@code {"error":{"code":503,"description":"..."}}}.
+     */
+    @Nullable
+    static Exception validatePubAck(byte[] reply) {
+        final JsonNode pubAck;
+        try {
+            pubAck = OBJECT_MAPPER.readTree(reply);
+        } catch (IOException e) {
+            return new IOException("Invalid ACK from JetStream server", e);
+        }
+        if (pubAck == null || !pubAck.isObject()) {
+            return new IOException("Invalid ACK from JetStream server");
+        }
+
+        final JsonNode error = pubAck.path("error");
+        if (!error.isMissingNode()) {
+            return new IOException("JetStream server rejected message: " + error.path("description").asText());
+        }
+        return null;
+    }
+
+    @Override
+    protected void publishBatch(List<EncodedMessage> messages) throws Exception {
+        final ConfirmationTracker.Batch batch = ackTracker.newBatch();
+        try {
+            for (EncodedMessage message : messages) {
+                for (String subject : message.subjects) {
+                    batch.publish(subject, message.payload);
+                }
+            }
+            batch.await();
+        } finally {
+            batch.abort();
+        }
+    }
+
+    @Override
+    protected void publish(String channel, byte[] payload) throws Exception {
+        publishBatch(Collections.singletonList(new EncodedMessage(payload, new String[]{channel})));
+    }
+
+    @Override
+    void awaitOutstanding(long deadline) {
+        if (!Deadlines.awaitUntil(() -> ackTracker.getPendingCount() == 0, deadline)) {
+            LOG.warn("{} messages haven't been acknowledged by JetStream before stopping", ackTracker.getPendingCount());
+        }
+    }
+
+    @Override
+    void closeConnection() {
+        if (ackTracker != null) {
+            ackTracker.close();
+        }
+        super.closeConnection();
+    }
+
+    @FactoryClass
+    public interface Factory extends MessageOutput.Factory<GelfJetStreamOutput> {
+        @Override
+        GelfJetStreamOutput create(Stream stream, Configuration configuration);
+
+        @Override
+        GelfJetStreamOutput.Config getConfig();
+
+        @Override
+        GelfJetStreamOutput.Descriptor getDescriptor();
+    }
+
+    @ConfigClass
+    public static class Config extends AbstractGelfNatsOutput.Config {
+        @Override
+        public ConfigurationRequest getRequestedConfiguration() {
+            final ConfigurationRequest r = super.getRequestedConfiguration();
+            JetStreamConfig.addOutputFields(r);
+            return r;
+        }
+    }
+
+    public static class Descriptor extends MessageOutput.Descriptor {
+        public Descriptor() {
+            super("GELF NATS JetStream Output", false, "", "An output sending messages to NATS JetStream streams.");
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.collect.ImmutableSet;
+import org.graylog.plugins.nats.codec.GelfEncoding;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.joda.time.DateTime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Encodes Graylog messages as GELF documents in the configured {@link GelfEncoding}.
+ */
+final class GelfMessageEncoder {
+    private static final Set<String> GELF_HEADER_FIELDS = ImmutableSet.of(
+            Message.FIELD_SOURCE, Message.FIELD_MESSAGE, Message.FIELD_FULL_MESSAGE, Message.FIELD_TIMESTAMP);
+
+    private final GelfEncoding encoding;
+    private final FieldFilter fieldFilter;
+    private final String nodeId;
+    private final String clusterId;
+
+    GelfMessageEncoder(GelfEncoding encoding, FieldFilter fieldFilter, String nodeId, String clusterId) {
+        this.encoding = requireNonNull(encoding);
+        this.fieldFilter = requireNonNull(fieldFilter);
+        this.nodeId = requireNonNull(nodeId);
+        this.clusterId = requireNonNull(clusterId);
+    }
+
+    GelfEncoding getEncoding() {
+        return encoding;
+    }
+
+    byte[] encode(final Message message) throws IOException {
+        final Map<String, Object> fields = message.getFields();
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(512);
+        try (final JsonGenerator generator = encoding.getFactory().createGenerator(outputStream)) {
+            generator.writeStartObject();
+            generator.writeStringField("version", "1.1");
+            generator.writeStringField("host", (String) fields.get(Message.FIELD_SOURCE));
+            generator.writeStringField("short_message", (String) fields.get(Message.FIELD_MESSAGE));
+
+            final String fullMessage = (String) fields.get(Message.FIELD_FULL_MESSAGE);
+            if (fullMessage != null && fieldFilter.test(Message.FIELD_FULL_MESSAGE)) {
+                generator.writeStringField("full_message", fullMessage);
+            }
+
+            final Object fieldTimeStamp = fields.get(Message.FIELD_TIMESTAMP);
+            final DateTime timestamp;
+            if (fieldTimeStamp instanceof DateTime) {
+                timestamp = (DateTime) fieldTimeStamp;
+            } else {
+                timestamp = Tools.nowUTC();
+            }
+            generator.writeNumberField("timestamp", timestamp.getMillis() / 1000d);
+
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                final String key = field.getKey();
+                if (GELF_HEADER_FIELDS.contains(key) || !fieldFilter.test(key)) {
+                    continue;
+                }
+
+                final Object value = field.getValue();
+                if (value instanceof String) {
+                    generator.writeStringField(key, (String) value);
+                } else if (value instanceof Boolean) {
+                    generator.writeBooleanField(key, (Boolean) value);
+                } else if (value instanceof Integer) {
+                    generator.writeNumberField(key, (Integer) value);
+                } else if (value instanceof Long) {
+                    generator.writeNumberField(key, (Long) value);
+                } else if (value instanceof Float) {
+                    generator.writeNumberField(key, (Float) value);
+                } else if (value instanceof Double) {
+                    generator.writeNumberField(key, (Double) value);
+                } else if (value instanceof BigDecimal) {
+                    generator.writeNumberField(key, (BigDecimal) value);
+                } else if (value == null) {
+                    generator.writeNullField(key);
+                }
+            }
+
+            generator.writeStringField("_forwarder_cluster_id", clusterId);
+            generator.writeStringField("_forwarder_node_id", nodeId);
+
+            generator.writeEndObject();
+        }
+
+        return outputStream.toByteArray();
+    }
+}
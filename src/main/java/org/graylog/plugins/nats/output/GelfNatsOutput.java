@@ -17,10 +17,14 @@
  */
 package org.graylog.plugins.nats.output;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
 import com.google.inject.assistedinject.Assisted;
-import org.graylog2.plugin.Message;
+import org.graylog.plugins.nats.concurrent.Deadlines;
+import org.graylog.plugins.nats.config.NatsOutputConfig;
 import org.graylog2.plugin.ServerStatus;
 import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.outputs.MessageOutput;
@@ -29,28 +33,90 @@ import org.graylog2.plugin.streams.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.util.List;
 
 public class GelfNatsOutput extends AbstractGelfNatsOutput {
     private static final Logger LOG = LoggerFactory.getLogger(GelfNatsOutput.class);
 
+    @Nullable
+    private final ConfirmationTracker confirmationTracker;
+
     @Inject
-    public GelfNatsOutput(@Assisted Configuration configuration, ServerStatus serverStatus) throws MessageOutputConfigurationException {
+    public GelfNatsOutput(@Assisted Stream stream,
+                          @Assisted Configuration configuration,
+                          ServerStatus serverStatus,
+                          MetricRegistry metricRegistry) throws MessageOutputConfigurationException {
         super(
                 createNatsConnection(configuration),
                 getChannels(configuration),
-                serverStatus.getNodeId().toString(),
-                serverStatus.getClusterId()
+                createEncoder(configuration, serverStatus),
+                configuration,
+                metricRegistry,
+                metricPrefix(GelfNatsOutput.class, stream)
         );
+
+        try {
+            if (configuration.getBoolean(NatsOutputConfig.CK_CONFIRM_DELIVERY, false)) {
+                confirmationTracker = new ConfirmationTracker(
+                        connection,
+                        configuration.getInt(NatsOutputConfig.CK_CONFIRM_WINDOW, NatsOutputConfig.DEFAULT_CONFIRM_WINDOW),
+                        configuration.getInt(NatsOutputConfig.CK_CONFIRM_TIMEOUT, NatsOutputConfig.DEFAULT_CONFIRM_TIMEOUT),
+                        metricRegistry,
+                        metricPrefix);
+                registerGauge("confirmation.pending", (Gauge<Integer>) confirmationTracker::getPendingCount);
+            } else {
+                confirmationTracker = null;
+            }
+            start(configuration);
+        } catch (RuntimeException e) {
+            // Graylog doesn't stop outputs which failed to start
+            stop();
+            throw e;
+        }
+    }
+
+    @Override
+    protected void publishBatch(List<EncodedMessage> messages) throws Exception {
+        if (confirmationTracker == null) {
+            super.publishBatch(messages);
+            return;
+        }
+
+        final ConfirmationTracker.Batch batch = confirmationTracker.newBatch();
+        try {
+            for (EncodedMessage message : messages) {
+                for (String subject : message.subjects) {
+                    batch.publish(subject, message.payload);
+                }
+            }
+            batch.await();
+        } finally {
+            batch.abort();
+        }
     }
 
     @Override
-    public void write(Message message) throws Exception {
-        for (String channel : channels) {
-            connection.publish(channel, toGELFMessage(message));
+    protected void publish(String channel, byte[] payload) throws Exception {
+        connection.publish(channel, payload);
+    }
+
+    @Override
+    void awaitOutstanding(long deadline) {
+        if (confirmationTracker != null && !Deadlines.awaitUntil(() -> confirmationTracker.getPendingCount() == 0, deadline)) {
+            LOG.warn("{} messages haven't been confirmed before stopping", confirmationTracker.getPendingCount());
         }
     }
 
+    @Override
+    void closeConnection() {
+        if (confirmationTracker != null) {
+            confirmationTracker.close();
+        }
+        super.closeConnection();
+    }
+
     @FactoryClass
     public interface Factory extends MessageOutput.Factory<GelfNatsOutput> {
         @Override
@@ -65,6 +131,12 @@ public class GelfNatsOutput extends AbstractGelfNatsOutput {
 
     @ConfigClass
     public static class Config extends AbstractGelfNatsOutput.Config {
+        @Override
+        public ConfigurationRequest getRequestedConfiguration() {
+            final ConfigurationRequest r = super.getRequestedConfiguration();
+            NatsOutputConfig.addConfirmationFields(r);
+            return r;
+        }
     }
 
     public static class Descriptor extends MessageOutput.Descriptor {
@@ -17,14 +17,19 @@
  */
 package org.graylog.plugins.nats.output;
 
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.inject.assistedinject.Assisted;
+import io.nats.stan.AckHandler;
 import io.nats.stan.Connection;
 import io.nats.stan.ConnectionFactory;
+import org.graylog.plugins.nats.concurrent.BlockingExecutors;
 import org.graylog.plugins.nats.config.NatsStreamingConfig;
-import org.graylog2.plugin.Message;
 import org.graylog2.plugin.ServerStatus;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.NumberField;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.outputs.MessageOutput;
@@ -33,11 +38,21 @@ import org.graylog2.plugin.streams.Stream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class GelfNatsStreamingOutput extends AbstractGelfNatsOutput {
     private static final Logger LOG = LoggerFactory.getLogger(GelfNatsStreamingOutput.class);
@@ -47,6 +62,7 @@ public class GelfNatsStreamingOutput extends AbstractGelfNatsOutput {
     private static final String CK_ACK_TIMEOUT = "ack_timeout";
     private static final String CK_DISCOVER_PREFIX = "discover_prefix";
     private static final String CK_MAX_PUB_ACKS_IN_FLIGHT = "max_pub_acks_in_flight";
+    private static final String CK_PUBLISH_CONCURRENCY = "publish_concurrency";
 
     private static final String DEFAULT_DISCOVER_PREFIX = "_STAN.discover";
     private static final int DEFAULT_MAX_PUB_ACKS_IN_FLIGHT = 16384;
@@ -54,16 +70,106 @@ public class GelfNatsStreamingOutput extends AbstractGelfNatsOutput {
 
     private final AtomicBoolean isRunning = new AtomicBoolean(false);
     private final Connection streamingConnection;
+    private final long ackTimeout;
+    @Nullable
+    private final ExecutorService publishExecutor;
+    private final Semaphore publishPermits;
+    @Nullable
+    private final PublishLedger ledger;
+    @Nullable
+    private final ExecutorService replayExecutor;
 
     @Inject
-    public GelfNatsStreamingOutput(@Assisted Configuration configuration, ServerStatus serverStatus) throws MessageOutputConfigurationException {
+    public GelfNatsStreamingOutput(@Assisted Stream stream,
+                                   @Assisted Configuration configuration,
+                                   ServerStatus serverStatus,
+                                   MetricRegistry metricRegistry) throws MessageOutputConfigurationException {
         super(
                 createNatsConnection(configuration),
                 getChannels(configuration),
-                serverStatus.getNodeId().toString(),
-                serverStatus.getClusterId()
+                createEncoder(configuration, serverStatus),
+                configuration,
+                metricRegistry,
+                metricPrefix(GelfNatsStreamingOutput.class, stream)
         );
-        streamingConnection = createNatsStreamingConnection(configuration, connection);
+        ackTimeout = configuration.getInt(CK_ACK_TIMEOUT, DEFAULT_ACK_TIMEOUT);
+        final int publishConcurrency = configuration.getInt(CK_PUBLISH_CONCURRENCY, 0);
+        try {
+            streamingConnection = createNatsStreamingConnection(configuration, connection);
+            try {
+                ledger = PublishLedger.create(configuration, metricRegistry, metricPrefix);
+            } catch (IOException e) {
+                throw new MessageOutputConfigurationException("Couldn't open publish ledger: " + e.getMessage());
+            }
+
+            if (publishConcurrency > 0) {
+                publishExecutor = BlockingExecutors.newExecutor("nats-streaming-publish-", publishConcurrency);
+                publishPermits = new Semaphore(publishConcurrency);
+                LOG.debug("Publishing with {} concurrent blocking publishes on {} threads",
+                        publishConcurrency, BlockingExecutors.isVirtual() ? "virtual" : "platform");
+            } else {
+                publishExecutor = null;
+                publishPermits = null;
+            }
+
+            if (ledger != null && !ledger.getRecovered().isEmpty()) {
+                // Replaying may take up to the ACK timeout, which mustn't delay starting the output
+                replayExecutor = BlockingExecutors.newLoopExecutor("nats-streaming-ledger-replay-", 1);
+                replayExecutor.execute(() -> replay(ledger));
+                replayExecutor.shutdown();
+            } else {
+                replayExecutor = null;
+            }
+            start(configuration);
+        } catch (MessageOutputConfigurationException | RuntimeException e) {
+            // Graylog doesn't stop outputs which failed to start
+            stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Publishes the messages which hadn't been acknowledged when the output stopped. Messages which still
+     * aren't acknowledged stay in the ledger for the next start.
+     */
+    private void replay(PublishLedger ledger) {
+        final List<PublishLedger.Entry> entries = ledger.getRecovered();
+        final Meter failures = metricRegistry.meter(MetricRegistry.name(metricPrefix, "ledger", "replay", "failures"));
+        final AtomicLong failed = new AtomicLong();
+        final CountDownLatch acks = new CountDownLatch(entries.size());
+        try (Timer.Context ignored = metricRegistry.timer(MetricRegistry.name(metricPrefix, "ledger", "replay")).time()) {
+            for (PublishLedger.Entry entry : entries) {
+                try {
+                    streamingConnection.publish(entry.subject, entry.payload, (guid, e) -> {
+                        if (e == null) {
+                            ledger.ack(entry.id);
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                        acks.countDown();
+                    });
+                } catch (IOException | IllegalStateException e) {
+                    LOG.debug("Couldn't replay message {} from publish ledger", entry.id, e);
+                    failed.incrementAndGet();
+                    acks.countDown();
+                }
+            }
+            if (!acks.await(ackTimeout, TimeUnit.MILLISECONDS)) {
+                failed.addAndGet(acks.getCount());
+            }
+        } catch (InterruptedException e) {
+            LOG.debug("Stopped replaying messages from publish ledger");
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        failures.mark(failed.get());
+        if (failed.get() > 0L) {
+            LOG.warn("Couldn't replay {} of {} messages from publish ledger, they will be replayed on the next start",
+                    failed.get(), entries.size());
+        } else {
+            LOG.info("Replayed {} messages from publish ledger", entries.size());
+        }
     }
 
     private static Connection createNatsStreamingConnection(Configuration configuration, io.nats.client.Connection connection) throws MessageOutputConfigurationException {
@@ -87,7 +193,13 @@ public class GelfNatsStreamingOutput extends AbstractGelfNatsOutput {
     }
 
     @Override
-    public void stop() {
+    void closeConnection() {
+        if (publishExecutor != null) {
+            publishExecutor.shutdown();
+        }
+        if (replayExecutor != null) {
+            replayExecutor.shutdownNow();
+        }
         if (isRunning() && streamingConnection != null) {
             LOG.debug("Closing NATS Streaming connection");
             try {
@@ -97,15 +209,107 @@ public class GelfNatsStreamingOutput extends AbstractGelfNatsOutput {
                 LOG.error("Error closing NATS Streaming connection", e);
             }
         }
+        if (ledger != null) {
+            ledger.close();
+        }
+
+        super.closeConnection();
+    }
+
+    @Override
+    protected void publish(String channel, byte[] payload) throws Exception {
+        final long id = record(channel, payload);
+        streamingConnection.publish(channel, payload);
+        acknowledge(id);
+    }
+
+    private long record(String subject, byte[] payload) throws IOException {
+        return ledger == null ? -1L : ledger.append(subject, payload);
+    }
 
-        super.stop();
+    private void acknowledge(long id) {
+        if (ledger != null && id >= 0L) {
+            ledger.ack(id);
+        }
     }
 
+    /**
+     * Publishes all messages asynchronously and waits for their ACKs afterwards, so the batch
+     * only costs a single round trip.
+     */
     @Override
-    public void write(Message message) throws Exception {
-        for (String channel : channels) {
-            streamingConnection.publish(channel, toGELFMessage(message));
+    protected void publishBatch(List<EncodedMessage> messages) throws Exception {
+        final int publishes = countPublishes(messages);
+        if (publishes == 1) {
+            final EncodedMessage message = messages.get(0);
+            publish(message.subjects[0], message.payload);
+            return;
+        }
+        if (publishExecutor != null) {
+            publishConcurrently(messages, publishes);
+            return;
+        }
+
+        final CountDownLatch acks = new CountDownLatch(publishes);
+        final AtomicReference<Exception> error = new AtomicReference<>();
+        for (EncodedMessage message : messages) {
+            for (String subject : message.subjects) {
+                final long id = record(subject, message.payload);
+                final AckHandler ackHandler = (guid, e) -> {
+                    if (e == null) {
+                        acknowledge(id);
+                    } else {
+                        error.compareAndSet(null, e);
+                    }
+                    acks.countDown();
+                };
+                streamingConnection.publish(subject, message.payload, ackHandler);
+            }
+        }
+
+        if (!acks.await(ackTimeout, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("Timed out waiting for " + acks.getCount() + " ACKs from NATS Streaming server");
+        }
+        if (error.get() != null) {
+            throw error.get();
+        }
+    }
+
+    /**
+     * Runs blocking publishes concurrently, bounded by the configured publish concurrency.
+     */
+    private void publishConcurrently(List<EncodedMessage> messages, int publishes) throws Exception {
+        final List<Future<Void>> futures = new ArrayList<>(publishes);
+        for (EncodedMessage message : messages) {
+            for (String subject : message.subjects) {
+                publishPermits.acquire();
+                futures.add(publishExecutor.submit(() -> {
+                    try {
+                        publish(subject, message.payload);
+                        return null;
+                    } finally {
+                        publishPermits.release();
+                    }
+                }));
+            }
+        }
+
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                final Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+    }
+
+    private static int countPublishes(List<EncodedMessage> messages) {
+        int publishes = 0;
+        for (EncodedMessage message : messages) {
+            publishes += message.subjects.length;
         }
+        return publishes;
     }
 
     @FactoryClass
@@ -126,6 +330,13 @@ public class GelfNatsStreamingOutput extends AbstractGelfNatsOutput {
         public ConfigurationRequest getRequestedConfiguration() {
             final ConfigurationRequest r = super.getRequestedConfiguration();
             NatsStreamingConfig.addFields(r);
+            NatsStreamingConfig.addLedgerFields(r);
+            r.addField(new NumberField(
+                    CK_PUBLISH_CONCURRENCY,
+                    "Publish concurrency",
+                    0,
+                    "The number of blocking publishes running concurrently (on virtual threads on Java 24+), 0 pipelines asynchronous publishes instead",
+                    NumberField.Attribute.ONLY_POSITIVE));
             return r;
         }
     }
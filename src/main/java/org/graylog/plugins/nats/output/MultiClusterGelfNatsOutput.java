@@ -0,0 +1,201 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.assistedinject.Assisted;
+import org.graylog.plugins.nats.config.NatsConfig;
+import org.graylog.plugins.nats.config.NatsOutputConfig;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.ServerStatus;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.configuration.fields.ConfigurationField;
+import org.graylog2.plugin.configuration.fields.NumberField;
+import org.graylog2.plugin.configuration.fields.TextField;
+import org.graylog2.plugin.inputs.annotations.ConfigClass;
+import org.graylog2.plugin.inputs.annotations.FactoryClass;
+import org.graylog2.plugin.outputs.MessageOutput;
+import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+import org.graylog2.plugin.streams.Stream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes every message to several independent NATS clusters. Messages are encoded once and handed to one
+ * {@link ClusterPublisher} per cluster, which publishes them in parallel to the other clusters.
+ * Clusters which are unreachable on startup are connected in the background.
+ */
+public class MultiClusterGelfNatsOutput implements MessageOutput {
+    private static final Logger LOG = LoggerFactory.getLogger(MultiClusterGelfNatsOutput.class);
+
+    static final String CK_CLUSTERS = "clusters";
+    static final String CK_CLUSTER_QUEUE_SIZE = "cluster_queue_size";
+
+    private static final int DEFAULT_CLUSTER_QUEUE_SIZE = 10000;
+
+    private final AtomicBoolean isRunning = new AtomicBoolean(false);
+    private final GelfMessageEncoder encoder;
+    private final List<ClusterPublisher> publishers;
+    private final MetricRegistry metricRegistry;
+    private final String metricPrefix;
+    private final long drainTimeoutMillis;
+    private final Counter drained;
+
+    @Inject
+    public MultiClusterGelfNatsOutput(@Assisted Stream stream,
+                                      @Assisted Configuration configuration,
+                                      ServerStatus serverStatus,
+                                      MetricRegistry metricRegistry) throws MessageOutputConfigurationException {
+        this.encoder = AbstractGelfNatsOutput.createEncoder(configuration, serverStatus);
+        this.metricRegistry = metricRegistry;
+        this.metricPrefix = AbstractGelfNatsOutput.metricPrefix(MultiClusterGelfNatsOutput.class, stream);
+        this.drainTimeoutMillis = configuration.getInt(NatsOutputConfig.CK_DRAIN_TIMEOUT, NatsOutputConfig.DEFAULT_DRAIN_TIMEOUT);
+        this.drained = metricRegistry.counter(MetricRegistry.name(MultiClusterGelfNatsOutput.class, "drain", "messages"));
+        this.publishers = createPublishers(configuration);
+        isRunning.set(true);
+    }
+
+    private List<ClusterPublisher> createPublishers(Configuration configuration) throws MessageOutputConfigurationException {
+        final String[] clusters = AbstractGelfNatsOutput.splitByNewline(configuration.getString(CK_CLUSTERS, ""));
+        if (clusters.length == 0) {
+            throw new MessageOutputConfigurationException("No NATS clusters configured");
+        }
+        final String[] channels = AbstractGelfNatsOutput.getChannels(configuration);
+        final int queueSize = configuration.getInt(CK_CLUSTER_QUEUE_SIZE, DEFAULT_CLUSTER_QUEUE_SIZE);
+
+        final List<ClusterPublisher> clusterPublishers = new ArrayList<>(clusters.length);
+        try {
+            for (int i = 0; i < clusters.length; i++) {
+                final String name = "cluster-" + i;
+                final String[] servers = clusters[i].split("\\s*,\\s*");
+                clusterPublishers.add(new ClusterPublisher(name,
+                        () -> AbstractGelfNatsOutput.createNatsConnection(configuration, servers), channels, queueSize,
+                        configuration, drained, metricRegistry, MetricRegistry.name(metricPrefix, name)));
+            }
+        } catch (RuntimeException e) {
+            final long now = System.nanoTime();
+            clusterPublishers.forEach(publisher -> publisher.close(now));
+            throw e;
+        }
+        return clusterPublishers;
+    }
+
+    @Override
+    public void write(Message message) throws Exception {
+        final byte[] payload = encoder.encode(message);
+        for (ClusterPublisher publisher : publishers) {
+            publisher.offer(payload);
+        }
+    }
+
+    @Override
+    public void write(List<Message> messages) throws Exception {
+        for (Message message : messages) {
+            write(message);
+        }
+    }
+
+    /**
+     * Drains the output before closing the connections: publishes the queued messages of all clusters and
+     * flushes the connections, unless the drain timeout passes first.
+     * The drain metrics are kept per output type, so they survive the stopped output.
+     */
+    @Override
+    public void stop() {
+        final long drainStart = System.nanoTime();
+        final long deadline = drainStart + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+
+        LOG.debug("Closing NATS connections");
+        publishers.forEach(publisher -> publisher.close(deadline));
+        isRunning.set(false);
+
+        final long drainNanos = System.nanoTime() - drainStart;
+        metricRegistry.timer(MetricRegistry.name(MultiClusterGelfNatsOutput.class, "drain", "duration")).update(drainNanos, TimeUnit.NANOSECONDS);
+        LOG.debug("Drained output in {} ms", TimeUnit.NANOSECONDS.toMillis(drainNanos));
+        metricRegistry.removeMatching((name, metric) -> name.startsWith(metricPrefix));
+    }
+
+    @Override
+    public boolean isRunning() {
+        return isRunning.get();
+    }
+
+    @FactoryClass
+    public interface Factory extends MessageOutput.Factory<MultiClusterGelfNatsOutput> {
+        @Override
+        MultiClusterGelfNatsOutput create(Stream stream, Configuration configuration);
+
+        @Override
+        MultiClusterGelfNatsOutput.Config getConfig();
+
+        @Override
+        MultiClusterGelfNatsOutput.Descriptor getDescriptor();
+    }
+
+    @ConfigClass
+    public static class Config extends MessageOutput.Config {
+        @Override
+        public ConfigurationRequest getRequestedConfiguration() {
+            final ConfigurationRequest r = super.getRequestedConfiguration();
+            r.addField(new TextField(
+                    CK_CLUSTERS,
+                    "NATS clusters",
+                    "",
+                    "List of NATS clusters (one per line), each a comma-separated list of server URIs: nats://host1:4222,nats://host2:4222",
+                    ConfigurationField.Optional.NOT_OPTIONAL,
+                    TextField.Attribute.TEXTAREA));
+            r.addField(new TextField(
+                    NatsConfig.CK_CHANNELS,
+                    "Channels",
+                    "graylog",
+                    "List of channels (one per line)",
+                    ConfigurationField.Optional.NOT_OPTIONAL,
+                    TextField.Attribute.TEXTAREA));
+            r.addField(new TextField(
+                    NatsConfig.CK_CONNECTION_NAME,
+                    "Connection Name",
+                    NatsConfig.DEFAULT_CONNECTION_NAME,
+                    "Name associated with the NATS connections",
+                    ConfigurationField.Optional.OPTIONAL));
+            r.addField(new NumberField(
+                    CK_CLUSTER_QUEUE_SIZE,
+                    "Queue size per cluster",
+                    DEFAULT_CLUSTER_QUEUE_SIZE,
+                    "The maximum number of messages waiting to be published to a cluster, further messages for that cluster are dropped",
+                    NumberField.Attribute.ONLY_POSITIVE));
+            NatsConfig.addProbeFields(r);
+            NatsOutputConfig.addEncodingFields(r);
+            NatsOutputConfig.addDrainFields(r);
+            return r;
+        }
+    }
+
+    public static class Descriptor extends MessageOutput.Descriptor {
+        public Descriptor() {
+            super("GELF NATS Multi-Cluster Output", false, "", "An output sending messages to several NATS clusters.");
+        }
+    }
+}
@@ -0,0 +1,270 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog.plugins.nats.concurrent.Deadlines;
+import org.graylog.plugins.nats.config.NatsOutputConfig;
+import org.graylog2.plugin.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Accumulates encoded messages and hands them to a {@link Flusher} once the batch reached its maximum
+ * number of messages or bytes, or the linger time of its first message passed. Batches are flushed in order
+ * outside of the batcher's monitor, and batches flushed by the linger timer are retried if they fail.
+ * <p>
+ * The linger time adapts to the observed message rate: it grows with the share of a full batch which
+ * would arrive within the maximum linger time. At low rates batches wouldn't fill up anyway, so messages
+ * are flushed almost immediately, while at high rates they wait up to the maximum linger time.
+ */
+class OutputBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(OutputBatcher.class);
+    private static final double RATE_SMOOTHING = 0.2d;
+    private static final long RETRY_DELAY_MILLIS = 1000L;
+
+    interface Flusher {
+        void flush(List<EncodedMessage> messages) throws Exception;
+    }
+
+    private final Flusher flusher;
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long maxLingerNanos;
+    private final ScheduledExecutorService scheduler;
+    private final LongSupplier nanoClock;
+    private final Histogram batchSize;
+    private final Histogram batchBytes;
+    private final Histogram batchFill;
+    private final Meter errors;
+
+    private final Deque<List<EncodedMessage>> completed = new ArrayDeque<>();
+    private final Object flushLock = new Object();
+    private List<EncodedMessage> pending = new ArrayList<>();
+    private long pendingBytes;
+    private long generation;
+    private long lastFlushNanos;
+    private double messageRate;
+    private volatile long lingerNanos;
+
+    @VisibleForTesting
+    OutputBatcher(Flusher flusher, int maxMessages, long maxBytes, long maxLingerMillis,
+                  ScheduledExecutorService scheduler, LongSupplier nanoClock,
+                  MetricRegistry metricRegistry, String metricPrefix) {
+        this.flusher = requireNonNull(flusher);
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes > 0L ? maxBytes : Long.MAX_VALUE;
+        this.maxLingerNanos = TimeUnit.MILLISECONDS.toNanos(maxLingerMillis);
+        this.scheduler = requireNonNull(scheduler);
+        this.nanoClock = requireNonNull(nanoClock);
+        this.batchSize = metricRegistry.histogram(MetricRegistry.name(metricPrefix, "batch", "size"));
+        this.batchBytes = metricRegistry.histogram(MetricRegistry.name(metricPrefix, "batch", "bytes"));
+        this.batchFill = metricRegistry.histogram(MetricRegistry.name(metricPrefix, "batch", "fill"));
+        this.errors = metricRegistry.meter(MetricRegistry.name(metricPrefix, "batch", "errors"));
+        this.lastFlushNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * Creates a batcher as configured or returns {@code null} if batching is disabled.
+     */
+    @Nullable
+    static OutputBatcher create(Flusher flusher, Configuration configuration, MetricRegistry metricRegistry, String metricPrefix) {
+        final int maxMessages = configuration.getInt(NatsOutputConfig.CK_BATCH_MAX_MESSAGES, 0);
+        if (maxMessages <= 1) {
+            return null;
+        }
+        final long maxBytes = configuration.getInt(NatsOutputConfig.CK_BATCH_MAX_BYTES, NatsOutputConfig.DEFAULT_BATCH_MAX_BYTES);
+        final long maxLingerMillis = configuration.getInt(NatsOutputConfig.CK_BATCH_MAX_LINGER, NatsOutputConfig.DEFAULT_BATCH_MAX_LINGER);
+        final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("nats-output-batcher-%d")
+                .build());
+
+        return new OutputBatcher(flusher, maxMessages, maxBytes, maxLingerMillis, scheduler, System::nanoTime,
+                metricRegistry, metricPrefix);
+    }
+
+    /**
+     * Adds an encoded message to the current batch and flushes the batch in the calling thread if it is full.
+     * A failed flush is reported to the caller.
+     */
+    void add(EncodedMessage message) throws Exception {
+        synchronized (this) {
+            pending.add(message);
+            pendingBytes += message.payload.length;
+
+            if (pending.size() >= maxMessages || pendingBytes >= maxBytes || lingerNanos <= 0L) {
+                completePending();
+            } else if (pending.size() == 1) {
+                final long batchGeneration = generation;
+                scheduler.schedule(() -> flushExpired(batchGeneration), lingerNanos, TimeUnit.NANOSECONDS);
+                return;
+            } else {
+                return;
+            }
+        }
+        flushCompleted(false);
+    }
+
+    /**
+     * The current linger time in nanoseconds.
+     */
+    long getLingerNanos() {
+        return lingerNanos;
+    }
+
+    synchronized int getPendingCount() {
+        int count = pending.size();
+        for (List<EncodedMessage> batch : completed) {
+            count += batch.size();
+        }
+        return count;
+    }
+
+    /**
+     * Flushes the current batch and stops the linger timer. Batches which couldn't be flushed before the
+     * deadline (in terms of {@link System#nanoTime()}) are dropped.
+     */
+    void close(long deadline) throws Exception {
+        synchronized (this) {
+            scheduler.shutdownNow();
+            if (!pending.isEmpty()) {
+                completePending();
+            }
+        }
+        synchronized (flushLock) {
+            List<EncodedMessage> batch;
+            while ((batch = pollCompleted()) != null) {
+                if (Deadlines.hasPassed(deadline)) {
+                    LOG.warn("Couldn't publish {} batched messages before the drain timeout", batch.size() + getPendingCount());
+                    synchronized (this) {
+                        completed.clear();
+                    }
+                    return;
+                }
+                try {
+                    flusher.flush(batch);
+                } catch (Exception e) {
+                    errors.mark();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void flushExpired(long batchGeneration) {
+        synchronized (this) {
+            if (batchGeneration == generation && !pending.isEmpty()) {
+                completePending();
+            }
+        }
+        flushInBackground();
+    }
+
+    /**
+     * Flushes the completed batches from the linger timer, failed batches are kept and retried.
+     */
+    private void flushInBackground() {
+        try {
+            flushCompleted(true);
+        } catch (Exception e) {
+            LOG.error("Couldn't publish batch of messages", e);
+        }
+    }
+
+    /**
+     * Moves the current batch to the completed batches awaiting their flush. Must be called holding the monitor.
+     */
+    private void completePending() {
+        final List<EncodedMessage> batch = pending;
+        final long bytes = pendingBytes;
+        pending = new ArrayList<>(batch.size());
+        pendingBytes = 0L;
+        generation++;
+
+        updateLinger(batch.size());
+        batchSize.update(batch.size());
+        batchBytes.update(bytes);
+        batchFill.update((int) (100L * Math.max(batch.size() / (double) maxMessages, bytes / (double) maxBytes)));
+        completed.addLast(batch);
+    }
+
+    @Nullable
+    private synchronized List<EncodedMessage> pollCompleted() {
+        return completed.pollFirst();
+    }
+
+    /**
+     * Flushes the completed batches in order without holding the monitor, so writers aren't blocked by the
+     * network I/O of another writer's flush. Batches of failed timer-driven flushes are kept and retried,
+     * otherwise the failure is reported to the caller.
+     */
+    private void flushCompleted(boolean timerDriven) throws Exception {
+        synchronized (flushLock) {
+            List<EncodedMessage> batch;
+            while ((batch = pollCompleted()) != null) {
+                try {
+                    flusher.flush(batch);
+                } catch (Exception e) {
+                    errors.mark();
+                    if (!timerDriven) {
+                        throw e;
+                    }
+                    LOG.warn("Couldn't publish batch of {} messages, retrying in {} ms", batch.size(), RETRY_DELAY_MILLIS, e);
+                    retry(batch);
+                    return;
+                }
+            }
+        }
+    }
+
+    private synchronized void retry(List<EncodedMessage> batch) {
+        completed.addFirst(batch);
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(this::flushInBackground, RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void updateLinger(int messages) {
+        final long now = nanoClock.getAsLong();
+        final long elapsedNanos = Math.max(1L, now - lastFlushNanos);
+        lastFlushNanos = now;
+
+        final double currentRate = messages * (double) TimeUnit.SECONDS.toNanos(1L) / elapsedNanos;
+        messageRate = messageRate == 0.0d ? currentRate : RATE_SMOOTHING * currentRate + (1.0d - RATE_SMOOTHING) * messageRate;
+
+        final double messagesPerLinger = messageRate * maxLingerNanos / TimeUnit.SECONDS.toNanos(1L);
+        lingerNanos = (long) (maxLingerNanos * Math.min(1.0d, messagesPerLinger / maxMessages));
+    }
+}
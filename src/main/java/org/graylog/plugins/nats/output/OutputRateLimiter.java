@@ -0,0 +1,217 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.graylog.plugins.nats.concurrent.TokenBucket;
+import org.graylog.plugins.nats.config.NatsOutputConfig;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Limits the messages and bytes per second an output publishes to NATS.
+ * <p>
+ * Depending on the {@link Policy}, messages exceeding the limit either wait for capacity, are dropped,
+ * or are sampled deterministically by the hash of a message field. Sampling keeps the fraction of
+ * messages the limits allow for based on the offered rates in the previous second, so all messages
+ * sharing a field value are either kept or dropped together.
+ */
+class OutputRateLimiter {
+    static final OutputRateLimiter UNLIMITED = new OutputRateLimiter();
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+    private static final int HASH_BUCKETS = 1 << 16;
+
+    enum Policy {
+        BLOCK, DROP, SAMPLE
+    }
+
+    @Nullable
+    private final TokenBucket messageBucket;
+    @Nullable
+    private final TokenBucket byteBucket;
+    private final Policy policy;
+    private final String sampleField;
+    private final long messageLimit;
+    private final long byteLimit;
+    private final Meter throttled;
+    private final Meter dropped;
+
+    private final Object windowLock = new Object();
+    private long windowStart = System.nanoTime();
+    private long windowMessages;
+    private long windowBytes;
+    private volatile int admittedBuckets = HASH_BUCKETS;
+
+    private OutputRateLimiter() {
+        this.messageBucket = null;
+        this.byteBucket = null;
+        this.policy = Policy.BLOCK;
+        this.sampleField = Message.FIELD_SOURCE;
+        this.messageLimit = 0L;
+        this.byteLimit = 0L;
+        this.throttled = new Meter();
+        this.dropped = new Meter();
+    }
+
+    OutputRateLimiter(long messagesPerSecond, long bytesPerSecond, Policy policy, String sampleField,
+                      MetricRegistry metricRegistry, String metricPrefix) {
+        this.messageBucket = messagesPerSecond > 0 ? new TokenBucket(messagesPerSecond) : null;
+        this.byteBucket = bytesPerSecond > 0 ? new TokenBucket(bytesPerSecond) : null;
+        this.policy = requireNonNull(policy);
+        this.sampleField = requireNonNull(sampleField);
+        this.messageLimit = messagesPerSecond;
+        this.byteLimit = bytesPerSecond;
+        this.throttled = metricRegistry.meter(MetricRegistry.name(metricPrefix, "rateLimit", "throttled"));
+        this.dropped = metricRegistry.meter(MetricRegistry.name(metricPrefix, "rateLimit", "dropped"));
+    }
+
+    static OutputRateLimiter create(Configuration configuration, MetricRegistry metricRegistry, String metricPrefix) {
+        final int messagesPerSecond = configuration.getInt(NatsOutputConfig.CK_RATE_LIMIT_MESSAGES, 0);
+        final int bytesPerSecond = configuration.getInt(NatsOutputConfig.CK_RATE_LIMIT_BYTES, 0);
+        if (messagesPerSecond <= 0 && bytesPerSecond <= 0) {
+            return UNLIMITED;
+        }
+
+        Policy policy;
+        try {
+            policy = Policy.valueOf(configuration.getString(NatsOutputConfig.CK_RATE_LIMIT_POLICY, Policy.BLOCK.name()));
+        } catch (IllegalArgumentException e) {
+            policy = Policy.BLOCK;
+        }
+        final String sampleField = configuration.getString(NatsOutputConfig.CK_RATE_LIMIT_SAMPLE_FIELD, Message.FIELD_SOURCE);
+
+        return new OutputRateLimiter(messagesPerSecond, bytesPerSecond, policy, sampleField, metricRegistry, metricPrefix);
+    }
+
+    /**
+     * Checks the message limit before the message is encoded, so dropped messages aren't encoded in vain.
+     * Admitted messages have to be checked by {@link #admitBytes(Message, long)} once they're encoded.
+     *
+     * @return {@code true} if the message may be encoded, {@code false} if it has been dropped
+     */
+    boolean admitMessage(Message message) throws InterruptedException {
+        if (this == UNLIMITED || messageBucket == null) {
+            return true;
+        }
+
+        switch (policy) {
+            case BLOCK:
+                sleep(messageBucket.reserve(1L));
+                return true;
+            case SAMPLE:
+                // Sampling needs the encoded size of all offered messages
+                return true;
+            case DROP:
+            default:
+                if (messageBucket.tryAcquire(1L)) {
+                    return true;
+                }
+                dropped.mark();
+                return false;
+        }
+    }
+
+    /**
+     * Checks the byte limit of a message admitted by {@link #admitMessage(Message)} once its encoded size is known.
+     *
+     * @return {@code true} if the message may be published, {@code false} if it has been dropped
+     */
+    boolean admitBytes(Message message, long bytes) throws InterruptedException {
+        if (this == UNLIMITED) {
+            return true;
+        }
+
+        switch (policy) {
+            case BLOCK:
+                if (byteBucket != null) {
+                    sleep(byteBucket.reserve(bytes));
+                }
+                return true;
+            case SAMPLE:
+                updateSampleRate(bytes);
+                if (!isSampled(message)) {
+                    dropped.mark();
+                    return false;
+                }
+                return true;
+            case DROP:
+            default:
+                if (byteBucket == null || byteBucket.tryAcquire(bytes)) {
+                    return true;
+                }
+                // The message doesn't count against the message limit if the byte limit drops it
+                if (messageBucket != null) {
+                    messageBucket.refund(1L);
+                }
+                dropped.mark();
+                return false;
+        }
+    }
+
+    private void sleep(long waitNanos) throws InterruptedException {
+        if (waitNanos > 0L) {
+            throttled.mark();
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    private boolean isSampled(Message message) {
+        final int buckets = admittedBuckets;
+        if (buckets >= HASH_BUCKETS) {
+            return true;
+        }
+
+        final Object value = message.getField(sampleField);
+        final String key = value == null ? "" : value.toString();
+        final int hash = HASH_FUNCTION.hashString(key, StandardCharsets.UTF_8).asInt() & (HASH_BUCKETS - 1);
+        return hash < buckets;
+    }
+
+    private void updateSampleRate(long bytes) {
+        synchronized (windowLock) {
+            windowMessages++;
+            windowBytes += bytes;
+            final long now = System.nanoTime();
+            final long elapsed = now - windowStart;
+            if (elapsed >= TimeUnit.SECONDS.toNanos(1L)) {
+                final double seconds = elapsed / (double) TimeUnit.SECONDS.toNanos(1L);
+                double fraction = 1.0d;
+                if (messageLimit > 0L) {
+                    fraction = Math.min(fraction, messageLimit * seconds / windowMessages);
+                }
+                if (byteLimit > 0L && windowBytes > 0L) {
+                    fraction = Math.min(fraction, byteLimit * seconds / windowBytes);
+                }
+                admittedBuckets = (int) (fraction * HASH_BUCKETS);
+                windowStart = now;
+                windowMessages = 0L;
+                windowBytes = 0L;
+            }
+        }
+    }
+}
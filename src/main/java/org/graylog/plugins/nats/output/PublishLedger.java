@@ -0,0 +1,454 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.graylog.plugins.nats.config.NatsStreamingConfig;
+import org.graylog2.plugin.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static com.google.common.base.Strings.isNullOrEmpty;
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A write-ahead ledger of published messages which haven't been acknowledged yet, so they can be published
+ * again after a restart or crash.
+ * <p>
+ * The ledger is a directory of memory-mapped, append-only segment files. A publish record holds the subject
+ * and payload of a message, an ACK record marks it as acknowledged. Each record is prefixed with its length
+ * and a CRC32 checksum, and the length is written last, so a torn write ends the segment. Segments are
+ * deleted oldest first once all of their messages have been acknowledged, which keeps ACK records valid for
+ * all remaining segments. When the ledger fills up, the messages still pending in the oldest segment are
+ * copied to the active segment, so the oldest segment can be deleted. If that doesn't free enough space,
+ * messages are published without being recorded.
+ */
+class PublishLedger {
+    private static final Logger LOG = LoggerFactory.getLogger(PublishLedger.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".ledger";
+    private static final long MAX_SEGMENT_SIZE = 16L * 1024L * 1024L;
+    private static final int MIN_SEGMENTS = 4;
+    private static final long MAINTENANCE_INTERVAL_MILLIS = 1000L;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte TYPE_PUBLISH = 1;
+    private static final byte TYPE_ACK = 2;
+    private static final int ACK_SIZE = 1 + 8;
+
+    /**
+     * A message recorded but not acknowledged before the ledger has been opened.
+     */
+    static class Entry {
+        final long id;
+        final String subject;
+        final byte[] payload;
+
+        private Entry(long id, String subject, byte[] payload) {
+            this.id = id;
+            this.subject = subject;
+            this.payload = payload;
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final Map<Long, Location> pending = new HashMap<>();
+    private final List<Entry> recovered;
+    private final ScheduledExecutorService maintenance;
+    private final Meter overflows;
+    private long nextId = 1L;
+    private long nextSegment = 0L;
+
+    @VisibleForTesting
+    PublishLedger(Path directory, long maxBytes, MetricRegistry metricRegistry, String metricPrefix) throws IOException {
+        this.directory = requireNonNull(directory);
+        this.segmentSize = Math.min(MAX_SEGMENT_SIZE, Math.max(64L * 1024L, maxBytes / MIN_SEGMENTS));
+        this.maxSegments = (int) Math.max(2L, maxBytes / segmentSize);
+        Files.createDirectories(directory);
+        this.recovered = recover();
+        this.overflows = metricRegistry.meter(MetricRegistry.name(metricPrefix, "ledger", "overflows"));
+        registerGauge(metricRegistry, MetricRegistry.name(metricPrefix, "ledger", "size"), (Gauge<Long>) this::getSizeBytes);
+        registerGauge(metricRegistry, MetricRegistry.name(metricPrefix, "ledger", "pending"), (Gauge<Integer>) this::getPendingCount);
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("nats-output-ledger-%d")
+                .build());
+        maintenance.scheduleWithFixedDelay(this::maintain, MAINTENANCE_INTERVAL_MILLIS, MAINTENANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Opens the ledger as configured or returns {@code null} if the ledger is disabled.
+     */
+    @Nullable
+    static PublishLedger create(Configuration configuration, MetricRegistry metricRegistry, String metricPrefix) throws IOException {
+        final String directory = configuration.getString(NatsStreamingConfig.CK_LEDGER_DIRECTORY, "");
+        if (isNullOrEmpty(directory)) {
+            return null;
+        }
+        final long maxBytes = configuration.getInt(NatsStreamingConfig.CK_LEDGER_MAX_SIZE, NatsStreamingConfig.DEFAULT_LEDGER_MAX_SIZE) * 1024L * 1024L;
+
+        return new PublishLedger(Paths.get(directory), maxBytes, metricRegistry, metricPrefix);
+    }
+
+    private static void registerGauge(MetricRegistry metricRegistry, String name, Gauge<?> gauge) {
+        metricRegistry.remove(name);
+        metricRegistry.register(name, gauge);
+    }
+
+    /**
+     * The messages which had been recorded but not acknowledged when the ledger has been opened, in publishing
+     * order. They stay pending until they're acknowledged.
+     */
+    List<Entry> getRecovered() {
+        return recovered;
+    }
+
+    /**
+     * Records a message before it's published.
+     *
+     * @return the ID to acknowledge the message with, or {@code -1} if the ledger is full
+     */
+    synchronized long append(String subject, byte[] payload) throws IOException {
+        final byte[] subjectBytes = subject.getBytes(StandardCharsets.UTF_8);
+        final int bodySize = 1 + 8 + 2 + subjectBytes.length + payload.length;
+        if (RECORD_HEADER_SIZE + bodySize > segmentSize || !ensureCapacity(RECORD_HEADER_SIZE + bodySize)) {
+            overflows.mark();
+            return -1L;
+        }
+
+        final long id = nextId++;
+        final ByteBuffer body = ByteBuffer.allocate(bodySize);
+        body.put(TYPE_PUBLISH).putLong(id).putShort((short) subjectBytes.length).put(subjectBytes).put(payload);
+        final Segment segment = segments.getLast();
+        pending.put(id, new Location(segment, segment.write(body.array())));
+        segment.live++;
+        return id;
+    }
+
+    /**
+     * Marks a message as acknowledged, so it won't be published again.
+     */
+    synchronized void ack(long id) {
+        final Location location = pending.remove(id);
+        if (location == null) {
+            return;
+        }
+        location.segment.live--;
+
+        final ByteBuffer body = ByteBuffer.allocate(ACK_SIZE);
+        body.put(TYPE_ACK).putLong(id);
+        try {
+            if (ensureCapacity(RECORD_HEADER_SIZE + ACK_SIZE)) {
+                segments.getLast().write(body.array());
+                return;
+            }
+        } catch (IOException e) {
+            LOG.warn("Couldn't record ACK in publish ledger in {}", directory, e);
+        }
+        // Without the ACK record the message is published again after a restart
+        overflows.mark();
+    }
+
+    synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    synchronized long getSizeBytes() {
+        return segments.size() * segmentSize;
+    }
+
+    synchronized void close() {
+        maintenance.shutdownNow();
+        for (Segment segment : segments) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    private boolean ensureCapacity(int recordSize) throws IOException {
+        if (!segments.isEmpty() && segments.getLast().remaining() >= recordSize) {
+            return true;
+        }
+
+        deleteAcknowledgedSegments();
+        if (segments.size() >= maxSegments) {
+            return false;
+        }
+        if (!segments.isEmpty()) {
+            segments.getLast().buffer.force();
+        }
+        segments.addLast(Segment.create(directory.resolve(segmentName(nextSegment++)), segmentSize));
+        if (segments.size() == maxSegments) {
+            compactOldestSegment(recordSize);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the pending messages of the oldest segment to the active segment and deletes the oldest segment,
+     * as long as there's still room for a record of the given size afterwards.
+     */
+    private void compactOldestSegment(int reserve) throws IOException {
+        if (segments.size() < 2) {
+            return;
+        }
+        final Segment oldest = segments.getFirst();
+        final List<Map.Entry<Long, Location>> live = new ArrayList<>();
+        for (Map.Entry<Long, Location> entry : pending.entrySet()) {
+            if (entry.getValue().segment == oldest) {
+                live.add(entry);
+            }
+        }
+        long liveBytes = 0L;
+        for (Map.Entry<Long, Location> entry : live) {
+            liveBytes += RECORD_HEADER_SIZE + oldest.read(entry.getValue().offset).length;
+        }
+        if (liveBytes + reserve > segments.getLast().remaining()) {
+            return;
+        }
+
+        live.sort(Map.Entry.comparingByKey());
+        final Segment target = segments.getLast();
+        for (Map.Entry<Long, Location> entry : live) {
+            final byte[] body = oldest.read(entry.getValue().offset);
+            pending.put(entry.getKey(), new Location(target, target.write(body)));
+            target.live++;
+        }
+        target.buffer.force();
+        oldest.live = 0;
+        LOG.debug("Compacted {} pending messages of ledger segment {}", live.size(), oldest.path);
+        deleteAcknowledgedSegments();
+    }
+
+    /**
+     * Deletes the oldest segments as long as all of their messages have been acknowledged. The active segment is kept.
+     */
+    private void deleteAcknowledgedSegments() throws IOException {
+        while (segments.size() > 1 && segments.getFirst().live == 0) {
+            final Segment segment = segments.removeFirst();
+            segment.close();
+            Files.deleteIfExists(segment.path);
+        }
+    }
+
+    private synchronized void maintain() {
+        try {
+            if (!segments.isEmpty()) {
+                segments.getLast().buffer.force();
+            }
+            deleteAcknowledgedSegments();
+        } catch (Exception e) {
+            LOG.warn("Couldn't maintain publish ledger in {}", directory, e);
+        }
+    }
+
+    /**
+     * Reads all segments, oldest first, and returns the messages which haven't been acknowledged.
+     */
+    private List<Entry> recover() throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null);
+
+        final Map<Long, Entry> entries = new LinkedHashMap<>();
+        for (Path path : paths) {
+            final Segment segment = Segment.open(path, segmentSize);
+            segments.addLast(segment);
+            nextSegment = Math.max(nextSegment, segmentNumber(path) + 1L);
+
+            int offset;
+            while ((offset = segment.position) >= 0) {
+                final byte[] body = segment.readNext();
+                if (body == null) {
+                    break;
+                }
+                final ByteBuffer record = ByteBuffer.wrap(body);
+                final byte type = record.get();
+                final long id = record.getLong();
+                nextId = Math.max(nextId, id + 1L);
+                if (type == TYPE_PUBLISH) {
+                    final byte[] subject = new byte[record.getShort() & 0xFFFF];
+                    record.get(subject);
+                    final byte[] payload = new byte[record.remaining()];
+                    record.get(payload);
+                    entries.remove(id);
+                    entries.put(id, new Entry(id, new String(subject, StandardCharsets.UTF_8), payload));
+                    final Location previous = pending.put(id, new Location(segment, offset));
+                    if (previous != null) {
+                        previous.segment.live--;
+                    }
+                    segment.live++;
+                } else if (type == TYPE_ACK) {
+                    entries.remove(id);
+                    final Location location = pending.remove(id);
+                    if (location != null) {
+                        location.segment.live--;
+                    }
+                }
+            }
+        }
+
+        if (!entries.isEmpty()) {
+            LOG.info("Recovered {} unacknowledged messages from publish ledger in {}", entries.size(), directory);
+        }
+        return new ArrayList<>(entries.values());
+    }
+
+    private static String segmentName(long number) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    private static long segmentNumber(Path path) {
+        final String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1L;
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final int offset;
+
+        private Location(Segment segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    private static class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private int position;
+        private int live;
+
+        private Segment(Path path, FileChannel channel, long size) throws IOException {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, size);
+        }
+
+        static Segment create(Path path, long size) throws IOException {
+            return new Segment(path, FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE), size);
+        }
+
+        static Segment open(Path path, long size) throws IOException {
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new Segment(path, channel, Math.max(size, channel.size()));
+        }
+
+        int remaining() {
+            return buffer.capacity() - position;
+        }
+
+        /**
+         * Appends a record and returns its offset. The length is written last, so a partially written record
+         * reads as the end of the segment.
+         */
+        int write(byte[] body) {
+            final int offset = position;
+            final CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            ((Buffer) buffer).position(offset + 4);
+            buffer.putInt((int) crc.getValue());
+            buffer.put(body);
+            buffer.putInt(offset, body.length);
+            position = offset + RECORD_HEADER_SIZE + body.length;
+            return offset;
+        }
+
+        byte[] read(int offset) {
+            final int length = buffer.getInt(offset);
+            final byte[] body = new byte[length];
+            final ByteBuffer view = buffer.duplicate();
+            ((Buffer) view).position(offset + RECORD_HEADER_SIZE);
+            view.get(body);
+            return body;
+        }
+
+        /**
+         * Reads the record at the current position and advances past it.
+         *
+         * @return the body of the record or {@code null} at the end of the segment
+         */
+        byte[] readNext() {
+            if (remaining() < RECORD_HEADER_SIZE) {
+                return null;
+            }
+            final int length = buffer.getInt(position);
+            if (length <= 0 || length > remaining() - RECORD_HEADER_SIZE) {
+                return null;
+            }
+            final byte[] body = read(position);
+            final CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                LOG.warn("Ignoring corrupt record at offset {} of ledger segment {}", position, path);
+                return null;
+            }
+            position += RECORD_HEADER_SIZE + length;
+            return body;
+        }
+
+        void close() {
+            buffer.force();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.debug("Couldn't close ledger segment {}", path, e);
+            }
+        }
+    }
+}
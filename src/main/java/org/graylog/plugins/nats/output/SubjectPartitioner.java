@@ -0,0 +1,89 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.graylog.plugins.nats.config.NatsOutputConfig;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Routes messages to one of {@code N} subjects {@code <prefix>.0} to {@code <prefix>.<N-1>} by the consistent hash
+ * of a message field, so all messages sharing a field value end up on the same subject in their original order.
+ * Messages without the field are routed by the hash of the empty string.
+ * <p>
+ * Consistent hashing moves only about {@code 1/N} of the keys to other subjects when the number of partitions grows.
+ */
+class SubjectPartitioner {
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_32();
+
+    private final String keyField;
+    private final String[][] subjects;
+    private final Meter[] meters;
+
+    SubjectPartitioner(String prefix, int partitions, String keyField, MetricRegistry metricRegistry, String metricPrefix) {
+        this.keyField = requireNonNull(keyField);
+        this.subjects = new String[partitions][];
+        this.meters = new Meter[partitions];
+        for (int i = 0; i < partitions; i++) {
+            subjects[i] = new String[]{prefix + "." + i};
+            meters[i] = metricRegistry.meter(MetricRegistry.name(metricPrefix, "partition", String.valueOf(i)));
+        }
+    }
+
+    /**
+     * Creates a partitioner as configured or returns {@code null} if partitioning is disabled.
+     */
+    @Nullable
+    static SubjectPartitioner create(Configuration configuration, MetricRegistry metricRegistry, String metricPrefix) {
+        final int partitions = configuration.getInt(NatsOutputConfig.CK_PARTITIONS, 0);
+        if (partitions <= 0) {
+            return null;
+        }
+        final String prefix = configuration.getString(NatsOutputConfig.CK_PARTITION_PREFIX, NatsOutputConfig.DEFAULT_PARTITION_PREFIX);
+        final String keyField = configuration.getString(NatsOutputConfig.CK_PARTITION_KEY, Message.FIELD_SOURCE);
+
+        return new SubjectPartitioner(prefix, partitions, keyField, metricRegistry, metricPrefix);
+    }
+
+    /**
+     * Returns the subject for the given message. The returned array is shared and must not be modified.
+     */
+    String[] subjectsFor(Message message) {
+        final int partition = partition(message.getField(keyField));
+        meters[partition].mark();
+        return subjects[partition];
+    }
+
+    int partition(@Nullable Object key) {
+        final String value = key == null ? "" : key.toString();
+        return Hashing.consistentHash(HASH_FUNCTION.hashString(value, StandardCharsets.UTF_8), subjects.length);
+    }
+
+    int getPartitions() {
+        return subjects.length;
+    }
+}
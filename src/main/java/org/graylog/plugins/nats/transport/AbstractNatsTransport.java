@@ -17,11 +17,17 @@
  */
 package org.graylog.plugins.nats.transport;
 
+import com.codahale.metrics.Counter;
 import com.codahale.metrics.MetricSet;
+import com.codahale.metrics.Timer;
 import com.google.common.eventbus.EventBus;
 import io.nats.client.Connection;
 import io.nats.client.ConnectionFactory;
+import org.graylog.plugins.nats.concurrent.BlockingExecutors;
+import org.graylog.plugins.nats.concurrent.Deadlines;
 import org.graylog.plugins.nats.config.NatsConfig;
+import org.graylog.plugins.nats.config.NatsInputConfig;
+import org.graylog.plugins.nats.health.ConnectionProbe;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
@@ -29,19 +35,50 @@ import org.graylog2.plugin.inputs.MessageInput;
 import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.inputs.codecs.CodecAggregator;
 import org.graylog2.plugin.inputs.transports.ThrottleableTransport;
+import org.graylog2.plugin.journal.RawMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
 import static java.util.Objects.requireNonNull;
 
 abstract class AbstractNatsTransport extends ThrottleableTransport {
-    private final LocalMetricRegistry metricRegistry;
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractNatsTransport.class);
+    private static final long BUFFER_POLL_MILLIS = 100L;
+
+    final LocalMetricRegistry metricRegistry;
     protected final Configuration configuration;
     protected Connection connection;
 
+    private MessageInput input;
+    @Nullable
+    private volatile OffHeapRingBuffer buffer;
+    private ExecutorService bufferConsumers;
+    @Nullable
+    private PayloadPublisher publisher;
+    @Nullable
+    private InputSubscriber subscriber;
+    @Nullable
+    private ConnectionProbe probe;
+    @Nullable
+    private InputFilter filter;
+    @Nullable
+    private InputSampler sampler;
+    private boolean tagSampledMessages;
+    @Nullable
+    private FairScheduler scheduler;
+    private volatile boolean running;
+    private volatile boolean draining;
+    private Counter drained;
+
     AbstractNatsTransport(Configuration configuration,
                           EventBus eventBus,
                           LocalMetricRegistry metricRegistry) {
@@ -52,10 +89,193 @@ abstract class AbstractNatsTransport extends ThrottleableTransport {
 
     @Override
     protected void doLaunch(MessageInput input) throws MisfireException {
+        this.input = input;
+        this.running = true;
+        this.draining = false;
+        this.drained = metricRegistry.counter("drain.messages");
+        try {
+            filter = InputFilter.create(configuration, metricRegistry);
+            sampler = InputSampler.create(configuration, tagSampledMessages, metricRegistry);
+            scheduler = FairScheduler.create(configuration, this::deliver, this::isThrottled, metricRegistry);
+        } catch (IllegalArgumentException e) {
+            throw new MisfireException("Invalid filter, sampling or scheduling rules: " + e.getMessage(), e);
+        }
         connection = createNatsConnection();
+        try {
+            probe = ConnectionProbe.start(connection, input.getUniqueReadableId(), configuration, metricRegistry, "");
+            startBuffer();
+            startFlowControl();
+            if (scheduler != null) {
+                scheduler.start();
+            }
+            startReceiving();
+        } catch (MisfireException | RuntimeException e) {
+            // Don't leak the connection and the threads started so far
+            doStop();
+            throw e;
+        }
+    }
+
+    /**
+     * Starts receiving messages once the connection and the processing of received messages are set up.
+     * The transport is stopped if this fails.
+     */
+    abstract void startReceiving() throws MisfireException;
+
+    /**
+     * Tags the messages kept by the sampling rules with the sampling rate. Only inputs decoding GELF JSON
+     * enable this, other payloads would be corrupted by the tag.
+     */
+    public void setTagSampledMessages(boolean tagSampledMessages) {
+        this.tagSampledMessages = tagSampledMessages;
+    }
+
+    private void startFlowControl() {
+        if (!isFlowControlEnabled()) {
+            publisher = null;
+            subscriber = null;
+            return;
+        }
+
+        final int prefetch = getPrefetch();
+        publisher = new PayloadPublisher(prefetch, createFlowControl());
+        subscriber = new InputSubscriber(this::dispatch, prefetch);
+        subscriber.setThrottled(isThrottled());
+        publisher.subscribe(subscriber);
+    }
+
+    boolean isFlowControlEnabled() {
+        return configuration.getBoolean(NatsInputConfig.CK_FLOW_CONTROL, false);
+    }
+
+    int getPrefetch() {
+        return Math.max(1, configuration.getInt(NatsInputConfig.CK_PREFETCH, NatsInputConfig.DEFAULT_PREFETCH));
+    }
+
+    /**
+     * Pauses and resumes the delivery of messages when flow control is enabled.
+     */
+    PayloadPublisher.FlowControl createFlowControl() {
+        return PayloadPublisher.NO_FLOW_CONTROL;
+    }
+
+    @Override
+    protected void handleChangedThrottledState(boolean isThrottled) {
+        super.handleChangedThrottledState(isThrottled);
+        final InputSubscriber currentSubscriber = subscriber;
+        if (currentSubscriber != null) {
+            currentSubscriber.setThrottled(isThrottled);
+        }
+    }
+
+    private void startBuffer() {
+        final int bufferSize = Math.min(
+                configuration.getInt(NatsInputConfig.CK_OFFHEAP_BUFFER_SIZE, 0),
+                NatsInputConfig.MAX_OFFHEAP_BUFFER_SIZE);
+        if (bufferSize <= 0) {
+            buffer = null;
+            return;
+        }
+
+        final int consumers = Math.max(1, configuration.getInt(NatsInputConfig.CK_OFFHEAP_CONSUMERS, NatsInputConfig.DEFAULT_OFFHEAP_CONSUMERS));
+        buffer = new OffHeapRingBuffer(bufferSize * 1024 * 1024, metricRegistry);
+        bufferConsumers = BlockingExecutors.newLoopExecutor("nats-transport-offheap-", consumers);
+        for (int i = 0; i < consumers; i++) {
+            bufferConsumers.execute(this::consumeBuffer);
+        }
+    }
+
+    private void consumeBuffer() {
+        final OffHeapRingBuffer currentBuffer = buffer;
+        try {
+            while (running || currentBuffer.size() > 0) {
+                final byte[] payload = currentBuffer.poll(BUFFER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (payload != null) {
+                    process(payload);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private Connection createNatsConnection() throws MisfireException {
+    /**
+     * Hands a received payload to the input, as demanded by the input if flow control is enabled.
+     * Payloads dropped by the filter or sampling rules are acknowledged right away, payloads of scheduled
+     * subjects are handed to the input by the scheduler.
+     *
+     * @param subject the subject the payload has been published on, may be {@code null}
+     * @param ack     acknowledges the payload once it has been handed to the input, may be {@code null}
+     */
+    void handleMessage(@Nullable String subject, byte[] payload, @Nullable PayloadPublisher.Acknowledgement ack) {
+        final InputFilter currentFilter = filter;
+        final InputSampler currentSampler = sampler;
+        byte[] accepted = currentFilter == null || currentFilter.accepts(subject, payload) ? payload : null;
+        if (accepted != null && currentSampler != null) {
+            accepted = currentSampler.sample(subject, accepted);
+        }
+        if (accepted == null) {
+            acknowledge(ack);
+            return;
+        }
+
+        final FairScheduler currentScheduler = scheduler;
+        if (currentScheduler != null) {
+            currentScheduler.offer(subject, accepted, ack);
+            return;
+        }
+        deliver(accepted, ack);
+    }
+
+    private void deliver(byte[] payload, @Nullable PayloadPublisher.Acknowledgement ack) {
+        if (publisher != null) {
+            publisher.offer(payload, ack);
+            return;
+        }
+
+        dispatch(payload);
+        acknowledge(ack);
+    }
+
+    private static void acknowledge(@Nullable PayloadPublisher.Acknowledgement ack) {
+        if (ack != null) {
+            try {
+                ack.ack();
+            } catch (IOException e) {
+                LOG.warn("Couldn't acknowledge message", e);
+            }
+        }
+    }
+
+    /**
+     * Hands a payload to the input, either directly or through the off-heap buffer.
+     */
+    private void dispatch(byte[] payload) {
+        final OffHeapRingBuffer currentBuffer = buffer;
+        if (currentBuffer == null || !currentBuffer.fits(payload.length)) {
+            process(payload);
+            return;
+        }
+
+        try {
+            currentBuffer.put(payload);
+        } catch (IllegalStateException e) {
+            // Released while stopping
+            process(payload);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while waiting for free space in off-heap buffer, dropping message");
+        }
+    }
+
+    private void process(byte[] payload) {
+        input.processRawMessage(new RawMessage(payload));
+        if (draining) {
+            drained.inc();
+        }
+    }
+
+    Connection createNatsConnection() throws MisfireException {
         final String[] servers = getServers();
         final String connectionName = configuration.getString(NatsConfig.CK_CONNECTION_NAME, NatsConfig.DEFAULT_CONNECTION_NAME);
         final int connectionTimeout = configuration.getInt(NatsConfig.CK_CONNECTION_TIMEOUT, ConnectionFactory.DEFAULT_TIMEOUT);
@@ -99,8 +319,68 @@ abstract class AbstractNatsTransport extends ThrottleableTransport {
                 .collect(Collectors.toSet());
     }
 
+    /**
+     * Drains the transport before closing the connection: stops receiving new messages, hands all received
+     * messages to the input and acknowledges them, unless the drain timeout passes first.
+     */
     @Override
     protected void doStop() {
+        final long drainStart = System.nanoTime();
+        final long drainTimeoutMillis = configuration.getInt(NatsInputConfig.CK_DRAIN_TIMEOUT, NatsInputConfig.DEFAULT_DRAIN_TIMEOUT);
+        final long deadline = drainStart + TimeUnit.MILLISECONDS.toNanos(drainTimeoutMillis);
+        draining = true;
+
+        stopReceiving(deadline);
+        if (scheduler != null) {
+            scheduler.close(deadline);
+        }
+        if (publisher != null) {
+            final PayloadPublisher currentPublisher = publisher;
+            subscriber.setThrottled(false);
+            if (!Deadlines.awaitUntil(() -> currentPublisher.getQueuedCount() == 0, deadline)) {
+                LOG.warn("Couldn't process {} remaining messages awaiting demand", currentPublisher.getQueuedCount());
+            }
+            subscriber.cancel();
+        }
+        running = false;
+        final OffHeapRingBuffer currentBuffer = buffer;
+        if (currentBuffer != null) {
+            bufferConsumers.shutdown();
+            try {
+                final long remainingNanos = Math.max(0L, deadline - System.nanoTime());
+                if (!bufferConsumers.awaitTermination(remainingNanos, TimeUnit.NANOSECONDS)) {
+                    LOG.warn("Couldn't process {} remaining messages in off-heap buffer", currentBuffer.size());
+                    bufferConsumers.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                bufferConsumers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            buffer = null;
+            currentBuffer.release();
+            metricRegistry.removeMatching((name, metric) -> name.startsWith("offheap."));
+        }
+
+        final long drainNanos = System.nanoTime() - drainStart;
+        final Timer drainDuration = metricRegistry.timer("drain.duration");
+        drainDuration.update(drainNanos, TimeUnit.NANOSECONDS);
+        LOG.debug("Drained {} messages in {} ms", drained.getCount(), TimeUnit.NANOSECONDS.toMillis(drainNanos));
+
+        if (probe != null) {
+            probe.stop();
+        }
+        closeConnection();
+    }
+
+    /**
+     * Stops the delivery of new messages and waits until the already received ones have been handed to
+     * {@link #handleMessage(String, byte[], PayloadPublisher.Acknowledgement)} or the deadline passed.
+     *
+     * @param deadline the deadline in terms of {@link System#nanoTime()}
+     */
+    abstract void stopReceiving(long deadline);
+
+    void closeConnection() {
         if (connection != null) {
             connection.close();
         }
@@ -124,6 +404,7 @@ abstract class AbstractNatsTransport extends ThrottleableTransport {
         public ConfigurationRequest getRequestedConfiguration() {
             final ConfigurationRequest r = super.getRequestedConfiguration();
             NatsConfig.addFields(r);
+            NatsInputConfig.addFields(r);
             return r;
         }
     }
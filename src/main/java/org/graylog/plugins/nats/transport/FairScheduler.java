@@ -0,0 +1,329 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import org.graylog.plugins.nats.concurrent.BlockingExecutors;
+import org.graylog.plugins.nats.concurrent.TokenBucket;
+import org.graylog.plugins.nats.config.NatsInputConfig;
+import org.graylog2.plugin.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Shares the input's capacity between subjects by weighted round robin. Each rule is a line
+ * {@code <subject pattern> <weight> [<max. messages per second>]} and gets its own queue (lane), subjects without
+ * a matching rule share a default lane with weight 1. In every round, a worker thread hands up to {@code weight}
+ * messages of every lane to the input, limited by the lane's rate limit. The lanes are spread over the configured
+ * number of worker threads, the weights apply between the lanes of the same worker.
+ * <p>
+ * While the input is throttled no messages are handed to the input, so a chatty subject only fills its own lane.
+ * Queuing never blocks the thread delivering messages from NATS, so a full lane doesn't hold up the other lanes:
+ * messages which don't fit into their lane are left unacknowledged, so NATS Streaming and JetStream deliver them
+ * again after the ACK wait ({@code deferred}), or are lost for core NATS ({@code dropped}). Lanes report their
+ * metrics under {@code scheduler.<n>.} and {@code scheduler.default.}.
+ */
+class FairScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(FairScheduler.class);
+
+    private static final int MAX_CACHED_SUBJECTS = 10000;
+    private static final long IDLE_WAIT_MILLIS = 10L;
+    private static final long THROTTLE_POLL_MILLIS = 100L;
+
+    interface Handler {
+        void handle(byte[] payload, @Nullable PayloadPublisher.Acknowledgement ack);
+    }
+
+    private static class Item {
+        private final byte[] payload;
+        @Nullable
+        private final PayloadPublisher.Acknowledgement ack;
+
+        private Item(byte[] payload, @Nullable PayloadPublisher.Acknowledgement ack) {
+            this.payload = payload;
+            this.ack = ack;
+        }
+    }
+
+    private static class Lane {
+        @Nullable
+        private final String[] pattern;
+        private final int weight;
+        @Nullable
+        private final TokenBucket rateLimit;
+        private final BlockingQueue<Item> queue;
+        private final Meter served;
+        private final Meter dropped;
+        private final Meter deferred;
+
+        private Lane(String name, @Nullable String[] pattern, int weight, long maxRate, int queueSize, MetricRegistry metricRegistry) {
+            this.pattern = pattern;
+            this.weight = weight;
+            this.rateLimit = maxRate > 0 ? new TokenBucket(maxRate) : null;
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            this.served = metricRegistry.meter(MetricRegistry.name("scheduler", name, "served"));
+            this.dropped = metricRegistry.meter(MetricRegistry.name("scheduler", name, "dropped"));
+            this.deferred = metricRegistry.meter(MetricRegistry.name("scheduler", name, "deferred"));
+            final String queued = MetricRegistry.name("scheduler", name, "queued");
+            metricRegistry.remove(queued);
+            metricRegistry.register(queued, (Gauge<Integer>) queue::size);
+        }
+    }
+
+    private final List<Lane> lanes;
+    private final Lane defaultLane;
+    private final ConcurrentMap<String, Lane> subjects = new ConcurrentHashMap<>();
+    private final Handler handler;
+    private final BooleanSupplier throttled;
+    private final MetricRegistry metricRegistry;
+    private final int threads;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final AtomicInteger idleWorkers = new AtomicInteger();
+    @Nullable
+    private ExecutorService executor;
+    private volatile boolean running = true;
+    private volatile long stopDeadline;
+
+    @VisibleForTesting
+    FairScheduler(String config, int queueSize, Handler handler, BooleanSupplier throttled, MetricRegistry metricRegistry) {
+        this(config, queueSize, 1, handler, throttled, metricRegistry);
+    }
+
+    @VisibleForTesting
+    FairScheduler(String config, int queueSize, int threads, Handler handler, BooleanSupplier throttled, MetricRegistry metricRegistry) {
+        this.lanes = parse(config, queueSize, metricRegistry);
+        this.defaultLane = new Lane("default", null, 1, 0L, queueSize, metricRegistry);
+        lanes.add(defaultLane);
+        this.threads = Math.max(1, Math.min(threads, lanes.size()));
+        this.handler = requireNonNull(handler);
+        this.throttled = requireNonNull(throttled);
+        this.metricRegistry = metricRegistry;
+    }
+
+    /**
+     * Creates a scheduler as configured or returns {@code null} if no scheduling rules are configured.
+     * The scheduler hands messages to the input once it has been {@linkplain #start() started}.
+     *
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    @Nullable
+    static FairScheduler create(Configuration configuration, Handler handler, BooleanSupplier throttled, MetricRegistry metricRegistry) {
+        final String config = configuration.getString(NatsInputConfig.CK_SCHEDULING_RULES, "");
+        if (config == null || config.trim().isEmpty()) {
+            return null;
+        }
+        final int queueSize = Math.max(1, configuration.getInt(NatsInputConfig.CK_SCHEDULING_QUEUE_SIZE, NatsInputConfig.DEFAULT_SCHEDULING_QUEUE_SIZE));
+        final int threads = configuration.getInt(NatsInputConfig.CK_SCHEDULING_THREADS, NatsInputConfig.DEFAULT_SCHEDULING_THREADS);
+
+        return new FairScheduler(config, queueSize, threads, handler, throttled, metricRegistry);
+    }
+
+    void start() {
+        executor = BlockingExecutors.newLoopExecutor("nats-transport-scheduler-", threads);
+        for (int worker = 0; worker < threads; worker++) {
+            final List<Lane> workerLanes = new ArrayList<>();
+            for (int i = worker; i < lanes.size(); i += threads) {
+                workerLanes.add(lanes.get(i));
+            }
+            executor.execute(() -> run(workerLanes));
+        }
+    }
+
+    private static List<Lane> parse(String config, int queueSize, MetricRegistry metricRegistry) {
+        final List<Lane> lanes = new ArrayList<>();
+        for (String line : config.split("\n")) {
+            final String rule = line.trim();
+            if (rule.isEmpty() || rule.startsWith("#")) {
+                continue;
+            }
+            final String[] parts = rule.split("\\s+");
+            if (parts.length < 2 || parts.length > 3) {
+                throw new IllegalArgumentException("Invalid scheduling rule: " + rule);
+            }
+            final int weight;
+            final long maxRate;
+            try {
+                weight = Integer.parseInt(parts[1]);
+                maxRate = parts.length == 3 ? Long.parseLong(parts[2]) : 0L;
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid scheduling rule: " + rule);
+            }
+            if (weight < 1 || maxRate < 0L) {
+                throw new IllegalArgumentException("Invalid scheduling rule: " + rule);
+            }
+
+            lanes.add(new Lane(String.valueOf(lanes.size()), InputFilter.subjectPattern(parts[0]), weight, maxRate, queueSize, metricRegistry));
+        }
+        return lanes;
+    }
+
+    /**
+     * Queues a payload in the lane of its subject without waiting for free space.
+     *
+     * @return {@code false} if the lane is full and the payload has been dropped without being acknowledged
+     */
+    boolean offer(@Nullable String subject, byte[] payload, @Nullable PayloadPublisher.Acknowledgement ack) {
+        final Lane lane = laneFor(subject);
+        if (!lane.queue.offer(new Item(payload, ack))) {
+            (ack == null ? lane.dropped : lane.deferred).mark();
+            return false;
+        }
+        if (idleWorkers.get() > 0) {
+            lock.lock();
+            try {
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    private Lane laneFor(@Nullable String subject) {
+        if (subject == null) {
+            return defaultLane;
+        }
+        final Lane cached = subjects.get(subject);
+        if (cached != null) {
+            return cached;
+        }
+        if (subjects.size() >= MAX_CACHED_SUBJECTS) {
+            subjects.clear();
+        }
+        return subjects.computeIfAbsent(subject, this::match);
+    }
+
+    private Lane match(String subject) {
+        for (Lane lane : lanes) {
+            if (lane.pattern != null && InputFilter.matchesSubject(lane.pattern, subject)) {
+                return lane;
+            }
+        }
+        return defaultLane;
+    }
+
+    int getQueuedCount() {
+        return getQueuedCount(lanes);
+    }
+
+    private static int getQueuedCount(List<Lane> lanes) {
+        int queued = 0;
+        for (Lane lane : lanes) {
+            queued += lane.queue.size();
+        }
+        return queued;
+    }
+
+    private void run(List<Lane> workerLanes) {
+        try {
+            while (running || (getQueuedCount(workerLanes) > 0 && System.nanoTime() - stopDeadline < 0L)) {
+                if (running && throttled.getAsBoolean()) {
+                    Thread.sleep(THROTTLE_POLL_MILLIS);
+                } else if (!serveRound(workerLanes)) {
+                    awaitMessages();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.error("Scheduler of NATS input failed", e);
+        }
+    }
+
+    /**
+     * Hands up to {@code weight} messages of each lane to the input.
+     *
+     * @return whether any message has been handed to the input
+     */
+    @VisibleForTesting
+    boolean serveRound() {
+        return serveRound(lanes);
+    }
+
+    private boolean serveRound(List<Lane> workerLanes) {
+        boolean served = false;
+        for (Lane lane : workerLanes) {
+            for (int i = 0; i < lane.weight && !lane.queue.isEmpty(); i++) {
+                if (lane.rateLimit != null && !lane.rateLimit.tryAcquire(1L)) {
+                    break;
+                }
+                final Item item = lane.queue.poll();
+                handler.handle(item.payload, item.ack);
+                lane.served.mark();
+                served = true;
+            }
+        }
+        return served;
+    }
+
+    private void awaitMessages() throws InterruptedException {
+        lock.lock();
+        try {
+            idleWorkers.incrementAndGet();
+            available.await(IDLE_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } finally {
+            idleWorkers.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the queued messages to the input until all lanes are empty or the deadline passed.
+     */
+    void close(long deadline) {
+        stopDeadline = deadline;
+        running = false;
+        final ExecutorService currentExecutor = executor;
+        if (currentExecutor != null) {
+            currentExecutor.shutdown();
+            try {
+                if (!currentExecutor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                    currentExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                currentExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        final int remaining = getQueuedCount();
+        if (remaining > 0) {
+            LOG.warn("Couldn't process {} remaining messages queued by the scheduler", remaining);
+        }
+        metricRegistry.removeMatching((name, metric) -> name.startsWith("scheduler."));
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import org.graylog.plugins.nats.config.NatsInputConfig;
+import org.graylog2.plugin.configuration.Configuration;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Drops unwanted payloads as soon as they're received, before they're turned into raw messages and written to
+ * the journal. The rules are compiled once, one per line:
+ * <ul>
+ * <li>{@code subject <pattern>} drops messages published on a matching subject, {@code *} matches a single
+ * token and a trailing {@code >} one or more tokens</li>
+ * <li>{@code prefix <text>} drops payloads starting with the text</li>
+ * <li>{@code contains <text>} drops payloads containing the text</li>
+ * </ul>
+ * Empty lines and lines starting with {@code #} are ignored. Payloads larger than the configured maximum size are
+ * dropped as well. Every rule counts its drops in {@code filter.<n>.dropped}, numbered from 0 in configuration order.
+ */
+class InputFilter {
+    interface Rule {
+        boolean matches(@Nullable String subject, byte[] payload);
+    }
+
+    private final Rule[] rules;
+    private final Counter[] dropped;
+    private final int maxSize;
+    private final Counter oversized;
+
+    @VisibleForTesting
+    InputFilter(List<Rule> rules, int maxSize, MetricRegistry metricRegistry) {
+        this.rules = rules.toArray(new Rule[0]);
+        this.dropped = new Counter[rules.size()];
+        for (int i = 0; i < dropped.length; i++) {
+            dropped[i] = metricRegistry.counter(MetricRegistry.name("filter", String.valueOf(i), "dropped"));
+        }
+        this.maxSize = maxSize;
+        this.oversized = metricRegistry.counter("filter.max_size.dropped");
+    }
+
+    /**
+     * Creates a filter as configured or returns {@code null} if no payloads are filtered.
+     *
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    @Nullable
+    static InputFilter create(Configuration configuration, MetricRegistry metricRegistry) {
+        final List<Rule> rules = parse(configuration.getString(NatsInputConfig.CK_FILTER_RULES, ""));
+        final int maxSize = configuration.getInt(NatsInputConfig.CK_FILTER_MAX_SIZE, 0);
+        if (rules.isEmpty() && maxSize <= 0) {
+            return null;
+        }
+
+        return new InputFilter(rules, maxSize, metricRegistry);
+    }
+
+    @VisibleForTesting
+    static List<Rule> parse(@Nullable String config) {
+        final List<Rule> rules = new ArrayList<>();
+        if (config == null) {
+            return rules;
+        }
+
+        for (String line : config.split("\n")) {
+            final String rule = line.trim();
+            if (rule.isEmpty() || rule.startsWith("#")) {
+                continue;
+            }
+            final int separator = rule.indexOf(' ');
+            final String type = separator < 0 ? rule : rule.substring(0, separator);
+            final String argument = separator < 0 ? "" : rule.substring(separator + 1).trim();
+            if (argument.isEmpty()) {
+                throw new IllegalArgumentException("Missing argument of filter rule: " + rule);
+            }
+
+            switch (type.toLowerCase(Locale.ROOT)) {
+                case "subject":
+                    rules.add(subjectRule(argument));
+                    break;
+                case "prefix":
+                    rules.add(prefixRule(argument.getBytes(StandardCharsets.UTF_8)));
+                    break;
+                case "contains":
+                    rules.add(containsRule(argument.getBytes(StandardCharsets.UTF_8)));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter rule: " + rule);
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Returns whether the payload should be handed to the input, counting the drop otherwise.
+     */
+    boolean accepts(@Nullable String subject, byte[] payload) {
+        if (maxSize > 0 && payload.length > maxSize) {
+            oversized.inc();
+            return false;
+        }
+        for (int i = 0; i < rules.length; i++) {
+            if (rules[i].matches(subject, payload)) {
+                dropped[i].inc();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Rule subjectRule(String pattern) {
+        final String[] tokens = subjectPattern(pattern);
+        return (subject, payload) -> subject != null && matchesSubject(tokens, subject);
+    }
+
+    /**
+     * Splits a subject pattern into its tokens for {@link #matchesSubject(String[], String)}.
+     *
+     * @throws IllegalArgumentException if the pattern is invalid
+     */
+    static String[] subjectPattern(String pattern) {
+        final String[] tokens = pattern.split("\\.", -1);
+        for (int i = 0; i < tokens.length; i++) {
+            if (tokens[i].isEmpty() || (tokens[i].equals(">") && i < tokens.length - 1)) {
+                throw new IllegalArgumentException("Invalid subject pattern: " + pattern);
+            }
+        }
+        return tokens;
+    }
+
+    static boolean matchesSubject(String[] pattern, String subject) {
+        int start = 0;
+        for (String token : pattern) {
+            if (start > subject.length()) {
+                return false;
+            }
+            if (token.equals(">")) {
+                return true;
+            }
+            int end = subject.indexOf('.', start);
+            if (end < 0) {
+                end = subject.length();
+            }
+            if (!token.equals("*") && (token.length() != end - start || !subject.regionMatches(start, token, 0, token.length()))) {
+                return false;
+            }
+            start = end + 1;
+        }
+        return start == subject.length() + 1;
+    }
+
+    private static Rule prefixRule(byte[] prefix) {
+        return (subject, payload) -> startsWith(payload, prefix);
+    }
+
+    private static boolean startsWith(byte[] payload, byte[] prefix) {
+        if (payload.length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (payload[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Searches payloads with the Boyer-Moore-Horspool algorithm, whose shift table is built once per rule.
+     */
+    private static Rule containsRule(byte[] needle) {
+        final int[] shifts = new int[256];
+        Arrays.fill(shifts, needle.length);
+        for (int i = 0; i < needle.length - 1; i++) {
+            shifts[needle[i] & 0xFF] = needle.length - 1 - i;
+        }
+        return (subject, payload) -> indexOf(payload, needle, shifts) >= 0;
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle, int[] shifts) {
+        final int last = needle.length - 1;
+        int position = 0;
+        while (position + last < haystack.length) {
+            int i = last;
+            while (haystack[position + i] == needle[i]) {
+                if (i == 0) {
+                    return position;
+                }
+                i--;
+            }
+            position += shifts[haystack[position + last] & 0xFF];
+        }
+        return -1;
+    }
+}
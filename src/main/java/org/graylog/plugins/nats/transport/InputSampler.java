@@ -0,0 +1,213 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.annotations.VisibleForTesting;
+import org.graylog.plugins.nats.config.NatsInputConfig;
+import org.graylog2.plugin.configuration.Configuration;
+
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Samples the messages of noisy subjects. Each rule is a line {@code <subject pattern> <rate>} and keeps one out
+ * of {@code rate} messages of every subject matching the pattern; the first matching rule applies and subjects
+ * without a matching rule aren't sampled.
+ * <p>
+ * The sampler counts the messages per subject and keeps every {@code rate}-th message, so it's deterministic and
+ * costs a single increment. The rule of a subject is looked up once and cached, the least recently seen subjects
+ * are evicted from the cache. Inputs decoding GELF JSON have kept payloads tagged with the {@value #RATE_FIELD}
+ * field holding the rate, so counts can be scaled up again; other payloads are counted in the
+ * {@code sampling.<n>.kept} and {@code sampling.<n>.dropped} metrics only.
+ */
+class InputSampler {
+    static final String RATE_FIELD = "_sample_rate";
+
+    private static final int MAX_CACHED_SUBJECTS = 10000;
+    private static final SubjectSampler NOT_SAMPLED = new SubjectSampler(null);
+
+    private static class Rule {
+        private final String[] pattern;
+        private final int rate;
+        private final byte[] tag;
+        private final Meter kept;
+        private final Meter dropped;
+
+        private Rule(String[] pattern, int rate, Meter kept, Meter dropped) {
+            this.pattern = pattern;
+            this.rate = rate;
+            this.tag = ("\"" + RATE_FIELD + "\":" + rate).getBytes(StandardCharsets.UTF_8);
+            this.kept = kept;
+            this.dropped = dropped;
+        }
+    }
+
+    private static class SubjectSampler {
+        @Nullable
+        private final Rule rule;
+        private final AtomicLong counter = new AtomicLong();
+
+        private SubjectSampler(@Nullable Rule rule) {
+            this.rule = rule;
+        }
+    }
+
+    private final List<Rule> rules;
+    private final boolean tagPayloads;
+    private final Map<String, SubjectSampler> subjects;
+
+    @VisibleForTesting
+    InputSampler(String config, boolean tagPayloads, MetricRegistry metricRegistry) {
+        this(config, tagPayloads, MAX_CACHED_SUBJECTS, metricRegistry);
+    }
+
+    @VisibleForTesting
+    InputSampler(String config, boolean tagPayloads, int maxCachedSubjects, MetricRegistry metricRegistry) {
+        this.rules = parse(config, metricRegistry);
+        this.tagPayloads = tagPayloads;
+        // Wildcard subscriptions may see unbounded numbers of subjects
+        this.subjects = new LinkedHashMap<String, SubjectSampler>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SubjectSampler> eldest) {
+                return size() > maxCachedSubjects;
+            }
+        };
+    }
+
+    /**
+     * Creates a sampler as configured or returns {@code null} if no subjects are sampled.
+     *
+     * @param tagPayloads whether kept JSON payloads are tagged with the sampling rate
+     * @throws IllegalArgumentException if a rule is invalid
+     */
+    @Nullable
+    static InputSampler create(Configuration configuration, boolean tagPayloads, MetricRegistry metricRegistry) {
+        final InputSampler sampler = new InputSampler(configuration.getString(NatsInputConfig.CK_SAMPLING_RULES, ""),
+                tagPayloads, metricRegistry);
+        return sampler.rules.isEmpty() ? null : sampler;
+    }
+
+    private static List<Rule> parse(@Nullable String config, MetricRegistry metricRegistry) {
+        final List<Rule> rules = new ArrayList<>();
+        if (config == null) {
+            return rules;
+        }
+
+        for (String line : config.split("\n")) {
+            final String rule = line.trim();
+            if (rule.isEmpty() || rule.startsWith("#")) {
+                continue;
+            }
+            final String[] parts = rule.split("\\s+");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("Invalid sampling rule: " + rule);
+            }
+            final int rate;
+            try {
+                rate = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sampling rate: " + rule);
+            }
+            if (rate < 1) {
+                throw new IllegalArgumentException("Invalid sampling rate: " + rule);
+            }
+
+            final String index = String.valueOf(rules.size());
+            rules.add(new Rule(InputFilter.subjectPattern(parts[0]), rate,
+                    metricRegistry.meter(MetricRegistry.name("sampling", index, "kept")),
+                    metricRegistry.meter(MetricRegistry.name("sampling", index, "dropped"))));
+        }
+        return rules;
+    }
+
+    /**
+     * Returns the payload to hand to the input, tagged with the sampling rate if the subject is sampled and
+     * tagging is enabled, or {@code null} if the payload is dropped.
+     */
+    @Nullable
+    byte[] sample(@Nullable String subject, byte[] payload) {
+        if (subject == null) {
+            return payload;
+        }
+
+        final SubjectSampler sampler = samplerFor(subject);
+        final Rule rule = sampler.rule;
+        if (rule == null) {
+            return payload;
+        }
+        if (sampler.counter.getAndIncrement() % rule.rate != 0L) {
+            rule.dropped.mark();
+            return null;
+        }
+        rule.kept.mark();
+        return !tagPayloads || rule.rate == 1 ? payload : tag(payload, rule.tag);
+    }
+
+    private SubjectSampler samplerFor(String subject) {
+        synchronized (subjects) {
+            return subjects.computeIfAbsent(subject, this::match);
+        }
+    }
+
+    private SubjectSampler match(String subject) {
+        for (Rule rule : rules) {
+            if (InputFilter.matchesSubject(rule.pattern, subject)) {
+                return new SubjectSampler(rule);
+            }
+        }
+        return NOT_SAMPLED;
+    }
+
+    /**
+     * Inserts the tag as the first field of a JSON object, other payloads are returned as they are.
+     */
+    @VisibleForTesting
+    static byte[] tag(byte[] payload, byte[] tag) {
+        final int open = skipWhitespace(payload, 0);
+        if (open >= payload.length || payload[open] != '{') {
+            return payload;
+        }
+        final int next = skipWhitespace(payload, open + 1);
+        final boolean empty = next < payload.length && payload[next] == '}';
+
+        final byte[] tagged = new byte[payload.length + tag.length + (empty ? 0 : 1)];
+        System.arraycopy(payload, 0, tagged, 0, open + 1);
+        System.arraycopy(tag, 0, tagged, open + 1, tag.length);
+        int position = open + 1 + tag.length;
+        if (!empty) {
+            tagged[position++] = ',';
+        }
+        System.arraycopy(payload, open + 1, tagged, position, payload.length - open - 1);
+        return tagged;
+    }
+
+    private static int skipWhitespace(byte[] payload, int start) {
+        int i = start;
+        while (i < payload.length && (payload[i] == ' ' || payload[i] == '\t' || payload[i] == '\n' || payload[i] == '\r')) {
+            i++;
+        }
+        return i;
+    }
+}
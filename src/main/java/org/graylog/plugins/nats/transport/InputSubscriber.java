@@ -0,0 +1,95 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * Hands payloads to the input and requests more in batches, unless the input is throttled.
+ */
+class InputSubscriber implements Subscriber<byte[]> {
+    private static final Logger LOG = LoggerFactory.getLogger(InputSubscriber.class);
+
+    private final Consumer<byte[]> consumer;
+    private final int batchSize;
+    private final int replenishThreshold;
+    private final AtomicInteger consumed = new AtomicInteger();
+    private volatile Subscription subscription;
+    private volatile boolean throttled;
+
+    InputSubscriber(Consumer<byte[]> consumer, int batchSize) {
+        this.consumer = requireNonNull(consumer);
+        this.batchSize = batchSize;
+        this.replenishThreshold = Math.max(1, batchSize / 2);
+    }
+
+    @Override
+    public void onSubscribe(Subscription s) {
+        subscription = s;
+        s.request(batchSize);
+    }
+
+    @Override
+    public void onNext(byte[] payload) {
+        consumer.accept(payload);
+        if (consumed.incrementAndGet() >= replenishThreshold && !throttled) {
+            replenish();
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        LOG.error("Error in NATS message stream", t);
+    }
+
+    @Override
+    public void onComplete() {
+    }
+
+    /**
+     * Stops requesting payloads while the input is throttled, payloads which have already been requested are
+     * still delivered.
+     */
+    void setThrottled(boolean throttled) {
+        this.throttled = throttled;
+        if (!throttled) {
+            replenish();
+        }
+    }
+
+    void cancel() {
+        if (subscription != null) {
+            subscription.cancel();
+        }
+    }
+
+    private void replenish() {
+        final int n = consumed.getAndSet(0);
+        if (n > 0 && subscription != null) {
+            subscription.request(n);
+        }
+    }
+}
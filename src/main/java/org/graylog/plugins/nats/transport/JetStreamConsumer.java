@@ -0,0 +1,229 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableMap;
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.Subscription;
+import org.graylog.plugins.nats.concurrent.Deadlines;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A durable JetStream pull consumer, implemented on top of the request/reply based JetStream API of core NATS.
+ * <p>
+ * Messages are pulled in batches and acknowledged explicitly once the transport handed them to the input.
+ * While the input is throttled no messages are pulled, so they stay in the stream. Afterwards the batch size
+ * starts small and doubles with every complete batch until it reaches the configured batch size again.
+ */
+class JetStreamConsumer {
+    private static final Logger LOG = LoggerFactory.getLogger(JetStreamConsumer.class);
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final byte[] ACK = "+ACK".getBytes(StandardCharsets.US_ASCII);
+    private static final String ACK_SUBJECT_PREFIX = "$JS.ACK.";
+    private static final long API_TIMEOUT_MILLIS = 5000L;
+    private static final long FETCH_GRACE_MILLIS = 100L;
+    private static final long THROTTLE_POLL_MILLIS = 100L;
+    private static final int MIN_BATCH_SIZE = 4;
+
+    interface Handler {
+        void handle(String subject, byte[] payload, PayloadPublisher.Acknowledgement ack);
+    }
+
+    private final Connection connection;
+    private final String apiPrefix;
+    private final String stream;
+    private final String durableName;
+    private final String filterSubject;
+    private final int maxBatchSize;
+    private final long expiresMillis;
+    private final Handler handler;
+    private final BooleanSupplier throttled;
+    private final Meter fetches;
+    private final Meter messages;
+    private final Histogram fetchSize;
+
+    private volatile boolean running = true;
+    private volatile long drainDeadline;
+    private volatile CountDownLatch currentFetch;
+    private int batchSize;
+    @Nullable
+    private Subscription inboxSubscription;
+
+    JetStreamConsumer(Connection connection, String apiPrefix, String stream, String durableName, String filterSubject,
+                      int maxBatchSize, long expiresMillis, Handler handler, BooleanSupplier throttled,
+                      MetricRegistry metricRegistry) {
+        this.connection = requireNonNull(connection);
+        this.apiPrefix = requireNonNull(apiPrefix);
+        this.stream = requireNonNull(stream);
+        this.durableName = requireNonNull(durableName);
+        this.filterSubject = requireNonNull(filterSubject);
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.expiresMillis = expiresMillis;
+        this.handler = requireNonNull(handler);
+        this.throttled = requireNonNull(throttled);
+        this.batchSize = this.maxBatchSize;
+
+        final String metricPrefix = MetricRegistry.name("jetstream", durableName);
+        this.fetches = metricRegistry.meter(MetricRegistry.name(metricPrefix, "fetches"));
+        this.messages = metricRegistry.meter(MetricRegistry.name(metricPrefix, "messages"));
+        this.fetchSize = metricRegistry.histogram(MetricRegistry.name(metricPrefix, "fetchSize"));
+    }
+
+    /**
+     * Derives the name of the durable consumer for a filter subject. Durable names must not contain dots or wildcards.
+     */
+    static String durableName(String prefix, String subject) {
+        return prefix + "_" + subject.replaceAll("[.*>\\s]", "_");
+    }
+
+    /**
+     * Creates the durable consumer unless it already exists with the same configuration.
+     */
+    void create(long ackWaitMillis, int maxAckPending) throws IOException {
+        final Map<String, Object> config = ImmutableMap.<String, Object>builder()
+                .put("durable_name", durableName)
+                .put("deliver_policy", "all")
+                .put("ack_policy", "explicit")
+                .put("ack_wait", TimeUnit.MILLISECONDS.toNanos(ackWaitMillis))
+                .put("max_ack_pending", maxAckPending)
+                .put("filter_subject", filterSubject)
+                .put("replay_policy", "instant")
+                .build();
+        final byte[] request = OBJECT_MAPPER.writeValueAsBytes(ImmutableMap.of("stream_name", stream, "config", config));
+        final String subject = apiPrefix + ".CONSUMER.DURABLE.CREATE." + stream + "." + durableName;
+
+        final Message response;
+        try {
+            response = connection.request(subject, request, API_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating JetStream consumer " + durableName, e);
+        }
+        if (response == null || response.getData() == null) {
+            throw new IOException("No response from JetStream API, is JetStream enabled?");
+        }
+
+        final JsonNode error = OBJECT_MAPPER.readTree(response.getData()).path("error");
+        if (!error.isMissingNode()) {
+            throw new IOException("Couldn't create JetStream consumer " + durableName + ": " + error.path("description").asText());
+        }
+    }
+
+    /**
+     * Pulls messages until {@link #stop()} is called.
+     */
+    void run() {
+        final String inbox = connection.newInbox();
+        inboxSubscription = connection.subscribe(inbox, this::onMessage);
+        final String nextSubject = apiPrefix + ".CONSUMER.MSG.NEXT." + stream + "." + durableName;
+
+        try {
+            while (running) {
+                if (throttled.getAsBoolean()) {
+                    batchSize = Math.min(maxBatchSize, MIN_BATCH_SIZE);
+                    TimeUnit.MILLISECONDS.sleep(THROTTLE_POLL_MILLIS);
+                    continue;
+                }
+
+                final CountDownLatch fetch = new CountDownLatch(batchSize);
+                currentFetch = fetch;
+                connection.publish(nextSubject, inbox, pullRequest(batchSize, expiresMillis));
+                fetches.mark();
+
+                final boolean complete = fetch.await(expiresMillis + FETCH_GRACE_MILLIS, TimeUnit.MILLISECONDS);
+                fetchSize.update(batchSize - fetch.getCount());
+                if (complete && batchSize < maxBatchSize) {
+                    batchSize = Math.min(maxBatchSize, batchSize * 2);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            LOG.error("Error pulling messages from JetStream consumer {}", durableName, e);
+        } finally {
+            if (inboxSubscription != null) {
+                final Subscription subscription = inboxSubscription;
+                if (!Deadlines.awaitUntil(() -> subscription.getPendingMsgs() == 0, drainDeadline)) {
+                    LOG.warn("Couldn't process all pulled messages of JetStream consumer {}, they will be redelivered", durableName);
+                }
+                subscription.close();
+            }
+        }
+    }
+
+    /**
+     * Stops pulling messages, messages which have already been pulled are processed until the deadline passes.
+     *
+     * @param deadline the deadline in terms of {@link System#nanoTime()}
+     */
+    void stop(long deadline) {
+        drainDeadline = deadline;
+        running = false;
+        final CountDownLatch fetch = currentFetch;
+        if (fetch != null) {
+            while (fetch.getCount() > 0L) {
+                fetch.countDown();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static byte[] pullRequest(int batchSize, long expiresMillis) {
+        return ("{\"batch\":" + batchSize + ",\"expires\":" + TimeUnit.MILLISECONDS.toNanos(expiresMillis) + "}")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    @VisibleForTesting
+    void onMessage(Message message) {
+        final String replyTo = message.getReplyTo();
+        if (replyTo == null || !replyTo.startsWith(ACK_SUBJECT_PREFIX)) {
+            // Status messages like "no messages" or "request timeout" carry no ACK subject
+            return;
+        }
+
+        messages.mark();
+        handler.handle(message.getSubject(), message.getData(), () -> connection.publish(replyTo, ACK));
+        final CountDownLatch fetch = currentFetch;
+        if (fetch != null) {
+            fetch.countDown();
+        }
+    }
+
+    @VisibleForTesting
+    int getBatchSize() {
+        return batchSize;
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.google.common.eventbus.EventBus;
+import com.google.inject.assistedinject.Assisted;
+import org.graylog.plugins.nats.concurrent.BlockingExecutors;
+import org.graylog.plugins.nats.config.JetStreamConfig;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.configuration.ConfigurationRequest;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
+import org.graylog2.plugin.inputs.annotations.ConfigClass;
+import org.graylog2.plugin.inputs.annotations.FactoryClass;
+import org.graylog2.plugin.inputs.transports.Transport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Consumes a JetStream stream with one durable pull consumer per channel, using the channels as filter subjects.
+ */
+public class JetStreamTransport extends AbstractNatsTransport implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(JetStreamTransport.class);
+    private static final long STOP_GRACE_SECONDS = 1L;
+
+    private final List<JetStreamConsumer> consumers = new ArrayList<>();
+    private ExecutorService fetchExecutor;
+
+    @Inject
+    public JetStreamTransport(@Assisted Configuration configuration,
+                              EventBus eventBus,
+                              LocalMetricRegistry metricRegistry) {
+        super(configuration, eventBus, metricRegistry);
+    }
+
+    @Override
+    protected void doLaunch(MessageInput input) throws MisfireException {
+        final String stream = configuration.getString(JetStreamConfig.CK_STREAM);
+        final String durableName = configuration.getString(JetStreamConfig.CK_DURABLE_NAME, JetStreamConfig.DEFAULT_DURABLE_NAME);
+        final int batchSize = configuration.getInt(JetStreamConfig.CK_FETCH_BATCH_SIZE, JetStreamConfig.DEFAULT_FETCH_BATCH_SIZE);
+        final int expires = configuration.getInt(JetStreamConfig.CK_FETCH_EXPIRES, JetStreamConfig.DEFAULT_FETCH_EXPIRES);
+        final int ackWait = configuration.getInt(JetStreamConfig.CK_ACK_WAIT, JetStreamConfig.DEFAULT_ACK_WAIT);
+        if (stream == null || stream.trim().isEmpty()) {
+            throw new MisfireException("No JetStream stream configured");
+        }
+        if (durableName == null || durableName.trim().isEmpty() || durableName.trim().matches(".*[.*>\\s].*")) {
+            throw new MisfireException("Invalid JetStream durable name, it must not be empty or contain dots, wildcards or whitespace");
+        }
+        if (batchSize <= 0 || expires <= 0 || ackWait <= 0) {
+            throw new MisfireException("JetStream fetch batch size, fetch expiry and ack wait must be positive");
+        }
+
+        super.doLaunch(input);
+    }
+
+    @Override
+    void startReceiving() throws MisfireException {
+        final String stream = configuration.getString(JetStreamConfig.CK_STREAM).trim();
+        final String durableName = configuration.getString(JetStreamConfig.CK_DURABLE_NAME, JetStreamConfig.DEFAULT_DURABLE_NAME).trim();
+        final String apiPrefix = configuration.getString(JetStreamConfig.CK_API_PREFIX, JetStreamConfig.DEFAULT_API_PREFIX);
+        final int batchSize = configuration.getInt(JetStreamConfig.CK_FETCH_BATCH_SIZE, JetStreamConfig.DEFAULT_FETCH_BATCH_SIZE);
+        final int expires = configuration.getInt(JetStreamConfig.CK_FETCH_EXPIRES, JetStreamConfig.DEFAULT_FETCH_EXPIRES);
+        final int ackWait = configuration.getInt(JetStreamConfig.CK_ACK_WAIT, JetStreamConfig.DEFAULT_ACK_WAIT);
+        final int maxAckPending = configuration.getInt(JetStreamConfig.CK_MAX_ACK_PENDING, JetStreamConfig.DEFAULT_MAX_ACK_PENDING);
+
+        for (String channel : getChannels()) {
+            final JetStreamConsumer consumer = new JetStreamConsumer(connection, apiPrefix, stream,
+                    JetStreamConsumer.durableName(durableName, channel), channel, batchSize, expires,
+                    this::handleMessage, this::isThrottled, metricRegistry);
+            try {
+                consumer.create(ackWait, maxAckPending);
+            } catch (IOException e) {
+                throw new MisfireException("Couldn't create JetStream consumer for " + channel, e);
+            }
+            consumers.add(consumer);
+        }
+
+        fetchExecutor = BlockingExecutors.newLoopExecutor("nats-jetstream-fetch-", Math.max(1, consumers.size()));
+        consumers.forEach(consumer -> fetchExecutor.execute(consumer::run));
+    }
+
+    @Override
+    void stopReceiving(long deadline) {
+        consumers.forEach(consumer -> consumer.stop(deadline));
+        if (fetchExecutor != null) {
+            fetchExecutor.shutdown();
+            try {
+                final long remainingNanos = Math.max(0L, deadline - System.nanoTime());
+                if (!fetchExecutor.awaitTermination(remainingNanos + TimeUnit.SECONDS.toNanos(STOP_GRACE_SECONDS), TimeUnit.NANOSECONDS)) {
+                    LOG.warn("JetStream consumers didn't stop in time");
+                    fetchExecutor.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                fetchExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        consumers.clear();
+        metricRegistry.removeMatching((name, metric) -> name.startsWith("jetstream."));
+    }
+
+    @Override
+    public void close() throws IOException {
+        stop();
+    }
+
+    @FactoryClass
+    public interface Factory extends Transport.Factory<JetStreamTransport> {
+        @Override
+        JetStreamTransport create(Configuration configuration);
+
+        @Override
+        Config getConfig();
+    }
+
+    @ConfigClass
+    public static class Config extends AbstractNatsTransport.Config {
+        @Override
+        public ConfigurationRequest getRequestedConfiguration() {
+            final ConfigurationRequest r = super.getRequestedConfiguration();
+            JetStreamConfig.addFields(r);
+            return r;
+        }
+    }
+}
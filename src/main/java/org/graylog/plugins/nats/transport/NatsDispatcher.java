@@ -0,0 +1,146 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import io.nats.client.Connection;
+import io.nats.client.MessageHandler;
+import io.nats.client.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Objects.requireNonNull;
+
+/**
+ * A NATS connection with its own set of subscriptions. The client delivers the messages of every connection
+ * on separate threads, so several dispatchers let the transport handle messages on several cores.
+ */
+class NatsDispatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(NatsDispatcher.class);
+
+    private final Connection connection;
+    private final boolean ownsConnection;
+    private final MessageHandler handler;
+    private final List<String> channels;
+    @Nullable
+    private final String queueGroup;
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private final List<Subscription> draining = new ArrayList<>();
+    private final MetricRegistry metricRegistry;
+    private final String metricPrefix;
+
+    /**
+     * @param ownsConnection whether the connection is closed together with the dispatcher
+     * @param queueGroup     the queue group of the subscriptions, messages are load balanced between the
+     *                       subscriptions of a queue group; {@code null} for regular subscriptions
+     */
+    NatsDispatcher(int id, Connection connection, boolean ownsConnection, List<String> channels,
+                   @Nullable String queueGroup, MessageHandler handler, MetricRegistry metricRegistry) {
+        this.connection = requireNonNull(connection);
+        this.ownsConnection = ownsConnection;
+        this.channels = requireNonNull(channels);
+        this.queueGroup = queueGroup;
+        this.metricRegistry = requireNonNull(metricRegistry);
+        this.metricPrefix = MetricRegistry.name("dispatcher", String.valueOf(id));
+
+        final Meter throughput = metricRegistry.meter(MetricRegistry.name(metricPrefix, "throughput"));
+        this.handler = m -> {
+            throughput.mark();
+            handler.onMessage(m);
+        };
+        final String pendingName = MetricRegistry.name(metricPrefix, "pending");
+        metricRegistry.remove(pendingName);
+        metricRegistry.register(pendingName, (Gauge<Integer>) this::getPendingMessages);
+    }
+
+    synchronized void subscribe() {
+        if (!subscriptions.isEmpty()) {
+            return;
+        }
+        for (String channel : channels) {
+            final Subscription subscription = queueGroup == null
+                    ? connection.subscribe(channel, handler)
+                    : connection.subscribe(channel, queueGroup, handler);
+            subscriptions.add(subscription);
+        }
+    }
+
+    /**
+     * Tells the server to stop delivering messages, while the messages received so far are still handed
+     * to the message handler.
+     */
+    synchronized void stopDelivery() {
+        for (Subscription subscription : subscriptions) {
+            final long received = subscription.getDelivered() + subscription.getPendingMsgs();
+            try {
+                subscription.autoUnsubscribe((int) Math.min(Integer.MAX_VALUE, Math.max(1L, received)));
+            } catch (Exception e) {
+                LOG.debug("Couldn't stop delivery of subscription {}", subscription.getSubject(), e);
+            }
+        }
+    }
+
+    /**
+     * Stops the delivery of new messages like {@link #stopDelivery()} and lets the current subscriptions close
+     * once the messages already received by the client have been handed to the message handler.
+     * {@link #subscribe()} creates new subscriptions.
+     */
+    synchronized void pause() {
+        stopDelivery();
+        draining.removeIf(subscription -> !subscription.isValid());
+        draining.addAll(subscriptions);
+        subscriptions.clear();
+    }
+
+    synchronized void unsubscribe() {
+        subscriptions.forEach(Subscription::close);
+        subscriptions.clear();
+        draining.forEach(Subscription::close);
+        draining.clear();
+    }
+
+    /**
+     * The number of messages received by the client which haven't been handled yet.
+     */
+    synchronized int getPendingMessages() {
+        int pending = 0;
+        for (Subscription subscription : subscriptions) {
+            pending += subscription.getPendingMsgs();
+        }
+        for (Subscription subscription : draining) {
+            if (subscription.isValid()) {
+                pending += subscription.getPendingMsgs();
+            }
+        }
+        return pending;
+    }
+
+    void close() {
+        unsubscribe();
+        if (ownsConnection) {
+            connection.close();
+        }
+        metricRegistry.removeMatching((name, metric) -> name.startsWith(metricPrefix + "."));
+    }
+}
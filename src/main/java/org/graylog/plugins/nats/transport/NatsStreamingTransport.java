@@ -23,16 +23,15 @@ import io.nats.stan.Connection;
 import io.nats.stan.ConnectionFactory;
 import io.nats.stan.MessageHandler;
 import io.nats.stan.Subscription;
+import io.nats.stan.SubscriptionOptions;
 import org.graylog.plugins.nats.config.NatsStreamingConfig;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
-import org.graylog2.plugin.inputs.MessageInput;
 import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.inputs.transports.Transport;
-import org.graylog2.plugin.journal.RawMessage;
 
 import javax.inject.Inject;
 import java.io.Closeable;
@@ -54,16 +53,20 @@ public class NatsStreamingTransport extends AbstractNatsTransport implements Clo
     }
 
     @Override
-    protected void doLaunch(MessageInput input) throws MisfireException {
-        super.doLaunch(input);
-
+    void startReceiving() throws MisfireException {
         streamingConnection = createNatsStreamingConnection();
 
-        final MessageHandler messageHandler = m -> input.processRawMessage(new RawMessage(m.getData()));
+        final boolean flowControl = isFlowControlEnabled();
+        final MessageHandler messageHandler = flowControl
+                ? m -> handleMessage(m.getSubject(), m.getData(), m::ack)
+                : m -> handleMessage(m.getSubject(), m.getData(), null);
+        final SubscriptionOptions subscriptionOptions = flowControl
+                ? new SubscriptionOptions.Builder().setManualAcks(true).setMaxInFlight(getPrefetch()).build()
+                : new SubscriptionOptions.Builder().build();
         final Set<String> channels = getChannels();
         for (String channel : channels) {
             try {
-                final Subscription subscription = streamingConnection.subscribe(channel, messageHandler);
+                final Subscription subscription = streamingConnection.subscribe(channel, messageHandler, subscriptionOptions);
                 subscriptions.add(subscription);
             } catch (Exception e) {
                 // Ignore
@@ -91,9 +94,17 @@ public class NatsStreamingTransport extends AbstractNatsTransport implements Clo
         }
     }
 
+    /**
+     * Closes the subscriptions right away, the server redelivers messages which haven't been acknowledged.
+     */
     @Override
-    protected void doStop() {
+    void stopReceiving(long deadline) {
         subscriptions.forEach(Subscription::close);
+        subscriptions.clear();
+    }
+
+    @Override
+    void closeConnection() {
         if (streamingConnection != null) {
             try {
                 streamingConnection.close();
@@ -102,7 +113,7 @@ public class NatsStreamingTransport extends AbstractNatsTransport implements Clo
             }
         }
 
-        super.doStop();
+        super.closeConnection();
     }
 
     @Override
@@ -18,28 +18,39 @@
 package org.graylog.plugins.nats.transport;
 
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.assistedinject.Assisted;
+import io.nats.client.Connection;
 import io.nats.client.MessageHandler;
-import io.nats.client.Subscription;
-import org.graylog.plugins.nats.config.NatsConfig;
+import org.graylog.plugins.nats.concurrent.Deadlines;
+import org.graylog.plugins.nats.config.NatsInputConfig;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.configuration.ConfigurationRequest;
-import org.graylog2.plugin.inputs.MessageInput;
 import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.inputs.annotations.ConfigClass;
 import org.graylog2.plugin.inputs.annotations.FactoryClass;
 import org.graylog2.plugin.inputs.transports.Transport;
-import org.graylog2.plugin.journal.RawMessage;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import java.io.Closeable;
 import java.io.IOException;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 public class NatsTransport extends AbstractNatsTransport implements Closeable {
-    private final Set<Subscription> subscriptions = new HashSet<>();
+    private static final Logger LOG = LoggerFactory.getLogger(NatsTransport.class);
+
+    private final List<NatsDispatcher> dispatchers = new ArrayList<>();
+    private ExecutorService flowControlExecutor;
 
     @Inject
     public NatsTransport(@Assisted Configuration configuration,
@@ -49,25 +60,111 @@ public class NatsTransport extends AbstractNatsTransport implements Closeable {
     }
 
     @Override
-    protected void doLaunch(MessageInput input) throws MisfireException {
-        super.doLaunch(input);
+    void startReceiving() throws MisfireException {
+        startDispatchers();
+        subscribe();
+    }
 
-        final MessageHandler messageHandler = m -> input.processRawMessage(new RawMessage(m.getData()));
-        final Set<String> channels = getChannels();
+    /**
+     * Creates the dispatchers: either one per channel, or the configured number of dispatchers subscribing to
+     * all channels in a queue group private to this transport, so NATS spreads every channel's messages over them.
+     * The first dispatcher uses the transport's connection, all others open their own connection.
+     */
+    private void startDispatchers() throws MisfireException {
+        final MessageHandler messageHandler = m -> handleMessage(m.getSubject(), m.getData(), null);
+        final List<String> channels = new ArrayList<>(getChannels());
+        final String mode = configuration.getString(NatsInputConfig.CK_DISPATCHER_MODE, NatsInputConfig.DISPATCHER_MODE_SHARED);
 
-        for (String channel : channels) {
-            final Subscription subscription = connection.subscribe(channel, messageHandler);
-            subscriptions.add(subscription);
+        if (NatsInputConfig.DISPATCHER_MODE_PER_CHANNEL.equals(mode)) {
+            for (int i = 0; i < channels.size(); i++) {
+                addDispatcher(i, Collections.singletonList(channels.get(i)), null, messageHandler);
+            }
+        } else {
+            final int count = Math.max(1, configuration.getInt(NatsInputConfig.CK_DISPATCHERS, NatsInputConfig.DEFAULT_DISPATCHERS));
+            final String queueGroup = count > 1 ? "graylog-" + UUID.randomUUID() : null;
+            for (int i = 0; i < count; i++) {
+                addDispatcher(i, channels, queueGroup, messageHandler);
+            }
+        }
+        LOG.debug("Started {} NATS dispatchers", dispatchers.size());
+    }
+
+    private void addDispatcher(int id, List<String> channels, @Nullable String queueGroup, MessageHandler messageHandler) throws MisfireException {
+        final Connection dispatcherConnection = id == 0 ? connection : createNatsConnection();
+        dispatchers.add(new NatsDispatcher(id, dispatcherConnection, id != 0, channels, queueGroup, messageHandler, metricRegistry));
+    }
+
+    private synchronized void subscribe() {
+        dispatchers.forEach(NatsDispatcher::subscribe);
+    }
+
+    private synchronized void pause() {
+        dispatchers.forEach(NatsDispatcher::pause);
+    }
+
+    private synchronized void closeDispatchers() {
+        dispatchers.forEach(NatsDispatcher::close);
+        dispatchers.clear();
+    }
+
+    /**
+     * Core NATS has no flow control, so the subscriptions are closed while paused. Messages already received by
+     * the client are still handed to the input, while messages published during the pause are lost. Subscriptions
+     * are changed asynchronously because pausing is triggered by the message handler of a subscription.
+     */
+    @Override
+    PayloadPublisher.FlowControl createFlowControl() {
+        flowControlExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("nats-transport-flow-control-%d")
+                .build());
+        return new PayloadPublisher.FlowControl() {
+            @Override
+            public void pause() {
+                LOG.debug("Pausing NATS subscriptions");
+                changeSubscriptions(NatsTransport.this::pause);
+            }
+
+            @Override
+            public void resume() {
+                LOG.debug("Resuming NATS subscriptions");
+                changeSubscriptions(NatsTransport.this::subscribe);
+            }
+        };
+    }
+
+    private void changeSubscriptions(Runnable change) {
+        try {
+            flowControlExecutor.execute(change);
+        } catch (RejectedExecutionException e) {
+            LOG.debug("Not changing NATS subscriptions of stopped transport");
         }
     }
 
     @Override
     protected void doStop() {
-        subscriptions.forEach(Subscription::close);
+        if (flowControlExecutor != null) {
+            flowControlExecutor.shutdownNow();
+        }
 
         super.doStop();
     }
 
+    @Override
+    void stopReceiving(long deadline) {
+        final List<NatsDispatcher> currentDispatchers;
+        synchronized (this) {
+            currentDispatchers = new ArrayList<>(dispatchers);
+        }
+        currentDispatchers.forEach(NatsDispatcher::stopDelivery);
+        final boolean drained = Deadlines.awaitUntil(
+                () -> currentDispatchers.stream().mapToInt(NatsDispatcher::getPendingMessages).sum() == 0, deadline);
+        if (!drained) {
+            LOG.warn("Dropping messages received by NATS subscriptions which couldn't be processed in time");
+        }
+        closeDispatchers();
+    }
+
     @Override
     public void close() throws IOException {
         stop();
@@ -84,5 +181,11 @@ public class NatsTransport extends AbstractNatsTransport implements Closeable {
 
     @ConfigClass
     public static class Config extends AbstractNatsTransport.Config {
+        @Override
+        public ConfigurationRequest getRequestedConfiguration() {
+            final ConfigurationRequest r = super.getRequestedConfiguration();
+            NatsInputConfig.addDispatcherFields(r);
+            return r;
+        }
     }
 }
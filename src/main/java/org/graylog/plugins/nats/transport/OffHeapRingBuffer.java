@@ -0,0 +1,270 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded FIFO buffer for message payloads in direct memory.
+ * <p>
+ * Records are stored back to back in a ring of fixed capacity, each consisting of the payload length,
+ * the time it has been written and the payload itself. Like {@link java.util.concurrent.LinkedBlockingQueue}
+ * it uses separate locks for writers and readers, so the thread writing a payload never contends with the
+ * threads copying payloads out of the buffer. Writers block until enough space has been freed.
+ * <p>
+ * The direct memory is freed by {@link #release()} instead of waiting for the buffer to be garbage collected.
+ */
+class OffHeapRingBuffer {
+    private static final Logger LOG = LoggerFactory.getLogger(OffHeapRingBuffer.class);
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+    private final ByteBuffer buffer;
+    private final ByteBuffer writeBuffer;
+    private final ByteBuffer readBuffer;
+    private final int capacity;
+
+    private final ReentrantLock putLock = new ReentrantLock();
+    private final Condition notFull = putLock.newCondition();
+    private final ReentrantLock takeLock = new ReentrantLock();
+    private final Condition notEmpty = takeLock.newCondition();
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicInteger count = new AtomicInteger();
+    private volatile boolean released;
+
+    private final Timer writeWait;
+    private final Timer residence;
+
+    OffHeapRingBuffer(int capacity, MetricRegistry metricRegistry) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.writeBuffer = buffer.duplicate();
+        this.readBuffer = buffer.duplicate();
+        this.capacity = capacity;
+        this.writeWait = metricRegistry.timer(MetricRegistry.name("offheap", "writeWait"));
+        this.residence = metricRegistry.timer(MetricRegistry.name("offheap", "residence"));
+        metricRegistry.register(MetricRegistry.name("offheap", "capacity"), (Gauge<Integer>) () -> capacity);
+        metricRegistry.register(MetricRegistry.name("offheap", "used"), (Gauge<Long>) this::getUsedBytes);
+        metricRegistry.register(MetricRegistry.name("offheap", "messages"), (Gauge<Integer>) this::size);
+    }
+
+    /**
+     * Checks whether a payload of the given size fits into the buffer at all.
+     */
+    boolean fits(int payloadSize) {
+        return HEADER_SIZE + (long) payloadSize <= capacity;
+    }
+
+    int size() {
+        return count.get();
+    }
+
+    long getUsedBytes() {
+        return head.get() - tail.get();
+    }
+
+    /**
+     * Copies the payload into the buffer, waiting for enough free space if necessary.
+     *
+     * @throws IllegalArgumentException if the payload doesn't fit into the buffer
+     * @throws IllegalStateException    if the buffer has been released
+     */
+    void put(byte[] payload) throws InterruptedException {
+        if (!fits(payload.length)) {
+            throw new IllegalArgumentException("Payload of " + payload.length + " bytes exceeds buffer capacity of " + capacity + " bytes");
+        }
+
+        final int recordSize = HEADER_SIZE + payload.length;
+        final int c;
+        putLock.lockInterruptibly();
+        try {
+            if (capacity - getUsedBytes() < recordSize) {
+                final long waitStart = System.nanoTime();
+                while (!released && capacity - getUsedBytes() < recordSize) {
+                    notFull.await();
+                }
+                writeWait.update(System.nanoTime() - waitStart, TimeUnit.NANOSECONDS);
+            }
+            if (released) {
+                throw new IllegalStateException("Off-heap buffer has been released");
+            }
+
+            final long position = head.get();
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(payload.length).putLong(System.nanoTime());
+            write(position, header.array());
+            write(position + HEADER_SIZE, payload);
+            head.set(position + recordSize);
+            c = count.getAndIncrement();
+        } finally {
+            putLock.unlock();
+        }
+
+        if (c == 0) {
+            signalNotEmpty();
+        }
+    }
+
+    /**
+     * Copies the oldest payload out of the buffer, waiting up to the given time if the buffer is empty.
+     *
+     * @return the payload or {@code null} if the buffer was still empty after the timeout or has been released
+     */
+    @Nullable
+    byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final byte[] payload;
+        final int c;
+        long nanos = unit.toNanos(timeout);
+        takeLock.lockInterruptibly();
+        try {
+            while (count.get() == 0 && !released) {
+                if (nanos <= 0L) {
+                    return null;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            if (released) {
+                return null;
+            }
+
+            final long position = tail.get();
+            final byte[] headerBytes = new byte[HEADER_SIZE];
+            read(position, headerBytes);
+            final ByteBuffer header = ByteBuffer.wrap(headerBytes);
+            payload = new byte[header.getInt()];
+            final long writtenAt = header.getLong();
+            read(position + HEADER_SIZE, payload);
+            tail.set(position + HEADER_SIZE + payload.length);
+            residence.update(System.nanoTime() - writtenAt, TimeUnit.NANOSECONDS);
+
+            c = count.getAndDecrement();
+            if (c > 1) {
+                notEmpty.signal();
+            }
+        } finally {
+            takeLock.unlock();
+        }
+
+        signalNotFull();
+        return payload;
+    }
+
+    /**
+     * Frees the direct memory. Payloads still in the buffer are lost, waiting writers fail and waiting readers
+     * return {@code null}.
+     */
+    void release() {
+        putLock.lock();
+        takeLock.lock();
+        try {
+            if (released) {
+                return;
+            }
+            released = true;
+            count.set(0);
+            tail.set(head.get());
+            notFull.signalAll();
+            notEmpty.signalAll();
+            free(buffer);
+        } finally {
+            takeLock.unlock();
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Invokes the cleaner of a direct buffer through {@code sun.misc.Unsafe} on Java 9+ or the buffer's own cleaner
+     * on Java 8. If neither is accessible, the memory is freed once the buffer is garbage collected.
+     */
+    private static void free(ByteBuffer directBuffer) {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            try {
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                invokeCleaner.invoke(theUnsafe.get(null), directBuffer);
+            } catch (NoSuchMethodException e) {
+                final Method cleanerMethod = directBuffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                final Object cleaner = cleanerMethod.invoke(directBuffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            LOG.debug("Couldn't free off-heap buffer, leaving it to the garbage collector", e);
+        }
+    }
+
+    // Positions are set through Buffer to stay binary compatible with Java 8 when compiled on newer JDKs.
+    private void write(long position, byte[] src) {
+        final int offset = (int) (position % capacity);
+        final int first = Math.min(src.length, capacity - offset);
+        ((Buffer) writeBuffer).position(offset);
+        writeBuffer.put(src, 0, first);
+        if (first < src.length) {
+            ((Buffer) writeBuffer).position(0);
+            writeBuffer.put(src, first, src.length - first);
+        }
+    }
+
+    private void read(long position, byte[] dst) {
+        final int offset = (int) (position % capacity);
+        final int first = Math.min(dst.length, capacity - offset);
+        ((Buffer) readBuffer).position(offset);
+        readBuffer.get(dst, 0, first);
+        if (first < dst.length) {
+            ((Buffer) readBuffer).position(0);
+            readBuffer.get(dst, first, dst.length - first);
+        }
+    }
+
+    private void signalNotEmpty() {
+        takeLock.lock();
+        try {
+            notEmpty.signal();
+        } finally {
+            takeLock.unlock();
+        }
+    }
+
+    private void signalNotFull() {
+        putLock.lock();
+        try {
+            notFull.signal();
+        } finally {
+            putLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes the payloads received by a transport to a single Reactive Streams {@link Subscriber}.
+ * <p>
+ * Payloads are queued until the subscriber requested them. Once {@code prefetch} payloads are queued, the
+ * {@link FlowControl} pauses the source and resumes it when half of them have been delivered. Payloads are
+ * acknowledged after they have been passed to {@link Subscriber#onNext(Object)}, so sources with a limited
+ * number of unacknowledged messages (e. g. NATS Streaming with max. in-flight) need no flow control at all.
+ */
+class PayloadPublisher implements Publisher<byte[]> {
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadPublisher.class);
+
+    static final FlowControl NO_FLOW_CONTROL = new FlowControl() {
+        @Override
+        public void pause() {
+        }
+
+        @Override
+        public void resume() {
+        }
+    };
+
+    interface FlowControl {
+        void pause();
+
+        void resume();
+    }
+
+    interface Acknowledgement {
+        void ack() throws IOException;
+    }
+
+    private final int prefetch;
+    private final FlowControl flowControl;
+    private final Queue<Delivery> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger wip = new AtomicInteger();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicReference<Subscriber<? super byte[]>> subscriber = new AtomicReference<>();
+    private volatile boolean cancelled;
+    private boolean paused;
+
+    PayloadPublisher(int prefetch, FlowControl flowControl) {
+        this.prefetch = prefetch;
+        this.flowControl = flowControl;
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super byte[]> s) {
+        if (!subscriber.compareAndSet(null, s)) {
+            s.onSubscribe(new Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            s.onError(new IllegalStateException("Only a single subscriber is supported"));
+            return;
+        }
+
+        s.onSubscribe(new Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0L) {
+                    cancelled = true;
+                    s.onError(new IllegalArgumentException("Requested " + n + " payloads, must be positive"));
+                    return;
+                }
+                requested.getAndUpdate(r -> r + n < 0L ? Long.MAX_VALUE : r + n);
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                cancelled = true;
+                drain();
+            }
+        });
+        drain();
+    }
+
+    /**
+     * Queues a received payload for delivery.
+     *
+     * @param ack acknowledges the payload after delivery, may be {@code null}
+     */
+    void offer(byte[] payload, @Nullable Acknowledgement ack) {
+        if (cancelled) {
+            return;
+        }
+        queue.offer(new Delivery(payload, ack));
+        queued.incrementAndGet();
+        drain();
+    }
+
+    int getQueuedCount() {
+        return queued.get();
+    }
+
+    boolean isPaused() {
+        return paused;
+    }
+
+    // Delivery, flow control and cancellation are serialized by the work-in-progress counter.
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        do {
+            final Subscriber<? super byte[]> s = subscriber.get();
+            if (cancelled) {
+                queue.clear();
+                queued.set(0);
+            } else if (s != null) {
+                final long r = requested.get();
+                long emitted = 0L;
+                Delivery delivery;
+                while (emitted != r && !cancelled && (delivery = queue.poll()) != null) {
+                    queued.decrementAndGet();
+                    s.onNext(delivery.payload);
+                    delivery.acknowledge();
+                    emitted++;
+                }
+                if (emitted > 0L && r != Long.MAX_VALUE) {
+                    requested.addAndGet(-emitted);
+                }
+            }
+            updateFlowControl();
+
+            missed = wip.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private void updateFlowControl() {
+        final int count = queued.get();
+        if (!paused && (cancelled || count >= prefetch)) {
+            paused = true;
+            flowControl.pause();
+        } else if (paused && !cancelled && count <= prefetch / 2) {
+            paused = false;
+            flowControl.resume();
+        }
+    }
+
+    private static class Delivery {
+        private final byte[] payload;
+        @Nullable
+        private final Acknowledgement ack;
+
+        private Delivery(byte[] payload, @Nullable Acknowledgement ack) {
+            this.payload = payload;
+            this.ack = ack;
+        }
+
+        private void acknowledge() {
+            if (ack == null) {
+                return;
+            }
+            try {
+                ack.ack();
+            } catch (IOException e) {
+                LOG.warn("Couldn't acknowledge message", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.concurrent;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Creates executors for tasks which spend most of their time blocked, e. g. waiting for publish ACKs.
+ * <p>
+ * This is the Java 21 implementation which starts a virtual thread per task on Java 24 or later, unless disabled
+ * with the {@value #VIRTUAL_THREADS_PROPERTY} system property. Before Java 24, a virtual thread blocking inside a
+ * {@code synchronized} block pins its carrier thread (JEP 491), so blocking calls into the NATS clients would be
+ * limited to the number of carrier threads; these versions use the bounded pool of platform threads instead.
+ */
+public final class BlockingExecutors {
+    /**
+     * System property to disable virtual threads on Java 24+, e. g. for comparing both modes.
+     */
+    public static final String VIRTUAL_THREADS_PROPERTY = "nats.virtual-threads";
+
+    private BlockingExecutors() {
+    }
+
+    /**
+     * Whether the executors created by {@link #newExecutor(String, int)} use virtual threads.
+     */
+    public static boolean isVirtual() {
+        return Runtime.version().feature() >= 24
+                && !"false".equalsIgnoreCase(System.getProperty(VIRTUAL_THREADS_PROPERTY));
+    }
+
+    /**
+     * Creates an executor for blocking tasks. The bounded pool of platform threads runs at most {@code maxThreads}
+     * tasks concurrently, while virtual threads run every task right away, so callers bound the number of
+     * submitted tasks themselves.
+     */
+    public static ExecutorService newExecutor(String namePrefix, int maxThreads) {
+        if (isVirtual()) {
+            return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 0L).factory());
+        }
+        return newBoundedExecutor(namePrefix, maxThreads);
+    }
+
+    /**
+     * Creates an executor for long-running loops, e. g. queue consumers, which always uses platform threads.
+     * A few threads living as long as the plugin don't gain anything from virtual threads.
+     */
+    public static ExecutorService newLoopExecutor(String namePrefix, int threads) {
+        return newBoundedExecutor(namePrefix, threads);
+    }
+
+    static ExecutorService newBoundedExecutor(String namePrefix, int maxThreads) {
+        return Executors.newFixedThreadPool(maxThreads, new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat(namePrefix + "%d")
+                .build());
+    }
+}
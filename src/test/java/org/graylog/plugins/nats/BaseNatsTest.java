@@ -19,6 +19,7 @@ package org.graylog.plugins.nats;
 
 import io.nats.client.ConnectionFactory;
 import org.awaitility.Awaitility;
+import org.graylog.plugins.nats.testing.EmbeddedNatsServer;
 import org.junit.BeforeClass;
 
 import java.util.concurrent.TimeUnit;
@@ -27,10 +28,11 @@ import static org.junit.Assume.assumeFalse;
 
 public abstract class BaseNatsTest {
     private static boolean SKIP = Boolean.getBoolean("nats.tests.skip");
+    private static boolean EMBEDDED = Boolean.getBoolean("nats.tests.embedded");
 
     private static final String HOST = System.getProperty("nats.host", ConnectionFactory.DEFAULT_HOST);
     private static final int PORT = Integer.getInteger("nats.port", ConnectionFactory.DEFAULT_PORT);
-    protected static final String URL = "nats://" + HOST + ":" + PORT;
+    protected static final String URL = EMBEDDED ? EmbeddedNatsServer.shared().getUrl() : "nats://" + HOST + ":" + PORT;
 
     static {
         Awaitility.setDefaultTimeout(5L, TimeUnit.SECONDS);
@@ -0,0 +1,100 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.codec;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BinaryGelfCodecTest {
+    private static final Map<String, Object> GELF_MESSAGE = ImmutableMap.<String, Object>builder()
+            .put("version", "1.1")
+            .put("host", "example.org")
+            .put("short_message", "A short message")
+            .put("full_message", "Backtrace here\n\nmore stuff")
+            .put("timestamp", 1385053862.3072d)
+            .put("level", 1)
+            .put("_user_id", 9001)
+            .put("_bytes", 4242424242L)
+            .put("_some_info", "foo")
+            .put("_ratio", 0.5d)
+            .put("_flag", true)
+            .put("_nested", ImmutableMap.of("foo", "bar"))
+            .put("_list", ImmutableList.of(1, "two"))
+            .build();
+
+    @Test
+    public void decodeBinaryEncodings() throws Exception {
+        final BinaryGelfCodec codec = new BinaryGelfCodec(new Configuration(Collections.emptyMap()));
+        for (GelfEncoding encoding : GelfEncoding.values()) {
+            final byte[] payload = new ObjectMapper(encoding.getFactory()).writeValueAsBytes(GELF_MESSAGE);
+            assertThat(BinaryGelfCodec.detectEncoding(payload)).isEqualTo(encoding);
+
+            final Message message = codec.decode(new RawMessage(payload));
+
+            assertThat(message).isNotNull();
+            assertThat(message.getSource()).isEqualTo("example.org");
+            assertThat(message.getMessage()).isEqualTo("A short message");
+            assertThat(message.getTimestamp()).isEqualTo(new DateTime(2013, 11, 21, 17, 11, 2, 307, DateTimeZone.UTC));
+            assertThat(message.getField(Message.FIELD_FULL_MESSAGE)).isEqualTo("Backtrace here\n\nmore stuff");
+            assertThat(message.getField(Message.FIELD_LEVEL)).isEqualTo(1);
+            assertThat(message.getField("user_id")).isEqualTo(9001);
+            assertThat(message.getField("bytes")).isEqualTo(4242424242L);
+            assertThat(message.getField("some_info")).isEqualTo("foo");
+            assertThat(message.getField("ratio")).isEqualTo(0.5d);
+            assertThat(message.getField("flag")).isEqualTo(true);
+            assertThat(message.getField("nested")).isEqualTo("{\"foo\":\"bar\"}");
+            assertThat(message.getField("list")).isEqualTo("[1,\"two\"]");
+        }
+    }
+
+    @Test
+    public void decodeWithConfiguredEncoding() throws Exception {
+        final BinaryGelfCodec codec = new BinaryGelfCodec(new Configuration(
+                Collections.singletonMap(BinaryGelfCodec.CK_ENCODING, GelfEncoding.CBOR.name())));
+        final byte[] payload = new ObjectMapper(GelfEncoding.CBOR.getFactory()).writeValueAsBytes(GELF_MESSAGE);
+
+        final Message message = codec.decode(new RawMessage(payload));
+
+        assertThat(message).isNotNull();
+        assertThat(message.getMessage()).isEqualTo("A short message");
+    }
+
+    @Test
+    public void decodeFailsWithoutShortMessage() throws Exception {
+        final BinaryGelfCodec codec = new BinaryGelfCodec(new Configuration(Collections.emptyMap()));
+        final byte[] payload = new ObjectMapper(GelfEncoding.SMILE.getFactory())
+                .writeValueAsBytes(ImmutableMap.of("version", "1.1", "host", "example.org"));
+
+        assertThatThrownBy(() -> codec.decode(new RawMessage(payload)))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessageContaining("short_message");
+    }
+}
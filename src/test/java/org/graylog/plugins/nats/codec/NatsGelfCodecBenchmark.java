@@ -0,0 +1,94 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.codec;
+
+import com.codahale.metrics.MetricRegistry;
+import org.graylog2.inputs.codecs.GelfChunkAggregator;
+import org.graylog2.inputs.codecs.GelfCodec;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NatsGelfCodecBenchmark {
+    private static final byte[] PAYLOAD = ("{" +
+            "\"version\":\"1.1\"," +
+            "\"host\":\"web-01.example.org\"," +
+            "\"short_message\":\"GET /api/system/inputstates HTTP/1.1 200 1337 0.042\"," +
+            "\"timestamp\":1473073200.042," +
+            "\"level\":6," +
+            "\"_facility\":\"nginx\"," +
+            "\"_http_method\":\"GET\"," +
+            "\"_http_path\":\"/api/system/inputstates\"," +
+            "\"_http_status\":200," +
+            "\"_http_bytes\":1337," +
+            "\"_http_duration\":0.042," +
+            "\"_geo_city\":\"Hamburg\"," +
+            "\"_geo_country\":\"Germany\"," +
+            "\"_user_agent\":\"Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko)\"" +
+            "}").getBytes(StandardCharsets.UTF_8);
+
+    private ScheduledExecutorService scheduler;
+    private GelfCodec gelfCodec;
+    private NatsGelfCodec natsGelfCodec;
+
+    @Setup
+    public void setUp() {
+        final Configuration configuration = new Configuration(Collections.emptyMap());
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        gelfCodec = new GelfCodec(configuration, new GelfChunkAggregator(scheduler, new MetricRegistry()));
+        natsGelfCodec = new NatsGelfCodec(configuration);
+    }
+
+    @TearDown
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Benchmark
+    public Message stockGelfCodec() {
+        return gelfCodec.decode(new RawMessage(PAYLOAD));
+    }
+
+    @Benchmark
+    public Message natsGelfCodec() {
+        return natsGelfCodec.decode(new RawMessage(PAYLOAD));
+    }
+}
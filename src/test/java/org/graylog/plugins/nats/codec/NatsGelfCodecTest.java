@@ -0,0 +1,124 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.codec;
+
+import com.google.common.collect.ImmutableMap;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.journal.RawMessage;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.zip.GZIPOutputStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class NatsGelfCodecTest {
+    private static final byte[] PAYLOAD = ("{" +
+            "\"version\":\"1.1\"," +
+            "\"host\":\"example.org\"," +
+            "\"short_message\":\"A short message\"," +
+            "\"timestamp\":1385053862.3072," +
+            "\"level\":1," +
+            "\"_id\":\"ignored\"," +
+            "\"_user_id\":9001," +
+            "\"_some_info\":\"foo\"" +
+            "}").getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    public void decodeJson() {
+        final NatsGelfCodec codec = new NatsGelfCodec(new Configuration(Collections.emptyMap()));
+
+        final Message message = codec.decode(new RawMessage(PAYLOAD));
+
+        assertThat(message).isNotNull();
+        assertThat(message.getSource()).isEqualTo("example.org");
+        assertThat(message.getMessage()).isEqualTo("A short message");
+        assertThat(message.getField(Message.FIELD_LEVEL)).isEqualTo(1);
+        assertThat(message.getField("user_id")).isEqualTo(9001);
+        assertThat(message.getField("some_info")).isEqualTo("foo");
+        assertThat(message.getId()).isNotEqualTo("ignored");
+    }
+
+    @Test
+    public void decodeNestedFieldsAsJsonText() {
+        final NatsGelfCodec codec = new NatsGelfCodec(new Configuration(Collections.emptyMap()));
+        final byte[] payload = ("{" +
+                "\"host\":\"example.org\"," +
+                "\"short_message\":\"A short message\"," +
+                "\"_nested\":{\"foo\":{\"bar\":[1,2]}}," +
+                "\"_list\":[\"a\",{\"b\":true}]," +
+                "\"_after\":\"foo\"" +
+                "}").getBytes(StandardCharsets.UTF_8);
+
+        final Message message = codec.decode(new RawMessage(payload));
+
+        assertThat(message).isNotNull();
+        assertThat(message.getField("nested")).isEqualTo("{\"foo\":{\"bar\":[1,2]}}");
+        assertThat(message.getField("list")).isEqualTo("[\"a\",{\"b\":true}]");
+        assertThat(message.getField("after")).isEqualTo("foo");
+    }
+
+    @Test
+    public void skipStructuredValuesOfReservedFields() {
+        final NatsGelfCodec codec = new NatsGelfCodec(new Configuration(Collections.emptyMap()));
+        final byte[] payload = ("{" +
+                "\"version\":[\"1.1\"]," +
+                "\"level\":{\"_x\":1}," +
+                "\"timestamp\":[1385053862.3072]," +
+                "\"full_message\":{\"_z\":{\"a\":[3]}}," +
+                "\"_y\":2," +
+                "\"host\":\"example.org\"," +
+                "\"short_message\":\"A short message\"" +
+                "}").getBytes(StandardCharsets.UTF_8);
+
+        final Message message = codec.decode(new RawMessage(payload));
+
+        assertThat(message).isNotNull();
+        assertThat(message.getSource()).isEqualTo("example.org");
+        assertThat(message.getMessage()).isEqualTo("A short message");
+        assertThat(message.getField("y")).isEqualTo(2);
+        assertThat(message.getField("x")).isNull();
+        assertThat(message.getField("z")).isNull();
+        assertThat(message.getField(Message.FIELD_LEVEL)).isNull();
+        assertThat(message.getField(Message.FIELD_FULL_MESSAGE)).isNull();
+    }
+
+    @Test
+    public void decodeCompressedJsonIfEnabled() throws Exception {
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(PAYLOAD);
+        }
+        final byte[] compressed = outputStream.toByteArray();
+
+        final NatsGelfCodec codec = new NatsGelfCodec(new Configuration(
+                ImmutableMap.of(NatsGelfCodec.CK_DECOMPRESS, true)));
+        final Message message = codec.decode(new RawMessage(compressed));
+
+        assertThat(message).isNotNull();
+        assertThat(message.getMessage()).isEqualTo("A short message");
+
+        final NatsGelfCodec plainCodec = new NatsGelfCodec(new Configuration(Collections.emptyMap()));
+        assertThatThrownBy(() -> plainCodec.decode(new RawMessage(compressed)))
+                .isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.concurrent;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares blocking publishes on virtual threads with a bounded pool of platform threads.
+ * <p>
+ * Every publish blocks for the simulated ACK round trip. Virtual threads are only used on Java 24+ when the
+ * classes are loaded from the multi-release JAR, otherwise both modes use the bounded pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockingPublishBenchmark {
+    private static final int BATCH_SIZE = 4096;
+
+    @Param({"true", "false"})
+    public boolean virtualThreads;
+
+    @Param({"64", "1024"})
+    public int concurrency;
+
+    @Param({"500"})
+    public long ackLatencyMicros;
+
+    private ExecutorService executor;
+    private Semaphore permits;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        System.setProperty(BlockingExecutors.VIRTUAL_THREADS_PROPERTY, Boolean.toString(virtualThreads));
+        executor = BlockingExecutors.newExecutor("benchmark-publish-", concurrency);
+        permits = new Semaphore(concurrency);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        System.clearProperty(BlockingExecutors.VIRTUAL_THREADS_PROPERTY);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void publishBatch() throws Exception {
+        final long latencyNanos = TimeUnit.MICROSECONDS.toNanos(ackLatencyMicros);
+        final List<Future<?>> futures = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            permits.acquire();
+            futures.add(executor.submit(() -> {
+                try {
+                    LockSupport.parkNanos(latencyNanos);
+                } finally {
+                    permits.release();
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+}
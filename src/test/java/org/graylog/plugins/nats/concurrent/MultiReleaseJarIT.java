@@ -0,0 +1,91 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.concurrent;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that the shaded plugin JAR given by {@code -Dplugin.jar} is still a multi-release JAR.
+ */
+public class MultiReleaseJarIT {
+    private static final String VERSIONED_CLASS = "META-INF/versions/21/org/graylog/plugins/nats/concurrent/BlockingExecutors.class";
+
+    private Path jar;
+
+    @Before
+    public void setUp() {
+        final String path = System.getProperty("plugin.jar");
+        assumeTrue(path != null);
+        jar = Paths.get(path);
+        assumeTrue(Files.exists(jar));
+    }
+
+    @Test
+    public void manifestDeclaresMultiRelease() throws Exception {
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            assertThat(jarFile.getManifest().getMainAttributes().getValue("Multi-Release")).isEqualTo("true");
+            assertThat(jarFile.getManifest().getMainAttributes().getValue("Graylog-Plugin-Properties-Path"))
+                    .isEqualTo("org.graylog.plugins.nats");
+        }
+    }
+
+    @Test
+    public void loadsJava21ClassesFromShadedJar() throws Exception {
+        assumeTrue(javaVersion() >= 21);
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            assertThat(jarFile.getEntry(VERSIONED_CLASS)).isNotNull();
+        }
+
+        try (URLClassLoader classLoader = new URLClassLoader(new URL[]{jar.toUri().toURL()}, null)) {
+            final Class<?> blockingExecutors = classLoader.loadClass(BlockingExecutors.class.getName());
+            // Virtual threads pin their carrier threads in synchronized blocks before Java 24
+            final boolean virtual = javaVersion() >= 24;
+            assertThat(blockingExecutors.getMethod("isVirtual").invoke(null)).isEqualTo(virtual);
+
+            final ExecutorService executor = (ExecutorService) blockingExecutors
+                    .getMethod("newExecutor", String.class, int.class)
+                    .invoke(null, "multi-release-it-", 1);
+            try {
+                final Method isVirtual = Thread.class.getMethod("isVirtual");
+                assertThat(executor.submit(() -> isVirtual.invoke(Thread.currentThread())).get(5L, TimeUnit.SECONDS))
+                        .isEqualTo(virtual);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private static int javaVersion() {
+        final String version = System.getProperty("java.specification.version");
+        return Integer.parseInt(version.startsWith("1.") ? version.substring(2) : version);
+    }
+}
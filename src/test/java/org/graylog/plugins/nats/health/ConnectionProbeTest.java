@@ -0,0 +1,86 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.health;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.nats.client.Connection;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ConnectionProbeTest {
+    private MetricRegistry metricRegistry;
+    private Connection connection;
+    private ConnectionProbe probe;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        connection = mock(Connection.class);
+        probe = new ConnectionProbe(connection, "test", 1000L, 500L, metricRegistry, "test");
+    }
+
+    @Test
+    public void recordsRoundTripTime() {
+        when(connection.isConnected()).thenReturn(true);
+        assertThat(probe.getLastPingAgeMillis()).isEqualTo(-1L);
+
+        probe.probe();
+
+        assertThat(metricRegistry.timer("test.nats.rtt").getCount()).isEqualTo(1L);
+        assertThat(probe.getLastPingAgeMillis()).isGreaterThanOrEqualTo(0L);
+        assertThat(metricRegistry.getGauges().get("test.nats.connected").getValue()).isEqualTo(1);
+    }
+
+    @Test
+    public void countsFailedPings() throws Exception {
+        when(connection.isConnected()).thenReturn(true);
+        doThrow(new IOException("Timeout")).when(connection).flush(anyInt());
+
+        probe.probe();
+
+        assertThat(metricRegistry.meter("test.nats.pingFailures").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.timer("test.nats.rtt").getCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void countsDisconnectedAsFailure() {
+        when(connection.isConnected()).thenReturn(false);
+
+        probe.probe();
+
+        assertThat(metricRegistry.meter("test.nats.pingFailures").getCount()).isEqualTo(1L);
+        final Gauge<?> connected = metricRegistry.getGauges().get("test.nats.connected");
+        assertThat(connected.getValue()).isEqualTo(0);
+    }
+
+    @Test
+    public void stopRemovesMetrics() {
+        probe.stop();
+
+        assertThat(metricRegistry.getMetrics()).isEmpty();
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.MetricRegistry;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+public class AsyncWriteQueueTest {
+    private final List<String> written = new CopyOnWriteArrayList<>();
+    private final CountDownLatch writerStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseWriter = new CountDownLatch(1);
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    private AsyncWriteQueue createQueue(AsyncWriteQueue.Policy policy) {
+        return new AsyncWriteQueue(2, 1, policy, 50L, messages -> {
+            writerStarted.countDown();
+            releaseWriter.await();
+            messages.forEach(message -> written.add(message.getMessage()));
+        }, metricRegistry, "test");
+    }
+
+    private static Message message(String text) {
+        return new Message(text, "source", Tools.nowUTC());
+    }
+
+    /**
+     * Blocks the publisher thread with a first message, then fills the queue.
+     */
+    private void fill(AsyncWriteQueue queue) throws Exception {
+        queue.offer(message("0"));
+        assertThat(writerStarted.await(5L, TimeUnit.SECONDS)).isTrue();
+        queue.offer(message("1"));
+        queue.offer(message("2"));
+    }
+
+    @Test
+    public void dropsNewestMessages() throws Exception {
+        final AsyncWriteQueue queue = createQueue(AsyncWriteQueue.Policy.DROP_NEWEST);
+        fill(queue);
+
+        queue.offer(message("3"));
+        releaseWriter.countDown();
+        queue.close();
+
+        assertThat(written).containsExactly("0", "1", "2");
+        assertThat(metricRegistry.meter("test.asyncQueue.dropped").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void dropsOldestMessages() throws Exception {
+        final AsyncWriteQueue queue = createQueue(AsyncWriteQueue.Policy.DROP_OLDEST);
+        fill(queue);
+
+        queue.offer(message("3"));
+        releaseWriter.countDown();
+        queue.close();
+
+        assertThat(written).containsExactly("0", "2", "3");
+        assertThat(metricRegistry.meter("test.asyncQueue.dropped").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void blocksUntilTimeout() throws Exception {
+        final AsyncWriteQueue queue = createQueue(AsyncWriteQueue.Policy.BLOCK);
+        fill(queue);
+
+        final long start = System.nanoTime();
+        queue.offer(message("3"));
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50L));
+        releaseWriter.countDown();
+        queue.close();
+
+        assertThat(written).containsExactly("0", "1", "2");
+        assertThat(metricRegistry.timer("test.asyncQueue.blocked").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter("test.asyncQueue.dropped").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void returnsWithoutWaitingForWriter() throws Exception {
+        final AsyncWriteQueue queue = createQueue(AsyncWriteQueue.Policy.BLOCK);
+
+        queue.offer(message("0"));
+        queue.offer(message("1"));
+        assertThat(written).isEmpty();
+
+        releaseWriter.countDown();
+        await().until(() -> written.size() == 2);
+        assertThat(queue.size()).isEqualTo(0);
+        queue.close();
+    }
+
+    @Test
+    public void closeGivesUpAtDeadline() throws Exception {
+        final AsyncWriteQueue queue = createQueue(AsyncWriteQueue.Policy.BLOCK);
+        fill(queue);
+
+        final long start = System.nanoTime();
+        queue.close(start + TimeUnit.MILLISECONDS.toNanos(100L));
+
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(5L));
+        assertThat(written).isEmpty();
+    }
+}
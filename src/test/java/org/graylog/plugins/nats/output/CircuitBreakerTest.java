@@ -0,0 +1,114 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CircuitBreakerTest {
+    private final AtomicLong clock = new AtomicLong();
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    private CircuitBreaker createBreaker(CircuitBreaker.Policy policy) {
+        return new CircuitBreaker(3, 1000L, policy, clock::get, metricRegistry, "test");
+    }
+
+    @Test
+    public void opensAfterConsecutiveFailures() throws Exception {
+        final CircuitBreaker breaker = createBreaker(CircuitBreaker.Policy.FAIL);
+
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess();
+        breaker.onFailure();
+        breaker.onFailure();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.allowRequest(1)).isTrue();
+
+        breaker.onFailure();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThatThrownBy(() -> breaker.allowRequest(5)).isInstanceOf(CircuitBreaker.OpenException.class);
+        assertThat(metricRegistry.meter("test.circuitBreaker.opened").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter("test.circuitBreaker.rejected").getCount()).isEqualTo(5L);
+    }
+
+    @Test
+    public void lateSuccessDoesNotCloseOpenBreaker() throws Exception {
+        final CircuitBreaker breaker = createBreaker(CircuitBreaker.Policy.DROP);
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure();
+        }
+
+        breaker.onSuccess();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.allowRequest(1)).isFalse();
+        assertThat(metricRegistry.meter("test.circuitBreaker.closed").getCount()).isZero();
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1L));
+        assertThat(breaker.allowRequest(1)).isTrue();
+        breaker.onSuccess();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void dropPolicyRejectsWithoutFailing() throws Exception {
+        final CircuitBreaker breaker = createBreaker(CircuitBreaker.Policy.DROP);
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure();
+        }
+
+        assertThat(breaker.allowRequest(1)).isFalse();
+    }
+
+    @Test
+    public void probesAfterOpenTime() throws Exception {
+        final CircuitBreaker breaker = createBreaker(CircuitBreaker.Policy.DROP);
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure();
+        }
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1L));
+        assertThat(breaker.allowRequest(1)).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.allowRequest(1)).isFalse();
+
+        breaker.onFailure();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.allowRequest(1)).isFalse();
+
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1L));
+        assertThat(breaker.allowRequest(1)).isTrue();
+        breaker.onSuccess();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.allowRequest(1)).isTrue();
+        assertThat(metricRegistry.meter("test.circuitBreaker.closed").getCount()).isEqualTo(1L);
+    }
+}
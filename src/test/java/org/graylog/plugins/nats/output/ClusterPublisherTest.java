@@ -0,0 +1,173 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableMap;
+import io.nats.client.Connection;
+import org.graylog.plugins.nats.config.NatsConfig;
+import org.graylog2.plugin.configuration.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ClusterPublisherTest {
+    private final Configuration configuration = new Configuration(ImmutableMap.of(NatsConfig.CK_PROBE_INTERVAL, 0));
+    private MetricRegistry metricRegistry;
+    private Connection connection;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        connection = mock(Connection.class);
+    }
+
+    @Test
+    public void publishesToAllChannels() throws Exception {
+        final ClusterPublisher publisher = new ClusterPublisher("cluster-0", () -> connection, new String[]{"a", "b"},
+                10, configuration, metricRegistry.counter("test.drained"), metricRegistry, "test");
+        final byte[] payload = {1, 2, 3};
+
+        assertThat(publisher.offer(payload)).isTrue();
+
+        verify(connection, timeout(1000L)).publish("a", payload);
+        verify(connection, timeout(1000L)).publish("b", payload);
+        publisher.close(deadline());
+        verify(connection).close();
+        assertThat(metricRegistry.timer("test.latency").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void dropsWhenQueueIsFull() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            blocked.countDown();
+            release.await();
+            return null;
+        }).when(connection).publish(anyString(), any(byte[].class));
+        final ClusterPublisher publisher = new ClusterPublisher("cluster-0", () -> connection, new String[]{"a"}, 1,
+                configuration, metricRegistry.counter("test.drained"), metricRegistry, "test");
+
+        assertThat(publisher.offer(new byte[1])).isTrue();
+        assertThat(blocked.await(1L, TimeUnit.SECONDS)).isTrue();
+        assertThat(publisher.offer(new byte[1])).isTrue();
+        assertThat(publisher.offer(new byte[1])).isFalse();
+        assertThat(metricRegistry.meter("test.dropped").getCount()).isEqualTo(1L);
+
+        release.countDown();
+        publisher.close(deadline());
+    }
+
+    @Test
+    public void countsFailures() throws Exception {
+        doThrow(new IllegalStateException("Disconnected")).when(connection).publish(anyString(), any(byte[].class));
+        final ClusterPublisher publisher = new ClusterPublisher("cluster-0", () -> connection, new String[]{"a"}, 10,
+                configuration, metricRegistry.counter("test.drained"), metricRegistry, "test");
+
+        publisher.offer(new byte[1]);
+        publisher.close(deadline());
+
+        assertThat(metricRegistry.meter("test.failures").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void drainsQueuedMessagesOnClose() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            blocked.countDown();
+            release.await();
+            return null;
+        }).when(connection).publish(anyString(), any(byte[].class));
+        when(connection.isConnected()).thenReturn(true);
+        final ClusterPublisher publisher = new ClusterPublisher("cluster-0", () -> connection, new String[]{"a"}, 10,
+                configuration, metricRegistry.counter("test.drained"), metricRegistry, "test");
+
+        publisher.offer(new byte[1]);
+        assertThat(blocked.await(1L, TimeUnit.SECONDS)).isTrue();
+        publisher.offer(new byte[1]);
+        publisher.offer(new byte[1]);
+
+        final Thread closer = new Thread(() -> publisher.close(deadline()));
+        closer.start();
+        TimeUnit.MILLISECONDS.sleep(100L);
+        release.countDown();
+        closer.join(5000L);
+
+        assertThat(metricRegistry.counter("test.drained").getCount()).isGreaterThanOrEqualTo(2L);
+        verify(connection).flush(anyInt());
+        verify(connection).close();
+    }
+
+    @Test
+    public void connectsInBackgroundUntilClusterIsReachable() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        when(connection.isConnected()).thenReturn(true);
+        final ClusterPublisher publisher = new ClusterPublisher("cluster-0", () -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new IOException("Connection refused");
+            }
+            return connection;
+        }, new String[]{"a"}, 10, configuration, metricRegistry.counter("test.drained"), metricRegistry, "test");
+        final byte[] payload = {1, 2, 3};
+
+        assertThat(publisher.offer(payload)).isTrue();
+        await().atMost(1L, TimeUnit.SECONDS).until(() -> metricRegistry.meter("test.connectFailures").getCount() == 1L);
+        assertThat(metricRegistry.getGauges().get("test.connected").getValue()).isEqualTo(0);
+
+        verify(connection, timeout(5000L)).publish("a", payload);
+        assertThat(metricRegistry.getGauges().get("test.connected").getValue()).isEqualTo(1);
+        publisher.close(deadline());
+        verify(connection).close();
+    }
+
+    @Test
+    public void closesWithoutEverConnecting() throws Exception {
+        final ClusterPublisher publisher = new ClusterPublisher("cluster-0", () -> {
+            throw new IOException("Connection refused");
+        }, new String[]{"a"}, 10, configuration, metricRegistry.counter("test.drained"), metricRegistry, "test");
+        publisher.offer(new byte[1]);
+
+        final long start = System.nanoTime();
+        publisher.close(deadline());
+
+        assertThat(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(4L));
+        assertThat(publisher.isConnected()).isFalse();
+    }
+
+    private static long deadline() {
+        return System.nanoTime() + TimeUnit.SECONDS.toNanos(5L);
+    }
+}
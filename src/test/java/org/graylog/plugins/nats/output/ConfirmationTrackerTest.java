@@ -0,0 +1,143 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.MetricRegistry;
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ConfirmationTrackerTest {
+    private static final String INBOX = "_INBOX.test";
+
+    private final AtomicReference<MessageHandler> handler = new AtomicReference<>();
+    private MetricRegistry metricRegistry;
+    private Connection connection;
+    private ConfirmationTracker tracker;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        connection = mock(Connection.class);
+        when(connection.newInbox()).thenReturn(INBOX);
+        doAnswer(invocation -> {
+            handler.set(invocation.getArgument(1));
+            return null;
+        }).when(connection).subscribe(eq(INBOX + ".*"), any(MessageHandler.class));
+        tracker = new ConfirmationTracker(connection, 2, 50L, metricRegistry, "test");
+    }
+
+    @Test
+    public void confirmsBatch() throws Exception {
+        final ConfirmationTracker.Batch batch = tracker.newBatch();
+        batch.publish("a", new byte[1]);
+        batch.publish("b", new byte[1]);
+
+        confirm(1L);
+        confirm(2L);
+        batch.await();
+
+        assertThat(tracker.getPendingCount()).isZero();
+        assertThat(metricRegistry.timer("test.confirmation.latency").getCount()).isEqualTo(2L);
+    }
+
+    @Test
+    public void rejectsPublishWhileWindowIsFull() throws Exception {
+        final ConfirmationTracker.Batch batch = tracker.newBatch();
+        batch.publish("a", new byte[1]);
+        batch.publish("a", new byte[1]);
+
+        assertThatThrownBy(() -> batch.publish("a", new byte[1])).isInstanceOf(TimeoutException.class);
+        assertThat(tracker.getPendingCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void expiresUnconfirmedMessages() throws Exception {
+        final ConfirmationTracker.Batch batch = tracker.newBatch();
+        batch.publish("a", new byte[1]);
+        batch.publish("a", new byte[1]);
+        confirm(1L);
+
+        assertThatThrownBy(batch::await)
+                .isInstanceOf(TimeoutException.class)
+                .hasMessage("1 of 2 messages haven't been confirmed");
+        assertThat(tracker.getPendingCount()).isZero();
+        assertThat(metricRegistry.meter("test.confirmation.timeouts").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void ignoresLateConfirmations() throws Exception {
+        final ConfirmationTracker.Batch expired = tracker.newBatch();
+        expired.publish("a", new byte[1]);
+        assertThatThrownBy(expired::await).isInstanceOf(TimeoutException.class);
+
+        confirm(1L);
+
+        // The late confirmation mustn't free another place in the window
+        final ConfirmationTracker.Batch batch = tracker.newBatch();
+        batch.publish("a", new byte[1]);
+        batch.publish("a", new byte[1]);
+        assertThatThrownBy(() -> batch.publish("a", new byte[1])).isInstanceOf(TimeoutException.class);
+        assertThat(metricRegistry.timer("test.confirmation.latency").getCount()).isZero();
+    }
+
+    @Test
+    public void recoversAfterFailedBatch() throws Exception {
+        final ConfirmationTracker.Batch failed = tracker.newBatch();
+        failed.publish("a", new byte[1]);
+        failed.publish("a", new byte[1]);
+        assertThatThrownBy(() -> failed.publish("a", new byte[1])).isInstanceOf(TimeoutException.class);
+        failed.abort();
+
+        assertThat(tracker.getPendingCount()).isZero();
+
+        doThrow(new IllegalStateException("Disconnected")).when(connection).publish(eq("broken"), anyString(), any(byte[].class));
+        final ConfirmationTracker.Batch broken = tracker.newBatch();
+        broken.publish("a", new byte[1]);
+        assertThatThrownBy(() -> broken.publish("broken", new byte[1])).isInstanceOf(IllegalStateException.class);
+        broken.abort();
+
+        assertThat(tracker.getPendingCount()).isZero();
+
+        final ConfirmationTracker.Batch batch = tracker.newBatch();
+        batch.publish("a", new byte[1]);
+        batch.publish("a", new byte[1]);
+        confirm(5L);
+        confirm(6L);
+        batch.await();
+    }
+
+    private void confirm(long id) {
+        handler.get().onMessage(new Message(INBOX + "." + id, null, new byte[0]));
+    }
+}
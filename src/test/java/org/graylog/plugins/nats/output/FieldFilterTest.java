@@ -0,0 +1,61 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class FieldFilterTest {
+    @Test
+    public void emptyPatternsAllowAllFields() {
+        final FieldFilter filter = FieldFilter.create("", null);
+
+        assertThat(filter).isSameAs(FieldFilter.ALLOW_ALL);
+        assertThat(filter.test("foo")).isTrue();
+    }
+
+    @Test
+    public void includedFieldsRestrictOutput() {
+        final FieldFilter filter = FieldFilter.create("level\nhttp_*", "");
+
+        assertThat(filter.test("level")).isTrue();
+        assertThat(filter.test("http_status")).isTrue();
+        assertThat(filter.test("geo_city")).isFalse();
+    }
+
+    @Test
+    public void excludedFieldsTakePrecedence() {
+        final FieldFilter filter = FieldFilter.create("http_*", " http_user_agent \ngeo_*\n");
+
+        assertThat(filter.test("http_status")).isTrue();
+        assertThat(filter.test("http_user_agent")).isFalse();
+        assertThat(filter.test("geo_city")).isFalse();
+        assertThat(filter.test("facility")).isFalse();
+    }
+
+    @Test
+    public void cachedResultsAreStable() {
+        final FieldFilter filter = FieldFilter.create("", "enrichment_*");
+
+        assertThat(filter.test("enrichment_asn")).isFalse();
+        assertThat(filter.test("enrichment_asn")).isFalse();
+        assertThat(filter.test("source_ip")).isTrue();
+        assertThat(filter.test("source_ip")).isTrue();
+    }
+}
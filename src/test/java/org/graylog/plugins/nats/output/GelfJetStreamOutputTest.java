@@ -0,0 +1,47 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GelfJetStreamOutputTest {
+    private Exception validate(String reply) {
+        return GelfJetStreamOutput.validatePubAck(reply.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void acceptsPubAcks() {
+        assertThat(validate("{\"stream\":\"logs\",\"seq\":42}")).isNull();
+    }
+
+    @Test
+    public void rejectsErrors() {
+        assertThat(validate("{\"error\":{\"code\":503,\"description\":\"insufficient resources\"}}"))
+                .hasMessageContaining("insufficient resources");
+    }
+
+    @Test
+    public void rejectsInvalidReplies() {
+        assertThat(validate("")).isNotNull();
+        assertThat(validate("+OK")).isNotNull();
+    }
+}
@@ -0,0 +1,92 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.google.common.collect.ImmutableMap;
+import org.graylog.plugins.nats.codec.GelfEncoding;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GelfMessageEncoderBenchmark {
+    @Param({"JSON", "SMILE", "CBOR", "MSGPACK"})
+    public GelfEncoding encoding;
+
+    @Param({"", "enrichment_*"})
+    public String excludedFields;
+
+    private GelfMessageEncoder encoder;
+    private Message message;
+
+    @Setup
+    public void setUp() throws IOException {
+        encoder = new GelfMessageEncoder(encoding, FieldFilter.create("", excludedFields), "node-id", "cluster-id");
+        message = createMessage();
+
+        // JMH has no notion of output size, so report it once per parameter combination
+        System.out.printf("%n%s (excluded: \"%s\"): %d bytes%n", encoding, excludedFields, encoder.encode(message).length);
+    }
+
+    @Benchmark
+    public byte[] encode() throws IOException {
+        return encoder.encode(message);
+    }
+
+    static Message createMessage() {
+        final Map<String, Object> fields = ImmutableMap.<String, Object>builder()
+                .put(Message.FIELD_ID, "061b5ed0-734a-11e6-8e18-6c4008b8fc28")
+                .put(Message.FIELD_MESSAGE, "GET /api/system/inputstates HTTP/1.1 200 1337 0.042")
+                .put(Message.FIELD_SOURCE, "web-01.example.org")
+                .put(Message.FIELD_TIMESTAMP, new DateTime(2016, 9, 5, 11, 0, DateTimeZone.UTC))
+                .put(Message.FIELD_LEVEL, 6)
+                .put("facility", "nginx")
+                .put("http_method", "GET")
+                .put("http_path", "/api/system/inputstates")
+                .put("http_status", 200)
+                .put("http_bytes", 1337L)
+                .put("http_duration", 0.042d)
+                .put("enrichment_geo_city", "Hamburg")
+                .put("enrichment_geo_country", "Germany")
+                .put("enrichment_geo_coordinates", "53.5511,9.9937")
+                .put("enrichment_asn", 3320)
+                .put("enrichment_user_agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/53.0.2785.116 Safari/537.36")
+                .build();
+        return new Message(fields);
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.graylog.plugins.nats.codec.GelfEncoding;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class GelfMessageEncoderTest {
+    @Test
+    public void encodingsProduceSameDocument() throws Exception {
+        final FieldFilter fieldFilter = FieldFilter.create("", "enrichment_*");
+        for (GelfEncoding encoding : GelfEncoding.values()) {
+            final GelfMessageEncoder encoder = new GelfMessageEncoder(encoding, fieldFilter, "node-id", "cluster-id");
+            final byte[] payload = encoder.encode(GelfMessageEncoderBenchmark.createMessage());
+
+            final ObjectMapper objectMapper = new ObjectMapper(encoding.getFactory());
+            final Map<String, Object> document = objectMapper.readValue(payload, new TypeReference<Map<String, Object>>() {
+            });
+
+            assertThat(document)
+                    .containsEntry("version", "1.1")
+                    .containsEntry("host", "web-01.example.org")
+                    .containsEntry("short_message", "GET /api/system/inputstates HTTP/1.1 200 1337 0.042")
+                    .containsEntry("timestamp", 1.4730732E9)
+                    .containsEntry("http_status", 200)
+                    .containsEntry("_forwarder_node_id", "node-id")
+                    .containsEntry("_forwarder_cluster_id", "cluster-id")
+                    .doesNotContainKeys("enrichment_asn", "enrichment_geo_city");
+        }
+    }
+
+    @Test
+    public void binaryEncodingsAreSmallerThanJson() throws Exception {
+        final int jsonSize = new GelfMessageEncoder(GelfEncoding.JSON, FieldFilter.ALLOW_ALL, "node-id", "cluster-id")
+                .encode(GelfMessageEncoderBenchmark.createMessage()).length;
+
+        for (GelfEncoding encoding : new GelfEncoding[]{GelfEncoding.SMILE, GelfEncoding.CBOR, GelfEncoding.MSGPACK}) {
+            final GelfMessageEncoder encoder = new GelfMessageEncoder(encoding, FieldFilter.ALLOW_ALL, "node-id", "cluster-id");
+            assertThat(encoder.encode(GelfMessageEncoderBenchmark.createMessage()).length).isLessThan(jsonSize);
+        }
+    }
+}
@@ -17,6 +17,7 @@
  */
 package org.graylog.plugins.nats.output;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableMap;
 import io.nats.client.Connection;
 import io.nats.client.ConnectionFactory;
@@ -26,6 +27,7 @@ import org.graylog2.plugin.Message;
 import org.graylog2.plugin.ServerStatus;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+import org.graylog2.plugin.streams.Stream;
 import org.graylog2.plugin.system.NodeId;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -58,6 +60,8 @@ public class GelfNatsOutputIT extends BaseNatsTest {
     private NodeId nodeId;
     @Mock
     private ServerStatus serverStatus;
+    @Mock
+    private Stream stream;
 
     private GelfNatsOutput output;
 
@@ -74,8 +78,9 @@ public class GelfNatsOutputIT extends BaseNatsTest {
         when(serverStatus.getClusterId()).thenReturn("GRAYLOG-CLUSTER-ID");
         when(nodeId.toString()).thenReturn("GRAYLOG-NODE-ID");
         when(serverStatus.getNodeId()).thenReturn(nodeId);
+        when(stream.getId()).thenReturn("STREAM-ID");
 
-        output = new GelfNatsOutput(configuration, serverStatus);
+        output = new GelfNatsOutput(stream, configuration, serverStatus, new MetricRegistry());
 
         assumeTrue(output.isRunning());
     }
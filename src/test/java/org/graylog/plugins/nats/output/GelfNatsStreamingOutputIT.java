@@ -17,6 +17,7 @@
  */
 package org.graylog.plugins.nats.output;
 
+import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableMap;
 import io.nats.stan.Connection;
 import io.nats.stan.ConnectionFactory;
@@ -27,6 +28,7 @@ import org.graylog2.plugin.Message;
 import org.graylog2.plugin.ServerStatus;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
+import org.graylog2.plugin.streams.Stream;
 import org.graylog2.plugin.system.NodeId;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
@@ -60,6 +62,8 @@ public class GelfNatsStreamingOutputIT extends BaseNatsStreamingTest {
     private NodeId nodeId;
     @Mock
     private ServerStatus serverStatus;
+    @Mock
+    private Stream stream;
 
     private GelfNatsStreamingOutput output;
 
@@ -78,8 +82,9 @@ public class GelfNatsStreamingOutputIT extends BaseNatsStreamingTest {
         when(serverStatus.getClusterId()).thenReturn("GRAYLOG-CLUSTER-ID");
         when(nodeId.toString()).thenReturn("GRAYLOG-NODE-ID");
         when(serverStatus.getNodeId()).thenReturn(nodeId);
+        when(stream.getId()).thenReturn("STREAM-ID");
 
-        output = new GelfNatsStreamingOutput(configuration, serverStatus);
+        output = new GelfNatsStreamingOutput(stream, configuration, serverStatus, new MetricRegistry());
 
         assumeTrue(output.isRunning());
     }
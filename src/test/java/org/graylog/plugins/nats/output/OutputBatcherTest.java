@@ -0,0 +1,215 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+public class OutputBatcherTest {
+    private final List<List<EncodedMessage>> batches = new CopyOnWriteArrayList<>();
+    private final AtomicLong clock = new AtomicLong();
+    private MetricRegistry metricRegistry;
+    private ScheduledExecutorService scheduler;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private OutputBatcher createBatcher(int maxMessages, long maxBytes, long maxLingerMillis) {
+        return new OutputBatcher(batches::add, maxMessages, maxBytes, maxLingerMillis, scheduler, clock::get,
+                metricRegistry, "test");
+    }
+
+    private static EncodedMessage message(int size) {
+        return new EncodedMessage(new byte[size], new String[]{"test"});
+    }
+
+    /**
+     * Flushes a single message after one microsecond, so the batcher assumes a high message rate.
+     */
+    private void warmUp(OutputBatcher batcher) throws Exception {
+        clock.addAndGet(TimeUnit.MICROSECONDS.toNanos(1L));
+        batcher.add(message(1));
+        batches.clear();
+    }
+
+    @Test
+    public void flushesFullBatches() throws Exception {
+        final OutputBatcher batcher = createBatcher(3, 0L, 10_000L);
+        warmUp(batcher);
+
+        batcher.add(message(1));
+        batcher.add(message(1));
+        assertThat(batches).isEmpty();
+        batcher.add(message(1));
+
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0)).hasSize(3);
+        assertThat(batcher.getPendingCount()).isEqualTo(0);
+        assertThat(metricRegistry.histogram("test.batch.fill").getSnapshot().getMax()).isEqualTo(100L);
+    }
+
+    @Test
+    public void flushesWhenMaxBytesReached() throws Exception {
+        final OutputBatcher batcher = createBatcher(100, 1000L, 10_000L);
+        warmUp(batcher);
+
+        batcher.add(message(600));
+        assertThat(batches).isEmpty();
+        batcher.add(message(600));
+
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0)).hasSize(2);
+    }
+
+    @Test
+    public void flushesAfterLingerTime() throws Exception {
+        final OutputBatcher batcher = createBatcher(100, 0L, 50L);
+        warmUp(batcher);
+
+        batcher.add(message(1));
+        assertThat(batches).isEmpty();
+
+        await().until(() -> batches.size() == 1);
+        assertThat(batches.get(0)).hasSize(1);
+    }
+
+    @Test
+    public void lingerAdaptsToMessageRate() throws Exception {
+        final OutputBatcher batcher = createBatcher(100, 0L, 100L);
+
+        for (int i = 0; i < 10; i++) {
+            clock.addAndGet(TimeUnit.SECONDS.toNanos(1L));
+            batcher.add(message(1));
+            await().until(() -> batcher.getPendingCount() == 0);
+        }
+        assertThat(batcher.getLingerNanos()).isLessThan(TimeUnit.MILLISECONDS.toNanos(1L));
+
+        for (int i = 0; i < 10; i++) {
+            clock.addAndGet(TimeUnit.MICROSECONDS.toNanos(10L));
+            batcher.add(message(1));
+            await().until(() -> batcher.getPendingCount() == 0);
+        }
+        assertThat(batcher.getLingerNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(100L));
+    }
+
+    @Test
+    public void closeFlushesPendingMessages() throws Exception {
+        final OutputBatcher batcher = createBatcher(100, 0L, 10_000L);
+        warmUp(batcher);
+
+        batcher.add(message(1));
+        batcher.add(message(1));
+        batcher.close(System.nanoTime() + TimeUnit.SECONDS.toNanos(5L));
+
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0)).hasSize(2);
+    }
+
+    @Test
+    public void closeDropsPendingMessagesAfterDeadline() throws Exception {
+        final OutputBatcher batcher = createBatcher(100, 0L, 10_000L);
+        warmUp(batcher);
+
+        batcher.add(message(1));
+        batcher.add(message(1));
+        batcher.close(System.nanoTime());
+
+        assertThat(batches).isEmpty();
+        assertThat(batcher.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void retriesFailedLingerFlush() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final OutputBatcher batcher = new OutputBatcher(messages -> {
+            if (attempts.incrementAndGet() == 2) {
+                throw new IOException("Connection lost");
+            }
+            batches.add(messages);
+        }, 100, 0L, 50L, scheduler, clock::get, metricRegistry, "test");
+        warmUp(batcher);
+
+        batcher.add(message(1));
+        batcher.add(message(1));
+
+        await().atMost(5L, TimeUnit.SECONDS).until(() -> batches.size() == 1);
+        assertThat(batches.get(0)).hasSize(2);
+        assertThat(attempts.get()).isEqualTo(3);
+        assertThat(metricRegistry.meter("test.batch.errors").getCount()).isEqualTo(1L);
+        assertThat(batcher.getPendingCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void addDoesNotWaitForConcurrentFlush() throws Exception {
+        final AtomicBoolean blocking = new AtomicBoolean();
+        final CountDownLatch flushing = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final OutputBatcher batcher = new OutputBatcher(messages -> {
+            if (blocking.get()) {
+                flushing.countDown();
+                release.await();
+            }
+            batches.add(messages);
+        }, 2, 0L, 10_000L, scheduler, clock::get, metricRegistry, "test");
+        warmUp(batcher);
+        blocking.set(true);
+
+        batcher.add(message(1));
+        final Thread flusher = new Thread(() -> {
+            try {
+                batcher.add(message(1));
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        flusher.start();
+        assertThat(flushing.await(5L, TimeUnit.SECONDS)).isTrue();
+
+        batcher.add(message(1));
+        assertThat(batcher.getPendingCount()).isEqualTo(1);
+
+        release.countDown();
+        flusher.join();
+        assertThat(batches).hasSize(1);
+        assertThat(batches.get(0)).hasSize(2);
+    }
+}
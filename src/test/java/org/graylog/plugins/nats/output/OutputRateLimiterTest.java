@@ -0,0 +1,112 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.MetricRegistry;
+import org.graylog2.plugin.Message;
+import org.graylog2.plugin.Tools;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OutputRateLimiterTest {
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    public void dropPolicyDropsMessagesExceedingLimit() throws Exception {
+        final OutputRateLimiter rateLimiter = new OutputRateLimiter(10L, 0L, OutputRateLimiter.Policy.DROP,
+                Message.FIELD_SOURCE, metricRegistry, "test");
+        final Message message = new Message("message", "source", Tools.nowUTC());
+
+        int admitted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (rateLimiter.admitMessage(message)) {
+                assertThat(rateLimiter.admitBytes(message, 100L)).isTrue();
+                admitted++;
+            }
+        }
+
+        assertThat(admitted).isBetween(10, 11);
+        assertThat(metricRegistry.meter("test.rateLimit.dropped").getCount()).isEqualTo(20L - admitted);
+    }
+
+    @Test
+    public void messagesDroppedByByteLimitDoNotUseMessageLimit() throws Exception {
+        final OutputRateLimiter rateLimiter = new OutputRateLimiter(10L, 1000L, OutputRateLimiter.Policy.DROP,
+                Message.FIELD_SOURCE, metricRegistry, "test");
+        final Message message = new Message("message", "source", Tools.nowUTC());
+
+        assertThat(rateLimiter.admitMessage(message)).isTrue();
+        assertThat(rateLimiter.admitBytes(message, 1000L)).isTrue();
+        for (int i = 0; i < 5; i++) {
+            assertThat(rateLimiter.admitMessage(message)).isTrue();
+            assertThat(rateLimiter.admitBytes(message, 100L)).isFalse();
+        }
+
+        for (int i = 0; i < 9; i++) {
+            assertThat(rateLimiter.admitMessage(message)).isTrue();
+        }
+        assertThat(metricRegistry.meter("test.rateLimit.dropped").getCount()).isEqualTo(5L);
+    }
+
+    @Test
+    public void blockPolicyWaitsForCapacity() throws Exception {
+        final OutputRateLimiter rateLimiter = new OutputRateLimiter(0L, 1000L, OutputRateLimiter.Policy.BLOCK,
+                Message.FIELD_SOURCE, metricRegistry, "test");
+        final Message message = new Message("message", "source", Tools.nowUTC());
+
+        assertThat(rateLimiter.admitMessage(message)).isTrue();
+        assertThat(rateLimiter.admitBytes(message, 1000L)).isTrue();
+        final long start = System.nanoTime();
+        assertThat(rateLimiter.admitMessage(message)).isTrue();
+        assertThat(rateLimiter.admitBytes(message, 200L)).isTrue();
+
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(150L));
+        assertThat(metricRegistry.meter("test.rateLimit.throttled").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void samplePolicyAdmitsMessagesBeforeEncoding() throws Exception {
+        final OutputRateLimiter rateLimiter = new OutputRateLimiter(1L, 0L, OutputRateLimiter.Policy.SAMPLE,
+                Message.FIELD_SOURCE, metricRegistry, "test");
+        final Message message = new Message("message", "source", Tools.nowUTC());
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(rateLimiter.admitMessage(message)).isTrue();
+        }
+        assertThat(metricRegistry.meter("test.rateLimit.dropped").getCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void unlimitedWithoutConfiguration() throws Exception {
+        final Message message = new Message("message", "source", Tools.nowUTC());
+
+        for (int i = 0; i < 1000; i++) {
+            assertThat(OutputRateLimiter.UNLIMITED.admitMessage(message)).isTrue();
+            assertThat(OutputRateLimiter.UNLIMITED.admitBytes(message, Integer.MAX_VALUE)).isTrue();
+        }
+    }
+}
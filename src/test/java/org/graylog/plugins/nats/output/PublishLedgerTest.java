@@ -0,0 +1,123 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PublishLedgerTest {
+    private static final long MAX_BYTES = 256L * 1024L;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MetricRegistry metricRegistry;
+    private Path directory;
+    private PublishLedger ledger;
+
+    @Before
+    public void setUp() throws Exception {
+        metricRegistry = new MetricRegistry();
+        directory = temporaryFolder.newFolder("ledger").toPath();
+        ledger = new PublishLedger(directory, MAX_BYTES, metricRegistry, "test");
+    }
+
+    @After
+    public void tearDown() {
+        ledger.close();
+    }
+
+    @Test
+    public void recoversUnacknowledgedMessages() throws Exception {
+        final long first = ledger.append("foo", bytes("first"));
+        final long second = ledger.append("bar", bytes("second"));
+        final long third = ledger.append("foo", bytes("third"));
+        ledger.ack(second);
+        ledger.close();
+
+        ledger = new PublishLedger(directory, MAX_BYTES, metricRegistry, "test");
+
+        assertThat(ledger.getRecovered()).extracting(entry -> entry.id).containsExactly(first, third);
+        assertThat(ledger.getRecovered()).extracting(entry -> entry.subject).containsExactly("foo", "foo");
+        assertThat(ledger.getRecovered()).extracting(entry -> new String(entry.payload, StandardCharsets.UTF_8))
+                .containsExactly("first", "third");
+        assertThat(ledger.getPendingCount()).isEqualTo(2);
+        assertThat(ledger.append("foo", bytes("fourth"))).isGreaterThan(third);
+    }
+
+    @Test
+    public void acknowledgedMessagesAreNotRecovered() throws Exception {
+        ledger.ack(ledger.append("foo", bytes("first")));
+        ledger.close();
+
+        ledger = new PublishLedger(directory, MAX_BYTES, metricRegistry, "test");
+
+        assertThat(ledger.getRecovered()).isEmpty();
+        assertThat(ledger.getPendingCount()).isZero();
+    }
+
+    @Test
+    public void deletesAcknowledgedSegments() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            ledger.ack(ledger.append("foo", new byte[10 * 1024]));
+        }
+
+        assertThat(ledger.getSizeBytes()).isLessThanOrEqualTo(MAX_BYTES);
+        assertThat(metricRegistry.meter("test.ledger.overflows").getCount()).isZero();
+    }
+
+    @Test
+    public void compactsPendingMessagesOfOldestSegment() throws Exception {
+        final long pending = ledger.append("foo", bytes("pending"));
+        for (int i = 0; i < 100; i++) {
+            ledger.ack(ledger.append("foo", new byte[10 * 1024]));
+        }
+        ledger.close();
+
+        ledger = new PublishLedger(directory, MAX_BYTES, metricRegistry, "test");
+
+        assertThat(ledger.getRecovered()).extracting(entry -> entry.id).containsExactly(pending);
+        assertThat(metricRegistry.meter("test.ledger.overflows").getCount()).isZero();
+    }
+
+    @Test
+    public void rejectsMessagesWhileFull() throws Exception {
+        long id = 0L;
+        for (int i = 0; i < 100 && id >= 0L; i++) {
+            id = ledger.append("foo", new byte[10 * 1024]);
+        }
+
+        assertThat(id).isEqualTo(-1L);
+        assertThat(ledger.getSizeBytes()).isLessThanOrEqualTo(MAX_BYTES);
+        assertThat(metricRegistry.meter("test.ledger.overflows").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.getGauges()).containsKeys("test.ledger.size", "test.ledger.pending");
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
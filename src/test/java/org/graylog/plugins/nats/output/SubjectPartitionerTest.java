@@ -0,0 +1,88 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.output;
+
+import com.codahale.metrics.MetricRegistry;
+import org.graylog2.plugin.Message;
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SubjectPartitionerTest {
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    public void routesSameKeyToSameSubject() {
+        final SubjectPartitioner partitioner = new SubjectPartitioner("logs", 8, "source", metricRegistry, "test");
+
+        final String[] first = partitioner.subjectsFor(new Message("foo", "host-1", DateTime.now()));
+        final String[] second = partitioner.subjectsFor(new Message("bar", "host-1", DateTime.now()));
+
+        assertThat(first).isSameAs(second);
+        assertThat(first).hasSize(1);
+        assertThat(first[0]).matches("logs\\.[0-7]");
+        assertThat(metricRegistry.meter("test.partition." + first[0].substring(5)).getCount()).isEqualTo(2L);
+    }
+
+    @Test
+    public void spreadsKeysOverAllPartitions() {
+        final SubjectPartitioner partitioner = new SubjectPartitioner("logs", 4, "source", metricRegistry, "test");
+
+        final Set<Integer> partitions = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            partitions.add(partitioner.partition("host-" + i));
+        }
+
+        assertThat(partitions).containsOnly(0, 1, 2, 3);
+    }
+
+    @Test
+    public void growingPartitionsMovesFewKeys() {
+        final SubjectPartitioner four = new SubjectPartitioner("logs", 4, "source", metricRegistry, "four");
+        final SubjectPartitioner five = new SubjectPartitioner("logs", 5, "source", metricRegistry, "five");
+
+        int moved = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (four.partition("host-" + i) != five.partition("host-" + i)) {
+                moved++;
+            }
+        }
+
+        assertThat(moved).isLessThan(300);
+    }
+
+    @Test
+    public void routesMissingFieldDeterministically() {
+        final SubjectPartitioner partitioner = new SubjectPartitioner("logs", 4, "user", metricRegistry, "test");
+
+        final Message message = new Message("foo", "host-1", DateTime.now());
+
+        assertThat(partitioner.subjectsFor(message)).isSameAs(partitioner.subjectsFor(message));
+        assertThat(partitioner.partition(null)).isEqualTo(partitioner.partition(""));
+    }
+}
@@ -0,0 +1,421 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.testing;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal in-process stand-in for a NATS server, speaking the core NATS client protocol
+ * ({@code CONNECT}, {@code PUB}, {@code SUB}, {@code UNSUB}, {@code MSG}, {@code PING}/{@code PONG}).
+ * <p>
+ * It supports wildcard subjects and queue groups, and can inject delivery latency and drop
+ * messages to simulate a slow or lossy broker. NATS Streaming is not supported.
+ * <p>
+ * Every client connection is served by a dedicated thread, which is plenty for tests and
+ * benchmarks with a handful of connections.
+ */
+public class EmbeddedNatsServer implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(EmbeddedNatsServer.class);
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] PONG = "PONG\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] OK = "+OK\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int MAX_PAYLOAD = 1024 * 1024;
+
+    private static EmbeddedNatsServer shared;
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService clientExecutor;
+    private final ScheduledExecutorService delayExecutor;
+    private final Set<ClientConnection> clients = ConcurrentHashMap.newKeySet();
+    private final List<ServerSubscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final Map<String, AtomicInteger> queueGroupCounters = new ConcurrentHashMap<>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile long latencyNanos = 0L;
+    private volatile double dropRate = 0.0d;
+    private volatile boolean running = true;
+
+    public EmbeddedNatsServer() throws IOException {
+        this(0);
+    }
+
+    public EmbeddedNatsServer(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        clientExecutor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "embedded-nats-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        delayExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "embedded-nats-delay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        clientExecutor.execute(this::acceptLoop);
+    }
+
+    /**
+     * Returns a server instance shared by all tests of the JVM, started on first use.
+     */
+    public static synchronized EmbeddedNatsServer shared() {
+        if (shared == null) {
+            try {
+                shared = new EmbeddedNatsServer();
+            } catch (IOException e) {
+                throw new IllegalStateException("Couldn't start embedded NATS server", e);
+            }
+        }
+        return shared;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getUrl() {
+        return "nats://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * Delays the delivery of every message by the given amount of time.
+     */
+    public void setLatency(long latency, TimeUnit unit) {
+        this.latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Drops the given fraction (0.0 to 1.0) of published messages instead of delivering them.
+     */
+    public void setDropRate(double dropRate) {
+        this.dropRate = dropRate;
+    }
+
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    /**
+     * Closes all client connections while the server keeps accepting new ones.
+     */
+    public void disconnectClients() {
+        clients.forEach(ClientConnection::close);
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            LOG.debug("Error while closing server socket", e);
+        }
+        disconnectClients();
+        clientExecutor.shutdownNow();
+        delayExecutor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                final ClientConnection client = new ClientConnection(socket);
+                clients.add(client);
+                clientExecutor.execute(client);
+            } catch (IOException e) {
+                if (running) {
+                    LOG.warn("Error while accepting client connection", e);
+                }
+            }
+        }
+    }
+
+    private void route(String subject, String reply, byte[] payload) {
+        published.incrementAndGet();
+        final double currentDropRate = dropRate;
+        if (currentDropRate > 0.0d && ThreadLocalRandom.current().nextDouble() < currentDropRate) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        final Map<String, List<ServerSubscription>> queueGroups = new HashMap<>();
+        for (ServerSubscription subscription : subscriptions) {
+            if (!subscription.matches(subject)) {
+                continue;
+            }
+            if (subscription.queue == null) {
+                deliver(subscription, subject, reply, payload);
+            } else {
+                queueGroups.computeIfAbsent(subscription.subject + ' ' + subscription.queue, k -> new ArrayList<>()).add(subscription);
+            }
+        }
+
+        for (Map.Entry<String, List<ServerSubscription>> group : queueGroups.entrySet()) {
+            final List<ServerSubscription> members = group.getValue();
+            final int next = queueGroupCounters.computeIfAbsent(group.getKey(), k -> new AtomicInteger()).getAndIncrement();
+            deliver(members.get(Math.floorMod(next, members.size())), subject, reply, payload);
+        }
+    }
+
+    private void deliver(ServerSubscription subscription, String subject, String reply, byte[] payload) {
+        final long delay = latencyNanos;
+        if (delay > 0L) {
+            delayExecutor.schedule(() -> subscription.deliver(subject, reply, payload), delay, TimeUnit.NANOSECONDS);
+        } else {
+            subscription.deliver(subject, reply, payload);
+        }
+    }
+
+    static boolean subjectMatches(String[] pattern, String[] tokens) {
+        for (int i = 0; i < pattern.length; i++) {
+            if (">".equals(pattern[i])) {
+                return tokens.length > i;
+            }
+            if (i >= tokens.length) {
+                return false;
+            }
+            if (!"*".equals(pattern[i]) && !pattern[i].equals(tokens[i])) {
+                return false;
+            }
+        }
+        return pattern.length == tokens.length;
+    }
+
+    private class ServerSubscription {
+        private final ClientConnection client;
+        private final String subject;
+        private final String[] pattern;
+        private final String queue;
+        private final String sid;
+        private final AtomicLong remaining = new AtomicLong(Long.MAX_VALUE);
+
+        ServerSubscription(ClientConnection client, String subject, String queue, String sid) {
+            this.client = client;
+            this.subject = subject;
+            this.pattern = subject.split("\\.");
+            this.queue = queue;
+            this.sid = sid;
+        }
+
+        boolean matches(String subject) {
+            return subjectMatches(pattern, subject.split("\\."));
+        }
+
+        void deliver(String subject, String reply, byte[] payload) {
+            if (remaining.getAndDecrement() <= 0L) {
+                subscriptions.remove(this);
+                return;
+            }
+
+            final String header = "MSG " + subject + " " + sid + (reply == null ? "" : " " + reply) + " " + payload.length + "\r\n";
+            if (client.write(header.getBytes(StandardCharsets.UTF_8), payload, CRLF)) {
+                delivered.incrementAndGet();
+            }
+        }
+    }
+
+    private class ClientConnection implements Runnable {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final Map<String, ServerSubscription> clientSubscriptions = new ConcurrentHashMap<>();
+        private volatile boolean verbose = false;
+
+        ClientConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        }
+
+        @Override
+        public void run() {
+            try {
+                final String info = "INFO {\"server_id\":\"embedded\",\"version\":\"0.9.4\",\"go\":\"go1.7\"," +
+                        "\"host\":\"127.0.0.1\",\"port\":" + getPort() + ",\"auth_required\":false," +
+                        "\"ssl_required\":false,\"tls_required\":false,\"tls_verify\":false," +
+                        "\"max_payload\":" + MAX_PAYLOAD + "}\r\n";
+                write(info.getBytes(StandardCharsets.UTF_8));
+
+                String line;
+                while (running && (line = readLine()) != null) {
+                    handle(line);
+                }
+            } catch (SocketException | EOFException e) {
+                LOG.debug("Client connection closed", e);
+            } catch (IOException e) {
+                LOG.warn("Error while reading from client connection", e);
+            } finally {
+                close();
+            }
+        }
+
+        private void handle(String line) throws IOException {
+            final String[] parts = line.trim().split("\\s+");
+            final String op = parts[0].toUpperCase();
+            switch (op) {
+                case "CONNECT":
+                    verbose = line.contains("\"verbose\":true");
+                    ok();
+                    break;
+                case "PING":
+                    write(PONG);
+                    break;
+                case "PONG":
+                    break;
+                case "PUB":
+                    final String reply = parts.length == 4 ? parts[2] : null;
+                    final int size = Integer.parseInt(parts[parts.length - 1]);
+                    final byte[] payload = readPayload(size);
+                    ok();
+                    route(parts[1], reply, payload);
+                    break;
+                case "SUB":
+                    final String queue = parts.length == 4 ? parts[2] : null;
+                    final String sid = parts[parts.length - 1];
+                    final ServerSubscription subscription = new ServerSubscription(this, parts[1], queue, sid);
+                    clientSubscriptions.put(sid, subscription);
+                    subscriptions.add(subscription);
+                    ok();
+                    break;
+                case "UNSUB":
+                    final ServerSubscription existing = clientSubscriptions.get(parts[1]);
+                    if (existing != null) {
+                        if (parts.length == 3) {
+                            existing.remaining.set(Long.parseLong(parts[2]));
+                        } else {
+                            clientSubscriptions.remove(parts[1]);
+                            subscriptions.remove(existing);
+                        }
+                    }
+                    ok();
+                    break;
+                default:
+                    write(("-ERR 'Unknown Protocol Operation'\r\n").getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+
+        private void ok() {
+            if (verbose) {
+                write(OK);
+            }
+        }
+
+        boolean write(byte[]... chunks) {
+            synchronized (out) {
+                try {
+                    for (byte[] chunk : chunks) {
+                        out.write(chunk);
+                    }
+                    out.flush();
+                    return true;
+                } catch (IOException e) {
+                    LOG.debug("Couldn't write to client connection", e);
+                    return false;
+                }
+            }
+        }
+
+        private String readLine() throws IOException {
+            final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') {
+                    final byte[] bytes = line.toByteArray();
+                    final int length = bytes.length > 0 && bytes[bytes.length - 1] == '\r' ? bytes.length - 1 : bytes.length;
+                    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+                }
+                line.write(b);
+            }
+            return null;
+        }
+
+        private byte[] readPayload(int size) throws IOException {
+            final byte[] payload = new byte[size];
+            int offset = 0;
+            while (offset < size) {
+                final int read = in.read(payload, offset, size - offset);
+                if (read == -1) {
+                    throw new EOFException("Unexpected end of stream while reading payload");
+                }
+                offset += read;
+            }
+            // Trailing CRLF
+            if (in.read() == -1 || in.read() == -1) {
+                throw new EOFException("Unexpected end of stream after payload");
+            }
+            return payload;
+        }
+
+        void close() {
+            subscriptions.removeAll(clientSubscriptions.values());
+            clientSubscriptions.clear();
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOG.debug("Error while closing client connection", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.testing;
+
+import io.nats.client.Connection;
+import io.nats.client.ConnectionFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.awaitility.Awaitility.await;
+
+public class EmbeddedNatsServerTest {
+    private EmbeddedNatsServer server;
+    private Connection publisher;
+    private Connection subscriber;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new EmbeddedNatsServer();
+        publisher = new ConnectionFactory(server.getUrl()).createConnection();
+        subscriber = new ConnectionFactory(server.getUrl()).createConnection();
+    }
+
+    @After
+    public void tearDown() {
+        publisher.close();
+        subscriber.close();
+        server.close();
+    }
+
+    @Test
+    public void deliversToMatchingSubscriptions() throws Exception {
+        final List<String> received = new CopyOnWriteArrayList<>();
+        subscriber.subscribe("logs.*", m -> received.add(m.getSubject()));
+        subscriber.subscribe("logs.>", m -> received.add(m.getSubject()));
+        subscriber.subscribe("metrics.>", m -> received.add(m.getSubject()));
+        subscriber.flush();
+
+        publisher.publish("logs.web", "foo".getBytes(StandardCharsets.UTF_8));
+        publisher.publish("logs.web.access", "bar".getBytes(StandardCharsets.UTF_8));
+        publisher.flush();
+
+        await().until(() -> received.size() == 3);
+        assertThat(received).containsOnly("logs.web", "logs.web.access");
+    }
+
+    @Test
+    public void queueGroupsDeliverOnce() throws Exception {
+        final AtomicInteger first = new AtomicInteger();
+        final AtomicInteger second = new AtomicInteger();
+        subscriber.subscribe("jobs", "workers", m -> first.incrementAndGet());
+        subscriber.subscribe("jobs", "workers", m -> second.incrementAndGet());
+        subscriber.flush();
+
+        for (int i = 0; i < 10; i++) {
+            publisher.publish("jobs", new byte[]{(byte) i});
+        }
+        publisher.flush();
+
+        await().until(() -> first.get() + second.get() == 10);
+        assertThat(first.get()).isEqualTo(5);
+        assertThat(second.get()).isEqualTo(5);
+    }
+
+    @Test
+    public void requestReply() throws Exception {
+        subscriber.subscribe("echo", m -> subscriber.publish(m.getReplyTo(), m.getData()));
+        subscriber.flush();
+
+        final io.nats.client.Message reply = publisher.request("echo", "ping".getBytes(StandardCharsets.UTF_8), 1L, TimeUnit.SECONDS);
+
+        assertThat(reply).isNotNull();
+        assertThat(reply.getData()).isEqualTo("ping".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void injectsDropsAndLatency() throws Exception {
+        final AtomicInteger received = new AtomicInteger();
+        subscriber.subscribe("lossy", m -> received.incrementAndGet());
+        subscriber.flush();
+
+        server.setDropRate(1.0d);
+        publisher.publish("lossy", new byte[1]);
+        publisher.flush();
+        await().until(() -> server.getDroppedCount() == 1L);
+
+        server.setDropRate(0.0d);
+        server.setLatency(200L, TimeUnit.MILLISECONDS);
+        final long start = System.nanoTime();
+        publisher.publish("lossy", new byte[1]);
+        publisher.flush();
+        await().until(() -> received.get() == 1);
+
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(200L));
+    }
+}
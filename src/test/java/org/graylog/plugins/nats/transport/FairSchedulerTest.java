@@ -0,0 +1,141 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+
+public class FairSchedulerTest {
+    private final List<String> handled = new ArrayList<>();
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    public void servesLanesByWeight() {
+        final FairScheduler scheduler = scheduler("tenant-a.> 3", 100);
+        for (int i = 0; i < 10; i++) {
+            scheduler.offer("tenant-a.app", bytes("a" + i), null);
+            scheduler.offer("tenant-b.app", bytes("b" + i), null);
+        }
+
+        assertThat(scheduler.serveRound()).isTrue();
+
+        assertThat(handled).containsExactly("a0", "a1", "a2", "b0");
+        assertThat(scheduler.getQueuedCount()).isEqualTo(16);
+        assertThat(metricRegistry.meter("scheduler.0.served").getCount()).isEqualTo(3L);
+        assertThat(metricRegistry.meter("scheduler.default.served").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.getGauges().get("scheduler.0.queued").getValue()).isEqualTo(7);
+    }
+
+    @Test
+    public void limitsRateOfLane() {
+        final FairScheduler scheduler = scheduler("tenant-a.> 100 5", 100);
+        for (int i = 0; i < 10; i++) {
+            scheduler.offer("tenant-a.app", bytes("a" + i), null);
+        }
+
+        scheduler.serveRound();
+        scheduler.serveRound();
+
+        assertThat(handled).containsExactly("a0", "a1", "a2", "a3", "a4");
+    }
+
+    @Test
+    public void fullLaneDoesNotDelayOtherLanes() throws Exception {
+        // Throttled, so nothing is handed to the input and the lanes fill up
+        final FairScheduler scheduler = new FairScheduler("tenant-a.> 1", 2, 2,
+                (payload, ack) -> handled.add(new String(payload, StandardCharsets.UTF_8)), () -> true, metricRegistry);
+        scheduler.start();
+        try {
+            assertThat(scheduler.offer("tenant-a.app", bytes("a0"), null)).isTrue();
+            assertThat(scheduler.offer("tenant-a.app", bytes("a1"), null)).isTrue();
+
+            final long start = System.nanoTime();
+            assertThat(scheduler.offer("tenant-a.app", bytes("a2"), null)).isFalse();
+            assertThat(scheduler.offer("tenant-b.app", bytes("b0"), null)).isTrue();
+            assertThat(System.nanoTime() - start).isLessThan(TimeUnit.MILLISECONDS.toNanos(50L));
+
+            assertThat(metricRegistry.meter("scheduler.0.dropped").getCount()).isEqualTo(1L);
+            assertThat(metricRegistry.meter("scheduler.default.dropped").getCount()).isZero();
+        } finally {
+            scheduler.close(System.nanoTime());
+        }
+    }
+
+    @Test
+    public void leavesMessagesOfFullLaneUnacknowledged() throws Exception {
+        final FairScheduler scheduler = scheduler("tenant-a.> 1", 1);
+        final AtomicInteger acks = new AtomicInteger();
+
+        assertThat(scheduler.offer("tenant-a.app", bytes("a0"), acks::incrementAndGet)).isTrue();
+        assertThat(scheduler.offer("tenant-a.app", bytes("a1"), acks::incrementAndGet)).isFalse();
+
+        assertThat(acks).hasValue(0);
+        assertThat(metricRegistry.meter("scheduler.0.deferred").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.meter("scheduler.0.dropped").getCount()).isZero();
+    }
+
+    @Test
+    public void servesLanesOnSeveralThreads() throws Exception {
+        final List<String> served = new CopyOnWriteArrayList<>();
+        final FairScheduler scheduler = new FairScheduler("tenant-a.> 1", 10, 2,
+                (payload, ack) -> served.add(new String(payload, StandardCharsets.UTF_8)), () -> false, metricRegistry);
+        scheduler.start();
+        try {
+            scheduler.offer("tenant-a.app", bytes("a0"), null);
+            scheduler.offer("tenant-b.app", bytes("b0"), null);
+
+            await().atMost(1L, TimeUnit.SECONDS).until(() -> served.size() == 2);
+            assertThat(served).containsExactlyInAnyOrder("a0", "b0");
+        } finally {
+            scheduler.close(System.nanoTime());
+        }
+    }
+
+    @Test
+    public void rejectsInvalidRules() {
+        assertThatThrownBy(() -> scheduler("tenant-a.>", 1)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> scheduler("tenant-a.> 0", 1)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> scheduler("tenant-a.> 1 x", 1)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private FairScheduler scheduler(String rules, int queueSize) {
+        return new FairScheduler(rules, queueSize,
+                (payload, ack) -> handled.add(new String(payload, StandardCharsets.UTF_8)), () -> false, metricRegistry);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.UniformReservoir;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import io.nats.client.Connection;
+import io.nats.client.ConnectionFactory;
+import org.graylog.plugins.nats.config.NatsConfig;
+import org.graylog.plugins.nats.config.NatsStreamingConfig;
+import org.graylog.plugins.nats.testing.EmbeddedNatsServer;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.transports.Transport;
+import org.graylog2.plugin.journal.RawMessage;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.IntStream;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
+
+/**
+ * End-to-end ingest benchmark for {@link NatsTransport} and {@link NatsStreamingTransport}.
+ * <p>
+ * A publisher thread sends payloads to NATS at a configurable rate, the transport under test delivers them to a
+ * stub {@link MessageInput} which measures the time from publishing to {@link MessageInput#processRawMessage(RawMessage)}.
+ * The publish time is encoded in the first 8 bytes of every payload.
+ * <p>
+ * Options (system properties):
+ * <ul>
+ * <li>{@code ingest.transport}: {@code nats} (default) or {@code nats-streaming}</li>
+ * <li>{@code ingest.url}: NATS server URL, starts an {@link EmbeddedNatsServer} if not set (not supported for NATS Streaming)</li>
+ * <li>{@code ingest.clusterId}: NATS Streaming cluster ID (default: {@code test-cluster})</li>
+ * <li>{@code ingest.payloadSize}: payload size in bytes (default: 512)</li>
+ * <li>{@code ingest.subjects}: number of subjects to publish to (default: 1)</li>
+ * <li>{@code ingest.rate}: messages per second, 0 for as fast as possible (default: 0)</li>
+ * <li>{@code ingest.warmup}: warmup duration in seconds (default: 5)</li>
+ * <li>{@code ingest.duration}: measurement duration in seconds (default: 30)</li>
+ * </ul>
+ */
+public class IngestBenchmark {
+    private static final String SUBJECT_PREFIX = "IngestBenchmark.";
+
+    private final String transportType = System.getProperty("ingest.transport", "nats");
+    private final String url = System.getProperty("ingest.url");
+    private final String clusterId = System.getProperty("ingest.clusterId", "test-cluster");
+    private final int payloadSize = Math.max(Long.BYTES, Integer.getInteger("ingest.payloadSize", 512));
+    private final int subjectCount = Math.max(1, Integer.getInteger("ingest.subjects", 1));
+    private final long rate = Long.getLong("ingest.rate", 0L);
+    private final long warmupSeconds = Long.getLong("ingest.warmup", 5L);
+    private final long durationSeconds = Long.getLong("ingest.duration", 30L);
+
+    private final AtomicBoolean measuring = new AtomicBoolean(false);
+    private final Meter published = new Meter();
+    private final Meter received = new Meter();
+    private final Meter receivedBytes = new Meter();
+    private final Histogram latency = new Histogram(new UniformReservoir(100_000));
+
+    public static void main(String[] args) throws Exception {
+        new IngestBenchmark().run();
+    }
+
+    private void run() throws Exception {
+        final boolean streaming = "nats-streaming".equals(transportType);
+        if (streaming && url == null) {
+            throw new IllegalArgumentException("NATS Streaming requires a server, please set ingest.url");
+        }
+
+        final String[] subjects = IntStream.range(0, subjectCount)
+                .mapToObj(i -> SUBJECT_PREFIX + i)
+                .toArray(String[]::new);
+
+        try (final EmbeddedNatsServer server = url == null ? new EmbeddedNatsServer() : null) {
+            final String serverUrl = server == null ? url : server.getUrl();
+            final Configuration configuration = new Configuration(ImmutableMap.<String, Object>builder()
+                    .put(NatsConfig.CK_SERVER_URIS, serverUrl)
+                    .put(NatsConfig.CK_CHANNELS, String.join("\n", subjects))
+                    .put(NatsConfig.CK_CONNECTION_NAME, "IngestBenchmark-consumer")
+                    .put(NatsStreamingConfig.CK_CLUSTER_ID, clusterId)
+                    .put(NatsStreamingConfig.CK_CLIENT_ID, "IngestBenchmark-consumer")
+                    .build());
+
+            final Transport transport = streaming
+                    ? new NatsStreamingTransport(configuration, new EventBus(), new LocalMetricRegistry())
+                    : new NatsTransport(configuration, new EventBus(), new LocalMetricRegistry());
+            final Publisher publisher = streaming ? streamingPublisher(serverUrl) : natsPublisher(serverUrl);
+
+            transport.launch(createInput());
+            try {
+                final Thread publisherThread = new Thread(() -> publish(publisher, subjects), "IngestBenchmark-publisher");
+                publisherThread.start();
+
+                TimeUnit.SECONDS.sleep(warmupSeconds);
+                measuring.set(true);
+                final long start = System.nanoTime();
+                TimeUnit.SECONDS.sleep(durationSeconds);
+                measuring.set(false);
+                final long elapsedNanos = System.nanoTime() - start;
+
+                publisherThread.interrupt();
+                publisherThread.join();
+
+                report(elapsedNanos);
+            } finally {
+                transport.stop();
+                publisher.close();
+            }
+        }
+    }
+
+    private MessageInput createInput() {
+        final MessageInput input = mock(MessageInput.class, withSettings().stubOnly());
+        doAnswer(invocation -> {
+            final RawMessage rawMessage = invocation.getArgument(0);
+            if (measuring.get()) {
+                final byte[] payload = rawMessage.getPayload();
+                latency.update(System.nanoTime() - ByteBuffer.wrap(payload).getLong());
+                received.mark();
+                receivedBytes.mark(payload.length);
+            }
+            return null;
+        }).when(input).processRawMessage(any(RawMessage.class));
+        return input;
+    }
+
+    private void publish(Publisher publisher, String[] subjects) {
+        final byte[] payload = new byte[payloadSize];
+        ThreadLocalRandom.current().nextBytes(payload);
+        final ByteBuffer buffer = ByteBuffer.wrap(payload);
+        final long intervalNanos = rate > 0L ? TimeUnit.SECONDS.toNanos(1L) / rate : 0L;
+
+        long next = System.nanoTime();
+        long count = 0L;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (intervalNanos > 0L) {
+                    next += intervalNanos;
+                    final long wait = next - System.nanoTime();
+                    if (wait > 0L) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+
+                buffer.putLong(0, System.nanoTime());
+                publisher.publish(subjects[(int) (count++ % subjects.length)], payload);
+                if (measuring.get()) {
+                    published.mark();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            throw new RuntimeException("Couldn't publish message", e);
+        }
+    }
+
+    private void report(long elapsedNanos) {
+        final double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1L);
+        final Snapshot snapshot = latency.getSnapshot();
+
+        System.out.println(String.format(Locale.ENGLISH,
+                "transport=%s payloadSize=%d subjects=%d rate=%s duration=%ds",
+                transportType, payloadSize, subjectCount, rate > 0L ? rate + "/s" : "unlimited", durationSeconds));
+        System.out.println(String.format(Locale.ENGLISH,
+                "published: %d msgs (%.0f msgs/s)", published.getCount(), published.getCount() / seconds));
+        System.out.println(String.format(Locale.ENGLISH,
+                "received:  %d msgs (%.0f msgs/s, %.0f bytes/s)",
+                received.getCount(), received.getCount() / seconds, receivedBytes.getCount() / seconds));
+        System.out.println(String.format(Locale.ENGLISH,
+                "latency:   p50=%.1fµs p99=%.1fµs p999=%.1fµs max=%.1fµs",
+                snapshot.getMedian() / 1000.0d, snapshot.get99thPercentile() / 1000.0d,
+                snapshot.get999thPercentile() / 1000.0d, snapshot.getMax() / 1000.0d));
+    }
+
+    private static Publisher natsPublisher(String url) throws Exception {
+        final ConnectionFactory cf = new ConnectionFactory(url);
+        cf.setConnectionName("IngestBenchmark-publisher");
+        final Connection connection = cf.createConnection();
+        return new Publisher() {
+            @Override
+            public void publish(String subject, byte[] payload) {
+                connection.publish(subject, payload);
+            }
+
+            @Override
+            public void close() {
+                connection.close();
+            }
+        };
+    }
+
+    private Publisher streamingPublisher(String url) throws Exception {
+        final io.nats.stan.ConnectionFactory cf = new io.nats.stan.ConnectionFactory(clusterId, "IngestBenchmark-publisher");
+        cf.setNatsUrl(url);
+        final io.nats.stan.Connection connection = cf.createConnection();
+        return new Publisher() {
+            @Override
+            public void publish(String subject, byte[] payload) throws Exception {
+                connection.publish(subject, payload, (guid, e) -> {
+                });
+            }
+
+            @Override
+            public void close() throws Exception {
+                connection.close();
+            }
+        };
+    }
+
+    private interface Publisher extends AutoCloseable {
+        void publish(String subject, byte[] payload) throws Exception;
+    }
+}
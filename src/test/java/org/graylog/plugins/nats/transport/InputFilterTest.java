@@ -0,0 +1,88 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InputFilterTest {
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    public void matchesSubjectWildcards() {
+        final String[] single = {"logs", "*", "debug"};
+        final String[] tail = {"logs", ">"};
+
+        assertThat(InputFilter.matchesSubject(single, "logs.app.debug")).isTrue();
+        assertThat(InputFilter.matchesSubject(single, "logs.app.info")).isFalse();
+        assertThat(InputFilter.matchesSubject(single, "logs.app.debug.more")).isFalse();
+        assertThat(InputFilter.matchesSubject(single, "logs.debug")).isFalse();
+        assertThat(InputFilter.matchesSubject(tail, "logs.app")).isTrue();
+        assertThat(InputFilter.matchesSubject(tail, "logs.app.debug")).isTrue();
+        assertThat(InputFilter.matchesSubject(tail, "logs")).isFalse();
+        assertThat(InputFilter.matchesSubject(new String[]{"logs"}, "logs")).isTrue();
+        assertThat(InputFilter.matchesSubject(new String[]{"logs"}, "logsx")).isFalse();
+    }
+
+    @Test
+    public void dropsMatchingPayloadsAndCountsPerRule() {
+        final InputFilter filter = new InputFilter(InputFilter.parse(
+                "# noise\nsubject logs.*.debug\n\nprefix DEBUG\ncontains \"level\":7"), 0, metricRegistry);
+
+        assertThat(filter.accepts("logs.app.debug", bytes("{}"))).isFalse();
+        assertThat(filter.accepts("logs.app.info", bytes("DEBUG something"))).isFalse();
+        assertThat(filter.accepts("logs.app.info", bytes("{\"short_message\":\"x\",\"level\":7}"))).isFalse();
+        assertThat(filter.accepts("logs.app.info", bytes("{\"short_message\":\"x\",\"level\":3}"))).isTrue();
+        assertThat(filter.accepts(null, bytes("{}"))).isTrue();
+
+        assertThat(metricRegistry.counter("filter.0.dropped").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.counter("filter.1.dropped").getCount()).isEqualTo(1L);
+        assertThat(metricRegistry.counter("filter.2.dropped").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void dropsOversizedPayloads() {
+        final InputFilter filter = new InputFilter(InputFilter.parse(""), 4, metricRegistry);
+
+        assertThat(filter.accepts("logs", new byte[4])).isTrue();
+        assertThat(filter.accepts("logs", new byte[5])).isFalse();
+        assertThat(metricRegistry.counter("filter.max_size.dropped").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void rejectsInvalidRules() {
+        assertThatThrownBy(() -> InputFilter.parse("regex .*")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> InputFilter.parse("contains")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> InputFilter.parse("subject logs.>.debug")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
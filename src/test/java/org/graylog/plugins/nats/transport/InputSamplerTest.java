@@ -0,0 +1,111 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InputSamplerTest {
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    public void keepsEveryNthMessagePerSubject() {
+        final InputSampler sampler = new InputSampler("logs.noisy.> 4\nlogs.* 2", false, metricRegistry);
+
+        int keptA = 0;
+        int keptB = 0;
+        for (int i = 0; i < 100; i++) {
+            keptA += sampler.sample("logs.noisy.a", bytes("{}")) == null ? 0 : 1;
+            keptB += sampler.sample("logs.noisy.b", bytes("{}")) == null ? 0 : 1;
+        }
+
+        assertThat(keptA).isEqualTo(25);
+        assertThat(keptB).isEqualTo(25);
+        assertThat(metricRegistry.meter("sampling.0.kept").getCount()).isEqualTo(50L);
+        assertThat(metricRegistry.meter("sampling.0.dropped").getCount()).isEqualTo(150L);
+        assertThat(metricRegistry.meter("sampling.1.kept").getCount()).isZero();
+    }
+
+    @Test
+    public void passesUnmatchedSubjectsThrough() {
+        final InputSampler sampler = new InputSampler("logs.noisy.> 4", false, metricRegistry);
+        final byte[] payload = bytes("{\"short_message\":\"x\"}");
+
+        for (int i = 0; i < 10; i++) {
+            assertThat(sampler.sample("logs.quiet", payload)).isSameAs(payload);
+        }
+        assertThat(sampler.sample(null, payload)).isSameAs(payload);
+    }
+
+    @Test
+    public void tagsKeptJsonPayloadsWithRate() {
+        final InputSampler sampler = new InputSampler("logs.> 10", true, metricRegistry);
+
+        assertThat(string(sampler.sample("logs.a", bytes(" {\"short_message\":\"x\"}"))))
+                .isEqualTo(" {\"_sample_rate\":10,\"short_message\":\"x\"}");
+        assertThat(string(sampler.sample("logs.b", bytes("{ }")))).isEqualTo("{\"_sample_rate\":10 }");
+        assertThat(string(sampler.sample("logs.c", bytes("<13>syslog line")))).isEqualTo("<13>syslog line");
+    }
+
+    @Test
+    public void doesNotTagUnlessEnabled() {
+        final InputSampler sampler = new InputSampler("logs.> 10", false, metricRegistry);
+        final byte[] payload = bytes("{\"short_message\":\"x\"}");
+
+        assertThat(sampler.sample("logs.a", payload)).isSameAs(payload);
+    }
+
+    @Test
+    public void evictsLeastRecentlySeenSubjects() {
+        final InputSampler sampler = new InputSampler("logs.> 3", false, 2, metricRegistry);
+
+        assertThat(sampler.sample("logs.a", bytes("{}"))).isNotNull();
+        assertThat(sampler.sample("logs.b", bytes("{}"))).isNotNull();
+        assertThat(sampler.sample("logs.a", bytes("{}"))).isNull();
+        assertThat(sampler.sample("logs.c", bytes("{}"))).isNotNull();
+        // logs.a keeps counting, logs.b has been evicted and starts over
+        assertThat(sampler.sample("logs.a", bytes("{}"))).isNull();
+        assertThat(sampler.sample("logs.b", bytes("{}"))).isNotNull();
+    }
+
+    @Test
+    public void rejectsInvalidRules() {
+        assertThatThrownBy(() -> new InputSampler("logs.>", false, metricRegistry)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new InputSampler("logs.> 0", false, metricRegistry)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> new InputSampler("logs.> x", false, metricRegistry)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String string(byte[] bytes) {
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class JetStreamConsumerTest {
+    private final List<byte[]> handled = new ArrayList<>();
+    private final List<PayloadPublisher.Acknowledgement> acks = new ArrayList<>();
+    private MetricRegistry metricRegistry;
+    private Connection connection;
+    private JetStreamConsumer consumer;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        connection = mock(Connection.class);
+        consumer = new JetStreamConsumer(connection, "$JS.API", "LOGS", "graylog_logs", "logs", 16, 1000L,
+                (subject, payload, ack) -> {
+                    handled.add(payload);
+                    acks.add(ack);
+                }, () -> false, metricRegistry);
+    }
+
+    @Test
+    public void derivesValidDurableNames() {
+        assertThat(JetStreamConsumer.durableName("graylog", "logs.*.app")).isEqualTo("graylog_logs___app");
+        assertThat(JetStreamConsumer.durableName("graylog", "logs.>")).isEqualTo("graylog_logs__");
+    }
+
+    @Test
+    public void buildsPullRequests() {
+        assertThat(new String(JetStreamConsumer.pullRequest(16, 1000L), StandardCharsets.US_ASCII))
+                .isEqualTo("{\"batch\":16,\"expires\":1000000000}");
+    }
+
+    @Test
+    public void acknowledgesHandledMessages() throws Exception {
+        final byte[] payload = "TEST".getBytes(StandardCharsets.UTF_8);
+
+        consumer.onMessage(new Message("_INBOX.1", "$JS.ACK.LOGS.graylog_logs.1.1.1.0.0", payload));
+
+        assertThat(handled).containsExactly(payload);
+        acks.get(0).ack();
+        verify(connection).publish(eq("$JS.ACK.LOGS.graylog_logs.1.1.1.0.0"), any(byte[].class));
+        assertThat(metricRegistry.meter("jetstream.graylog_logs.messages").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void ignoresStatusMessages() {
+        consumer.onMessage(new Message("_INBOX.1", null, new byte[0]));
+
+        assertThat(handled).isEmpty();
+    }
+
+    @Test
+    public void failsOnApiErrors() throws Exception {
+        final Message response = new Message("_INBOX.2", null,
+                "{\"error\":{\"code\":404,\"description\":\"stream not found\"}}".getBytes(StandardCharsets.UTF_8));
+        when(connection.request(anyString(), any(byte[].class), anyLong(), any(TimeUnit.class))).thenReturn(response);
+
+        assertThatThrownBy(() -> consumer.create(30000L, 100))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("stream not found");
+        verify(connection).request(eq("$JS.API.CONSUMER.DURABLE.CREATE.LOGS.graylog_logs"), any(byte[].class),
+                anyLong(), any(TimeUnit.class));
+    }
+}
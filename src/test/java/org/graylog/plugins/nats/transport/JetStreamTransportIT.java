@@ -0,0 +1,117 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.EventBus;
+import io.nats.client.Connection;
+import io.nats.client.ConnectionFactory;
+import org.graylog.plugins.nats.config.JetStreamConfig;
+import org.graylog.plugins.nats.config.NatsConfig;
+import org.graylog2.plugin.LocalMetricRegistry;
+import org.graylog2.plugin.configuration.Configuration;
+import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
+import org.graylog2.plugin.journal.RawMessage;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assume.assumeTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Runs against a JetStream enabled NATS server ({@code nats-server -js}) given by {@code -Djetstream.url=nats://host:port}.
+ */
+public class JetStreamTransportIT {
+    private static final String URL = System.getProperty("jetstream.url");
+    private static final String STREAM = "JetStreamTransportIT";
+    private static final String SUBJECT = "jetstream.it";
+
+    private EventBus eventBus;
+    private LocalMetricRegistry localMetricRegistry;
+
+    @BeforeClass
+    public static void createStream() throws Exception {
+        assumeTrue(URL != null);
+
+        final ConnectionFactory cf = new ConnectionFactory(URL);
+        try (final Connection nc = cf.createConnection()) {
+            final byte[] request = ("{\"name\":\"" + STREAM + "\",\"subjects\":[\"" + SUBJECT + "\"]}").getBytes(StandardCharsets.UTF_8);
+            nc.request("$JS.API.STREAM.CREATE." + STREAM, request, 5L, TimeUnit.SECONDS);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        eventBus = new EventBus();
+        localMetricRegistry = new LocalMetricRegistry();
+    }
+
+    @Test
+    public void pullsAndAcknowledgesMessages() throws Exception {
+        final Configuration configuration = new Configuration(
+                ImmutableMap.of(
+                        NatsConfig.CK_SERVER_URIS, URL,
+                        NatsConfig.CK_CHANNELS, SUBJECT,
+                        JetStreamConfig.CK_STREAM, STREAM,
+                        JetStreamConfig.CK_FETCH_EXPIRES, 500
+                )
+        );
+
+        final MessageInput messageInput = mock(MessageInput.class);
+        final ConnectionFactory cf = new ConnectionFactory(URL);
+        cf.setConnectionName("JetStreamTransportIT-publisher");
+
+        try (final JetStreamTransport transport = new JetStreamTransport(configuration, eventBus, localMetricRegistry);
+             final Connection nc = cf.createConnection()) {
+            transport.launch(messageInput);
+            await().until(transport::isConnected);
+
+            nc.publish(SUBJECT, "TEST".getBytes(StandardCharsets.UTF_8));
+
+            await()
+                    .catchUncaughtExceptions()
+                    .until(() -> verify(messageInput, times(1)).processRawMessage(any(RawMessage.class)));
+        }
+    }
+
+    @Test
+    public void closesConnectionIfConsumerCannotBeCreated() throws Exception {
+        final Configuration configuration = new Configuration(
+                ImmutableMap.of(
+                        NatsConfig.CK_SERVER_URIS, URL,
+                        NatsConfig.CK_CHANNELS, SUBJECT,
+                        JetStreamConfig.CK_STREAM, "missing"
+                )
+        );
+
+        final JetStreamTransport transport = new JetStreamTransport(configuration, eventBus, localMetricRegistry);
+        assertThatThrownBy(() -> transport.launch(mock(MessageInput.class))).isInstanceOf(MisfireException.class);
+        assertThat(transport.connection.isClosed()).isTrue();
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.nats.client.AsyncSubscription;
+import io.nats.client.Connection;
+import io.nats.client.Message;
+import io.nats.client.MessageHandler;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NatsDispatcherTest {
+    private MetricRegistry metricRegistry;
+    private Connection connection;
+    private AsyncSubscription subscription;
+    private MessageHandler handler;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+        connection = mock(Connection.class);
+        subscription = mock(AsyncSubscription.class);
+        handler = mock(MessageHandler.class);
+        when(connection.subscribe(anyString(), any(MessageHandler.class))).thenReturn(subscription);
+        when(connection.subscribe(anyString(), anyString(), any(MessageHandler.class))).thenReturn(subscription);
+    }
+
+    @Test
+    public void subscribesToAllChannelsOnce() {
+        final NatsDispatcher dispatcher = new NatsDispatcher(0, connection, false, Arrays.asList("a", "b"), null,
+                handler, metricRegistry);
+
+        dispatcher.subscribe();
+        dispatcher.subscribe();
+
+        verify(connection, times(1)).subscribe(eq("a"), any(MessageHandler.class));
+        verify(connection, times(1)).subscribe(eq("b"), any(MessageHandler.class));
+    }
+
+    @Test
+    public void subscribesInQueueGroup() {
+        final NatsDispatcher dispatcher = new NatsDispatcher(1, connection, true, Collections.singletonList("a"),
+                "group", handler, metricRegistry);
+
+        dispatcher.subscribe();
+
+        verify(connection).subscribe(eq("a"), eq("group"), any(MessageHandler.class));
+    }
+
+    @Test
+    public void countsHandledAndPendingMessages() throws Exception {
+        when(subscription.getPendingMsgs()).thenReturn(3);
+        final NatsDispatcher dispatcher = new NatsDispatcher(2, connection, false, Arrays.asList("a", "b"), null,
+                handler, metricRegistry);
+        dispatcher.subscribe();
+
+        final ArgumentCaptor<MessageHandler> captor = ArgumentCaptor.forClass(MessageHandler.class);
+        verify(connection).subscribe(eq("a"), captor.capture());
+        final Message message = mock(Message.class);
+        captor.getValue().onMessage(message);
+
+        verify(handler).onMessage(message);
+        assertThat(metricRegistry.meter("dispatcher.2.throughput").getCount()).isEqualTo(1L);
+        final Gauge<?> pending = metricRegistry.getGauges().get("dispatcher.2.pending");
+        assertThat(pending.getValue()).isEqualTo(6);
+    }
+
+    @Test
+    public void pauseKeepsReceivedMessages() throws Exception {
+        when(subscription.getDelivered()).thenReturn(10L);
+        when(subscription.getPendingMsgs()).thenReturn(5);
+        when(subscription.isValid()).thenReturn(true);
+        final NatsDispatcher dispatcher = new NatsDispatcher(0, connection, false, Collections.singletonList("a"), null,
+                handler, metricRegistry);
+        dispatcher.subscribe();
+
+        dispatcher.pause();
+
+        verify(subscription).autoUnsubscribe(15);
+        verify(subscription, never()).close();
+        assertThat(dispatcher.getPendingMessages()).isEqualTo(5);
+
+        dispatcher.subscribe();
+        verify(connection, times(2)).subscribe(eq("a"), any(MessageHandler.class));
+    }
+
+    @Test
+    public void closesOnlyOwnedConnections() {
+        final NatsDispatcher shared = new NatsDispatcher(0, connection, false, Collections.singletonList("a"), null,
+                handler, metricRegistry);
+        shared.subscribe();
+        shared.close();
+
+        verify(subscription).close();
+        verify(connection, never()).close();
+        assertThat(metricRegistry.getMetrics()).isEmpty();
+
+        final NatsDispatcher owned = new NatsDispatcher(1, connection, true, Collections.singletonList("a"), null,
+                handler, metricRegistry);
+        owned.close();
+
+        verify(connection).close();
+    }
+}
@@ -27,6 +27,7 @@ import org.graylog.plugins.nats.config.NatsStreamingConfig;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.journal.RawMessage;
 import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
 import org.junit.Before;
@@ -34,6 +35,8 @@ import org.junit.Test;
 
 import java.nio.charset.StandardCharsets;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.awaitility.Awaitility.await;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
@@ -80,4 +83,21 @@ public class NatsStreamingTransportIT extends BaseNatsStreamingTest {
                     .until(() -> verify(messageInput, times(1)).processRawMessage(any(RawMessage.class)));
         }
     }
+
+    @Test
+    public void closesConnectionIfLaunchFails() throws Exception {
+        final Configuration configuration = new Configuration(
+                ImmutableMap.of(
+                        NatsConfig.CK_SERVER_URIS, URL,
+                        NatsConfig.CK_CHANNELS, CHANNELS,
+                        NatsStreamingConfig.CK_CLUSTER_ID, "missing-cluster",
+                        NatsStreamingConfig.CK_CLIENT_ID, "NatsStreamingTransportIT-failing"
+                )
+        );
+
+        final NatsStreamingTransport natsTransport = new NatsStreamingTransport(configuration, eventBus, localMetricRegistry);
+
+        assertThatThrownBy(() -> natsTransport.launch(mock(MessageInput.class))).isInstanceOf(MisfireException.class);
+        assertThat(natsTransport.connection.isClosed()).isTrue();
+    }
 }
@@ -23,9 +23,11 @@ import io.nats.client.Connection;
 import io.nats.client.ConnectionFactory;
 import org.graylog.plugins.nats.BaseNatsTest;
 import org.graylog.plugins.nats.config.NatsConfig;
+import org.graylog.plugins.nats.config.NatsInputConfig;
 import org.graylog2.plugin.LocalMetricRegistry;
 import org.graylog2.plugin.configuration.Configuration;
 import org.graylog2.plugin.inputs.MessageInput;
+import org.graylog2.plugin.inputs.MisfireException;
 import org.graylog2.plugin.journal.RawMessage;
 import org.graylog2.plugin.outputs.MessageOutputConfigurationException;
 import org.junit.Before;
@@ -33,6 +35,8 @@ import org.junit.Test;
 
 import java.nio.charset.StandardCharsets;
 
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.awaitility.Awaitility.await;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
@@ -77,4 +81,20 @@ public class NatsTransportIT extends BaseNatsTest {
                     .until(() -> verify(messageInput, times(1)).processRawMessage(any(RawMessage.class)));
         }
     }
+
+    @Test
+    public void rejectsInvalidSchedulingRulesBeforeConnecting() throws Exception {
+        final Configuration configuration = new Configuration(
+                ImmutableMap.of(
+                        NatsConfig.CK_SERVER_URIS, URL,
+                        NatsConfig.CK_CHANNELS, CHANNELS,
+                        NatsInputConfig.CK_SCHEDULING_RULES, "tenant-a.> 0"
+                )
+        );
+
+        final NatsTransport natsTransport = new NatsTransport(configuration, eventBus, localMetricRegistry);
+
+        assertThatThrownBy(() -> natsTransport.launch(mock(MessageInput.class))).isInstanceOf(MisfireException.class);
+        assertThat(natsTransport.connection).isNull();
+    }
 }
@@ -0,0 +1,120 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class OffHeapRingBufferTest {
+    private MetricRegistry metricRegistry;
+
+    @Before
+    public void setUp() {
+        metricRegistry = new MetricRegistry();
+    }
+
+    @Test
+    public void returnsPayloadsInOrder() throws Exception {
+        final OffHeapRingBuffer buffer = new OffHeapRingBuffer(1024, metricRegistry);
+
+        buffer.put(new byte[]{1});
+        buffer.put(new byte[]{2, 2});
+        buffer.put(new byte[0]);
+
+        assertThat(buffer.size()).isEqualTo(3);
+        assertThat(buffer.poll(0L, TimeUnit.MILLISECONDS)).containsExactly(1);
+        assertThat(buffer.poll(0L, TimeUnit.MILLISECONDS)).containsExactly(2, 2);
+        assertThat(buffer.poll(0L, TimeUnit.MILLISECONDS)).isEmpty();
+        assertThat(buffer.poll(0L, TimeUnit.MILLISECONDS)).isNull();
+        assertThat(buffer.getUsedBytes()).isEqualTo(0L);
+    }
+
+    @Test
+    public void wrapsAroundEndOfBuffer() throws Exception {
+        final OffHeapRingBuffer buffer = new OffHeapRingBuffer(100, metricRegistry);
+        final byte[] payload = new byte[30];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) i;
+        }
+
+        for (int i = 0; i < 10; i++) {
+            buffer.put(payload);
+            buffer.put(payload);
+            assertThat(buffer.poll(0L, TimeUnit.MILLISECONDS)).isEqualTo(payload);
+            assertThat(buffer.poll(0L, TimeUnit.MILLISECONDS)).isEqualTo(payload);
+        }
+    }
+
+    @Test
+    public void writerWaitsForFreeSpace() throws Exception {
+        final OffHeapRingBuffer buffer = new OffHeapRingBuffer(100, metricRegistry);
+        buffer.put(new byte[60]);
+
+        final CompletableFuture<Void> write = CompletableFuture.runAsync(() -> {
+            try {
+                buffer.put(new byte[60]);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        TimeUnit.MILLISECONDS.sleep(100L);
+        assertThat(write).isNotDone();
+
+        assertThat(buffer.poll(0L, TimeUnit.MILLISECONDS)).hasSize(60);
+        write.get(5L, TimeUnit.SECONDS);
+
+        assertThat(buffer.size()).isEqualTo(1);
+        assertThat(metricRegistry.timer("offheap.writeWait").getCount()).isEqualTo(1L);
+    }
+
+    @Test
+    public void rejectsPayloadsExceedingCapacity() throws Exception {
+        final OffHeapRingBuffer buffer = new OffHeapRingBuffer(100, metricRegistry);
+
+        assertThat(buffer.fits(88)).isTrue();
+        assertThat(buffer.fits(89)).isFalse();
+        assertThatThrownBy(() -> buffer.put(new byte[89])).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void releaseWakesUpWaitingThreads() throws Exception {
+        final OffHeapRingBuffer buffer = new OffHeapRingBuffer(100, metricRegistry);
+        buffer.put(new byte[80]);
+        final CompletableFuture<Void> writer = CompletableFuture.runAsync(() -> {
+            try {
+                buffer.put(new byte[80]);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        buffer.release();
+
+        assertThatThrownBy(() -> writer.get(5L, TimeUnit.SECONDS)).hasCauseInstanceOf(IllegalStateException.class);
+        assertThat(buffer.size()).isEqualTo(0);
+        assertThat(buffer.poll(1L, TimeUnit.SECONDS)).isNull();
+        assertThatThrownBy(() -> buffer.put(new byte[1])).isInstanceOf(IllegalStateException.class);
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Graylog NATS Plugin - NATS plugin for Graylog
+ * Copyright © 2016 Graylog, Inc. (hello@graylog.com)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.graylog.plugins.nats.transport;
+
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class PayloadPublisherTest {
+    private final AtomicInteger pauses = new AtomicInteger();
+    private final AtomicInteger resumes = new AtomicInteger();
+    private final PayloadPublisher.FlowControl flowControl = new PayloadPublisher.FlowControl() {
+        @Override
+        public void pause() {
+            pauses.incrementAndGet();
+        }
+
+        @Override
+        public void resume() {
+            resumes.incrementAndGet();
+        }
+    };
+
+    @Test
+    public void deliversRequestedPayloads() {
+        final PayloadPublisher publisher = new PayloadPublisher(10, flowControl);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        publisher.offer(new byte[]{1}, null);
+        publisher.offer(new byte[]{2}, null);
+        publisher.offer(new byte[]{3}, null);
+        assertThat(subscriber.payloads).isEmpty();
+
+        subscriber.subscription.request(2L);
+        assertThat(subscriber.payloads).containsExactly(new byte[]{1}, new byte[]{2});
+        assertThat(publisher.getQueuedCount()).isEqualTo(1);
+
+        subscriber.subscription.request(5L);
+        publisher.offer(new byte[]{4}, null);
+        assertThat(subscriber.payloads).hasSize(4);
+        assertThat(publisher.getQueuedCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void acknowledgesAfterDelivery() {
+        final PayloadPublisher publisher = new PayloadPublisher(10, flowControl);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        final AtomicInteger acks = new AtomicInteger();
+        publisher.subscribe(subscriber);
+
+        publisher.offer(new byte[1], acks::incrementAndGet);
+        assertThat(acks.get()).isEqualTo(0);
+
+        subscriber.subscription.request(1L);
+        assertThat(acks.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void pausesSourceWithoutDemand() {
+        final PayloadPublisher publisher = new PayloadPublisher(4, flowControl);
+        final RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        for (int i = 0; i < 4; i++) {
+            publisher.offer(new byte[1], null);
+        }
+        assertThat(publisher.isPaused()).isTrue();
+        assertThat(pauses.get()).isEqualTo(1);
+
+        subscriber.subscription.request(1L);
+        assertThat(resumes.get()).isEqualTo(0);
+        subscriber.subscription.request(1L);
+        assertThat(publisher.isPaused()).isFalse();
+        assertThat(resumes.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void rejectsSecondSubscriber() {
+        final PayloadPublisher publisher = new PayloadPublisher(4, flowControl);
+        publisher.subscribe(new RecordingSubscriber());
+        final RecordingSubscriber second = new RecordingSubscriber();
+
+        publisher.subscribe(second);
+
+        assertThat(second.error).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    public void inputSubscriberStopsRequestingWhileThrottled() {
+        final PayloadPublisher publisher = new PayloadPublisher(100, flowControl);
+        final List<byte[]> consumed = new ArrayList<>();
+        final InputSubscriber subscriber = new InputSubscriber(consumed::add, 4);
+        publisher.subscribe(subscriber);
+
+        subscriber.setThrottled(true);
+        for (int i = 0; i < 10; i++) {
+            publisher.offer(new byte[1], null);
+        }
+        assertThat(consumed).hasSize(4);
+
+        subscriber.setThrottled(false);
+        assertThat(consumed).hasSize(10);
+        assertThat(publisher.getQueuedCount()).isEqualTo(0);
+    }
+
+    private static class RecordingSubscriber implements Subscriber<byte[]> {
+        private final List<byte[]> payloads = new ArrayList<>();
+        private Subscription subscription;
+        private Throwable error;
+
+        @Override
+        public void onSubscribe(Subscription s) {
+            subscription = s;
+        }
+
+        @Override
+        public void onNext(byte[] payload) {
+            payloads.add(payload);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}